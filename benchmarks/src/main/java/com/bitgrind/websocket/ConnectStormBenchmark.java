@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+
+/**
+ * Opens many connections at once through a {@link SelectorEngine} and waits
+ * for every handshake to complete, the way a fleet of feeds reconnects after
+ * a failover. Request building, response parsing and verification all run
+ * concurrently on the engine's loops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConnectStormBenchmark {
+  @Param({ "100", "500" })
+  public int connections;
+
+  @Param({ "4" })
+  public int threads;
+
+  private EchoServer server;
+  private SelectorEngine engine;
+  private WebSocketClient[] clients;
+  private final Semaphore opened = new Semaphore(0);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    server = new EchoServer();
+    engine = new SelectorEngine(threads);
+    clients = new WebSocketClient[connections];
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeClients() throws IOException {
+    for (WebSocketClient client : clients) {
+      if (client != null) {
+        client.close();
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    engine.close();
+    server.close();
+  }
+
+  @Benchmark
+  public void connect() throws Exception {
+    WebSocketOptions options = new WebSocketOptions().setProtocol(Protocol.RFC_6455);
+    Listener listener = new Listener();
+    for (int i = 0; i < connections; i++) {
+      clients[i] = engine.connect(server.getUrl(), listener, options);
+    }
+    if (!opened.tryAcquire(connections, 30, TimeUnit.SECONDS))
+      throw new IOException("Connections did not open");
+  }
+
+  private class Listener implements BinaryBufferListener {
+    @Override
+    public void onOpen() {
+      opened.release();
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+    }
+
+    @Override
+    public void onMessage(String message) {
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      error.printStackTrace();
+    }
+
+    @Override
+    public void onClose() {
+    }
+  }
+}
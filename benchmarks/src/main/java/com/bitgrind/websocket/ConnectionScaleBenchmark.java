@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+
+/**
+ * Holds many loopback connections open and sends one message through each,
+ * waiting for every echo, to compare how the ways of running connections
+ * scale: PLATFORM reads each on a platform thread of its own, VIRTUAL on a
+ * virtual thread, SELECTOR multiplexes them all over a
+ * {@link SelectorEngine} with a loop per processor. Run with
+ * {@code -prof gc} to compare allocation too.
+ * <p>
+ * VIRTUAL needs Java 21, and the server side of every mode is served on
+ * virtual threads when they are available so that it does not dominate.
+ * Fifty thousand connections need more than the default file descriptor
+ * limit and ephemeral port range: raise {@code ulimit -n} and widen
+ * {@code net.ipv4.ip_local_port_range}. Platform threads at that count may
+ * also need a smaller {@code -Xss} or a higher {@code kernel.threads-max}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xss256k" })
+public class ConnectionScaleBenchmark {
+  @Param({ "1000", "10000", "50000" })
+  public int connections;
+
+  @Param({ "PLATFORM", "VIRTUAL", "SELECTOR" })
+  public String mode;
+
+  private EchoServer server;
+  private SelectorEngine engine;
+  private WebSocketClient[] clients;
+  private final byte[] payload = new byte[16];
+  private final Semaphore opened = new Semaphore(0);
+  private final Semaphore received = new Semaphore(0);
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new EchoServer(VirtualThreads.isSupported() ? VirtualThreads.factory("echo-") : null);
+    WebSocketOptions options = new WebSocketOptions().setProtocol(Protocol.RFC_6455);
+    Listener listener = new Listener();
+    clients = new WebSocketClient[connections];
+    if (mode.equals("SELECTOR")) {
+      engine = new SelectorEngine(Runtime.getRuntime().availableProcessors());
+      for (int i = 0; i < connections; i++) {
+        clients[i] = engine.connect(server.getUrl(), listener, options);
+      }
+    } else {
+      if (mode.equals("VIRTUAL")) {
+        options.useVirtualThreads();
+      }
+      for (int i = 0; i < connections; i++) {
+        clients[i] = new WebSocketClient(server.getUrl(), listener, options);
+      }
+    }
+    if (!opened.tryAcquire(connections, 120, TimeUnit.SECONDS))
+      throw new IOException("Connections did not open");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    for (WebSocketClient client : clients) {
+      if (client != null) {
+        client.close();
+      }
+    }
+    if (engine != null) {
+      engine.close();
+    }
+    server.close();
+  }
+
+  /** Sends a message on every connection and waits for all the echoes. */
+  @Benchmark
+  public void echoAll() throws Exception {
+    for (WebSocketClient client : clients) {
+      client.send(payload);
+    }
+    if (!received.tryAcquire(connections, 60, TimeUnit.SECONDS))
+      throw new IOException("Echoes did not arrive");
+  }
+
+  private class Listener implements BinaryBufferListener {
+    @Override
+    public void onOpen() {
+      opened.release();
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+      received.release();
+    }
+
+    @Override
+    public void onMessage(String message) {
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      error.printStackTrace();
+    }
+
+    @Override
+    public void onClose() {
+    }
+  }
+}
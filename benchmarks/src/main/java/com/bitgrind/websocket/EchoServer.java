@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import com.bitgrind.websocket.util.Base64;
+
+/**
+ * An RFC 6455 server on the loopback interface which echoes every message
+ * back, one thread per connection. It does as little as it can so that the
+ * client dominates what is measured: frames are unmasked in place and
+ * written back as they are.
+ */
+class EchoServer implements Closeable, Runnable {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ServerSocket serverSocket;
+  private final List<Socket> sockets = new ArrayList<Socket>();
+  /** Creates the connection threads; null for daemon platform threads. */
+  private final ThreadFactory threadFactory;
+
+  EchoServer() throws IOException {
+    this(null);
+  }
+
+  /**
+   * @param threadFactory creates the thread serving each connection, so
+   *        that a benchmark of many connections can serve them on virtual
+   *        threads; null for platform threads
+   */
+  EchoServer(ThreadFactory threadFactory) throws IOException {
+    this.threadFactory = threadFactory;
+    serverSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+    Thread thread = new Thread(this, "echo-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  String getUrl() {
+    return "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/echo";
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        return;
+      }
+      synchronized (sockets) {
+        sockets.add(socket);
+      }
+      Runnable connection = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            serve(socket);
+          } catch (IOException e) {
+            // connection dropped
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException e) {}
+          }
+        }
+      };
+      Thread thread;
+      if (threadFactory != null) {
+        thread = threadFactory.newThread(connection);
+      } else {
+        thread = new Thread(connection, "echo-connection");
+        thread.setDaemon(true);
+      }
+      thread.start();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private static void serve(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+    String key = null;
+    String line;
+    while (!(line = readLine(in)).equals("")) {
+      if (line.regionMatches(true, 0, "Sec-WebSocket-Key:", 0, 18)) {
+        key = line.substring(18).trim();
+      }
+    }
+    out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+        "Upgrade: websocket\r\n" +
+        "Connection: Upgrade\r\n" +
+        "Sec-WebSocket-Accept: " + accept(key) + "\r\n" +
+        "\r\n").getBytes(UTF8));
+    out.flush();
+
+    byte[] payload = new byte[65536];
+    byte[] mask = new byte[4];
+    while (true) {
+      int b0 = in.read();
+      if (b0 == -1) {
+        return;
+      }
+      int b1 = in.readUnsignedByte();
+      long length = b1 & 0x7f;
+      if (length == 126) {
+        length = in.readUnsignedShort();
+      } else if (length == 127) {
+        length = in.readLong();
+      }
+      in.readFully(mask);
+      if (payload.length < length) {
+        payload = new byte[(int) length];
+      }
+      in.readFully(payload, 0, (int) length);
+      for (int i = 0; i < length; i++) {
+        payload[i] ^= mask[i & 3];
+      }
+
+      out.write(b0);
+      if (length < 126) {
+        out.write((int) length);
+      } else if (length < 65536) {
+        out.write(126);
+        out.write((int) length >> 8);
+        out.write((int) length);
+      } else {
+        out.write(127);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          out.write((int) (length >> shift));
+        }
+      }
+      out.write(payload, 0, (int) length);
+      // hold back the flush while more frames are already waiting
+      if (in.available() == 0) {
+        out.flush();
+      }
+      if ((b0 & 0x0f) == 0x8) {
+        out.flush();
+        return;
+      }
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1)
+        throw new IOException("Unexpected end of stream");
+      if (b != '\r')
+        line.append((char) b);
+    }
+    return line.toString();
+  }
+
+  private static String accept(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return Base64.encode(sha1.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(UTF8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Decodes a single frame per operation, as the reading thread would when a
+ * whole frame arrives in one read. Payloads are delivered to a handler which
+ * only touches them, so this measures framing and nothing else.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodeBenchmark {
+
+  @Param({ "HYBI_00", "RFC_6455" })
+  public Protocol protocol;
+
+  @Param({ "false", "true" })
+  public boolean binary;
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private FrameDecoder decoder;
+  private ByteBuffer frame;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) throws IOException {
+    byte[] payload = new byte[payloadSize];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) ('a' + i % 26);
+    }
+    FrameDecoder.Handler handler = new ConsumingHandler(blackhole);
+    if (protocol == Protocol.RFC_6455) {
+      frame = ByteBuffer.wrap(rfc6455Frame(binary ? 0x82 : 0x81, payload));
+      decoder = new Rfc6455FrameDecoder(handler, BufferPool.getDefault());
+    } else {
+      frame = ByteBuffer.wrap(hybi00Frame(binary, payload));
+      decoder = new Hybi00FrameDecoder(handler, BufferPool.getDefault());
+    }
+  }
+
+  @Benchmark
+  public void decode() throws IOException {
+    frame.rewind();
+    decoder.decode(frame);
+  }
+
+  static byte[] hybi00Frame(boolean binary, byte[] payload) {
+    Hybi00FrameEncoder encoder = new Hybi00FrameEncoder(BufferPool.getDefault());
+    OutboundFrame frame = binary ? encoder.encodeBinary(ByteBuffer.wrap(payload)) : encoder.encodeText(new String(
+        payload));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : frame.buffers) {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+
+  /** A frame as a server sends it: final and unmasked. */
+  static byte[] rfc6455Frame(int b0, byte[] payload) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(b0);
+    if (payload.length < 126) {
+      out.write(payload.length);
+    } else if (payload.length < 65536) {
+      out.write(126);
+      out.write(payload.length >> 8);
+      out.write(payload.length);
+    } else {
+      out.write(127);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) ((long) payload.length >> shift));
+      }
+    }
+    out.write(payload, 0, payload.length);
+    return out.toByteArray();
+  }
+
+  private static class ConsumingHandler implements FrameDecoder.Handler {
+    private final Blackhole blackhole;
+
+    ConsumingHandler(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onTextMessage(ByteBuffer payload) {
+      blackhole.consume(payload.get(payload.limit() - 1));
+    }
+
+    @Override
+    public void onBinaryMessage(ByteBuffer payload) {
+      blackhole.consume(payload.get(payload.limit() - 1));
+    }
+
+    @Override
+    public void onMessageStart(boolean binary) {
+    }
+
+    @Override
+    public void onMessageChunk(ByteBuffer chunk) {
+    }
+
+    @Override
+    public void onMessageEnd() {
+    }
+
+    @Override
+    public void onPing(ByteBuffer payload) {
+    }
+
+    @Override
+    public void onPong(ByteBuffer payload) {
+    }
+
+    @Override
+    public void onCloseFrame() {
+    }
+  }
+}
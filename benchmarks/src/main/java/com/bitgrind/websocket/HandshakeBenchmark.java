@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds opening handshake requests: key generation, the expected answer,
+ * and the request bytes. Run with several threads as well, since every
+ * connection of a bulk connect goes through here at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+  private URI uri;
+
+  @Setup
+  public void setUp() throws URISyntaxException {
+    uri = WebSocketClient.toWebSocketUri("ws://example.com:8080/demo");
+  }
+
+  @Benchmark
+  public ByteBuffer hybi00() {
+    return new Hybi00Handshake(uri).getRequest();
+  }
+
+  @Benchmark
+  public ByteBuffer rfc6455() {
+    return new Rfc6455Handshake(uri).getRequest();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public ByteBuffer hybi00Contended() {
+    return new Hybi00Handshake(uri).getRequest();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public ByteBuffer rfc6455Contended() {
+    return new Rfc6455Handshake(uri).getRequest();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses handshake responses of the kind real servers send, the way the
+ * blocking client reads them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseParserBenchmark {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final String HYBI_00 = "HTTP/1.1 101 WebSocket Protocol Handshake\r\n" +
+      "Upgrade: WebSocket\r\n" +
+      "Connection: Upgrade\r\n" +
+      "Sec-WebSocket-Origin: http://example.com\r\n" +
+      "Sec-WebSocket-Location: ws://example.com/demo\r\n" +
+      "Sec-WebSocket-Protocol: sample\r\n" +
+      "\r\n" +
+      "8jKS'y:G*Co,Wxa-";
+
+  static final String RFC_6455 = "HTTP/1.1 101 Switching Protocols\r\n" +
+      "Server: nginx/1.25.3\r\n" +
+      "Date: Tue, 14 Nov 2023 09:12:44 GMT\r\n" +
+      "Connection: upgrade\r\n" +
+      "Upgrade: websocket\r\n" +
+      "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n" +
+      "Sec-WebSocket-Extensions: permessage-deflate; client_no_context_takeover; server_max_window_bits=15\r\n" +
+      "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n" +
+      "X-Request-Id: 6f1c2a9e-1d4b-4f0e-9a57-3c8e2b7d4a10\r\n" +
+      "\r\n";
+
+  @Param({ "HYBI_00", "RFC_6455" })
+  public String response;
+
+  private byte[] bytes;
+
+  @Setup
+  public void setUp() {
+    bytes = (response.equals("HYBI_00") ? HYBI_00 : RFC_6455).getBytes(UTF8);
+  }
+
+  @Benchmark
+  public int parse() throws IOException {
+    PushbackInputStream input = new PushbackInputStream(new ByteArrayInputStream(bytes),
+        HttpResponseParser.MAX_LENGTH);
+    HttpResponseParser parser = new HttpResponseParser();
+    try {
+      return parser.parse(input).getStatusCode();
+    } finally {
+      parser.release();
+    }
+  }
+
+  @Benchmark
+  public int parseBuffer() throws IOException {
+    HttpResponseParser parser = new HttpResponseParser();
+    try {
+      return parser.parse(ByteBuffer.wrap(bytes)).getStatusCode();
+    } finally {
+      parser.release();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+
+/**
+ * End to end through a real socket: a client sends binary messages to an
+ * {@link EchoServer} in the same process and waits for them to come back.
+ * {@link #throughput} keeps a window of messages in flight and reports
+ * messages per second; {@link #roundTrip} sends one at a time and reports
+ * latency percentiles.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+  private static final int WINDOW = 100;
+
+  /** BLOCKING for a thread per connection, SELECTOR for {@link SelectorEngine}. */
+  @Param({ "BLOCKING", "SELECTOR" })
+  public String transport;
+
+  @Param({ "16", "1024", "16384" })
+  public int payloadSize;
+
+  private EchoServer server;
+  private SelectorEngine engine;
+  private WebSocketClient client;
+  private byte[] payload;
+  private final Semaphore opened = new Semaphore(0);
+  private final Semaphore received = new Semaphore(0);
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new EchoServer();
+    payload = new byte[payloadSize];
+    WebSocketOptions options = new WebSocketOptions().setProtocol(Protocol.RFC_6455);
+    Listener listener = new Listener();
+    if (transport.equals("SELECTOR")) {
+      engine = new SelectorEngine(1);
+      client = engine.connect(server.getUrl(), listener, options);
+    } else {
+      client = new WebSocketClient(server.getUrl(), listener, options);
+    }
+    if (!opened.tryAcquire(10, TimeUnit.SECONDS))
+      throw new IOException("Connection did not open");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    client.close();
+    if (engine != null) {
+      engine.close();
+    }
+    server.close();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(WINDOW)
+  public void throughput() throws Exception {
+    for (int i = 0; i < WINDOW; i++) {
+      client.send(payload);
+    }
+    await(WINDOW);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void roundTrip() throws Exception {
+    client.send(payload);
+    await(1);
+  }
+
+  private void await(int messages) throws Exception {
+    if (!received.tryAcquire(messages, 10, TimeUnit.SECONDS))
+      throw new IOException("Echo timed out");
+  }
+
+  private class Listener implements BinaryBufferListener {
+    @Override
+    public void onOpen() {
+      opened.release();
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+      received.release();
+    }
+
+    @Override
+    public void onMessage(String message) {
+      received.release();
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      error.printStackTrace();
+    }
+
+    @Override
+    public void onClose() {
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes text message payloads with the connection's reusable decoder,
+ * against {@code new String(bytes, UTF-8)} as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8DecodeBenchmark {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The kind of text: plain ASCII, mostly ASCII with accents, or CJK. */
+  @Param({ "ascii", "latin", "cjk" })
+  public String text;
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private final Utf8Decoder decoder = new Utf8Decoder();
+  private byte[] bytes;
+  private ByteBuffer payload;
+
+  @Setup
+  public void setUp() {
+    String unit = text.equals("ascii") ? "hello, world " : text.equals("latin") ? "d\u00e9j\u00e0 vu, na\u00efve "
+        : "\u4f60\u597d\u4e16\u754c";
+    StringBuilder s = new StringBuilder();
+    while (s.toString().getBytes(UTF8).length < payloadSize) {
+      s.append(unit);
+    }
+    bytes = s.toString().getBytes(UTF8);
+    payload = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  @Benchmark
+  public CharBuffer utf8Decoder() throws CharacterCodingException {
+    payload.rewind();
+    return decoder.decode(payload);
+  }
+
+  @Benchmark
+  public String newString() {
+    return new String(bytes, UTF8);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * A snapshot of the permessage-deflate counters of one connection. Byte
+ * counts cover message payloads only, not frame headers. Times are the CPU
+ * time of the thread calling into the compressor, so a thread descheduled
+ * mid-message is not charged for the wait. Where the JVM does not support
+ * thread CPU time, or has it disabled, elapsed time is measured instead.
+ */
+public class CompressionStats {
+  private final long uncompressedSent;
+  private final long compressedSent;
+  private final long deflateNanos;
+  private final long uncompressedReceived;
+  private final long compressedReceived;
+  private final long inflateNanos;
+
+  CompressionStats(long uncompressedSent, long compressedSent, long deflateNanos, long uncompressedReceived,
+      long compressedReceived, long inflateNanos) {
+    this.uncompressedSent = uncompressedSent;
+    this.compressedSent = compressedSent;
+    this.deflateNanos = deflateNanos;
+    this.uncompressedReceived = uncompressedReceived;
+    this.compressedReceived = compressedReceived;
+    this.inflateNanos = inflateNanos;
+  }
+
+  /** The size of the messages compressed for sending. */
+  public long getUncompressedBytesSent() {
+    return uncompressedSent;
+  }
+
+  /** The size those messages were compressed to. */
+  public long getCompressedBytesSent() {
+    return compressedSent;
+  }
+
+  /** The CPU time spent compressing, in nanoseconds. */
+  public long getDeflateNanos() {
+    return deflateNanos;
+  }
+
+  /** The size of the compressed messages received, once inflated. */
+  public long getUncompressedBytesReceived() {
+    return uncompressedReceived;
+  }
+
+  /** The size of the compressed messages received, as received. */
+  public long getCompressedBytesReceived() {
+    return compressedReceived;
+  }
+
+  /** The CPU time spent decompressing, in nanoseconds. */
+  public long getInflateNanos() {
+    return inflateNanos;
+  }
+
+  /** Compressed size over uncompressed size of sent messages; 1 if none were sent. */
+  public double getSendRatio() {
+    return ratio(compressedSent, uncompressedSent);
+  }
+
+  /** Compressed size over uncompressed size of received messages; 1 if none were received. */
+  public double getReceiveRatio() {
+    return ratio(compressedReceived, uncompressedReceived);
+  }
+
+  private static double ratio(long compressed, long uncompressed) {
+    return uncompressed == 0 ? 1.0 : (double) compressed / uncompressed;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("CompressionStats [sent=%s/%s, deflateNanos=%s, received=%s/%s, inflateNanos=%s]",
+        compressedSent, uncompressedSent, deflateNanos, compressedReceived, uncompressedReceived, inflateNanos);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.WebSocketClient.KeyExtractor;
+
+/**
+ * Delivers only the newest message for each key. The reading thread puts each
+ * message into a concurrent map under the key its {@link KeyExtractor}
+ * gives, replacing any message for that key which has not been delivered
+ * yet, and queues the key the first time it becomes pending. A single
+ * dispatch thread takes keys from the queue in that order and delivers
+ * whatever is in the map for each. However far the listener falls behind,
+ * what is held is one message per key.
+ * <p>
+ * A message whose key is null is never replaced; each is queued under a
+ * key of its own, so those are not bounded.
+ */
+class ConflatingDispatcher implements Dispatcher {
+  private static final Logger logger = Logger.getLogger(ConflatingDispatcher.class.getName());
+
+  private static final int TEXT = 0;
+  private static final int BINARY = 1;
+  private static final int CLOSE = 2;
+  private static final int ERROR = 3;
+  /** Ends dispatch without telling the listener. */
+  private static final int STOP = 4;
+
+  private static final AtomicInteger threadNumber = new AtomicInteger();
+
+  /** A pending message, or the end of the connection. */
+  private static class Message {
+    final int type;
+    final byte[] data;
+    final Throwable error;
+    final long published = System.nanoTime();
+
+    Message(int type, byte[] data, Throwable error) {
+      this.type = type;
+      this.data = data;
+      this.error = error;
+    }
+  }
+
+  /** Queued in place of a key to mark the end of the connection. */
+  private final Object endKey = new Object();
+
+  private final Sink sink;
+  private final Histogram latency;
+  private final KeyExtractor keyExtractor;
+  private final ConcurrentMap<Object, Message> pending = new ConcurrentHashMap<Object, Message>();
+  private final Queue<Object> keys = new ConcurrentLinkedQueue<Object>();
+  private final Thread consumer;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong conflated = new AtomicLong();
+  private volatile boolean sleeping;
+  private boolean ended;
+
+  /**
+   * @param latency records how long each delivered message waited since it
+   *        was published, if not null; the time those it replaced waited is
+   *        not counted
+   */
+  ConflatingDispatcher(Sink sink, Histogram latency, KeyExtractor keyExtractor) {
+    this.sink = sink;
+    this.latency = latency;
+    this.keyExtractor = keyExtractor;
+    consumer = new Thread(new Consumer(), "websocket-conflate-" + threadNumber.incrementAndGet());
+    consumer.setDaemon(true);
+  }
+
+  @Override
+  public void start() {
+    consumer.start();
+  }
+
+  /** The capacity is reported as zero, since the map is bounded by the keys rather than a size. */
+  @Override
+  public DispatchStats getStats() {
+    return new DispatchStats(0, pending.size(), published.get(), conflated.get());
+  }
+
+  @Override
+  public void publishText(ByteBuffer payload) {
+    publish(TEXT, payload);
+  }
+
+  @Override
+  public void publishBinary(ByteBuffer payload) {
+    publish(BINARY, payload);
+  }
+
+  @Override
+  public void publishClose() {
+    end(CLOSE, null);
+  }
+
+  @Override
+  public void publishError(Throwable error) {
+    end(ERROR, error);
+  }
+
+  @Override
+  public void finish() {
+    end(STOP, null);
+  }
+
+  private void publish(int type, ByteBuffer payload) {
+    if (ended) {
+      sink.released(payload.remaining());
+      return;
+    }
+    Object key = keyExtractor.keyOf(payload.asReadOnlyBuffer(), type == BINARY);
+    if (key == null) {
+      key = new Object();
+    }
+    byte[] data = new byte[payload.remaining()];
+    int position = payload.position();
+    payload.get(data);
+    payload.position(position);
+    published.incrementAndGet();
+    Message replaced = pending.put(key, new Message(type, data, null));
+    if (replaced == null) {
+      keys.add(key);
+    } else {
+      conflated.incrementAndGet();
+      sink.released(replaced.data.length);
+    }
+    signal();
+  }
+
+  private void end(int type, Throwable error) {
+    if (ended) {
+      return;
+    }
+    ended = true;
+    pending.put(endKey, new Message(type, null, error));
+    keys.add(endKey);
+    signal();
+  }
+
+  private void signal() {
+    if (sleeping) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private class Consumer implements Runnable {
+    private final Utf8Decoder utf8 = new Utf8Decoder();
+
+    @Override
+    public void run() {
+      while (true) {
+        Object key = keys.poll();
+        if (key == null) {
+          sleeping = true;
+          if (keys.isEmpty()) {
+            LockSupport.park(this);
+          }
+          sleeping = false;
+          continue;
+        }
+        Message message = pending.remove(key);
+        switch (message.type) {
+          case CLOSE:
+            sink.deliverClose();
+            return;
+          case ERROR:
+            sink.deliverError(message.error);
+            return;
+          case STOP:
+            return;
+          default:
+            deliver(message);
+        }
+      }
+    }
+
+    private void deliver(Message message) {
+      sink.released(message.data.length);
+      if (latency != null) {
+        latency.record(System.nanoTime() - message.published);
+      }
+      try {
+        ByteBuffer payload = ByteBuffer.wrap(message.data);
+        if (message.type == BINARY) {
+          sink.deliverBinary(payload.asReadOnlyBuffer());
+        } else {
+          sink.deliverText(payload, utf8);
+        }
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Listener failed", e);
+        sink.deliverError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * A snapshot of the dispatch stage of one connection. An occupancy which
+ * stays near the capacity means the listener is not keeping up.
+ * <p>
+ * Under conflation the capacity is zero, since what is held is bounded by
+ * the number of keys; the occupancy is the number of keys pending, and a
+ * message counts as dropped when a newer one with the same key replaces it.
+ */
+public class DispatchStats {
+  private final int capacity;
+  private final int occupancy;
+  private final long published;
+  private final long dropped;
+
+  DispatchStats(int capacity, int occupancy, long published, long dropped) {
+    this.capacity = capacity;
+    this.occupancy = occupancy;
+    this.published = published;
+    this.dropped = dropped;
+  }
+
+  /** The number of slots in the ring, or zero under conflation. */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** The number of messages waiting for a dispatch thread. */
+  public int getOccupancy() {
+    return occupancy;
+  }
+
+  /** The number of messages put into the ring. */
+  public long getPublished() {
+    return published;
+  }
+
+  /** The number of messages discarded under a drop policy, or replaced under conflation. */
+  public long getDropped() {
+    return dropped;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DispatchStats [occupancy=%s/%s, published=%s, dropped=%s]", occupancy, capacity, published,
+        dropped);
+  }
+}
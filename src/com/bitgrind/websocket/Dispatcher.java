@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stage between a connection's reading thread and its listener which
+ * delivers messages on threads of its own. The reading thread publishes;
+ * payloads are only valid during the call, so they are copied. The end of
+ * the connection is published too, and delivered after the messages
+ * published before it.
+ */
+interface Dispatcher {
+
+  /** Receives the messages, on a dispatch thread. */
+  interface Sink {
+    void deliverText(ByteBuffer payload, Utf8Decoder utf8) throws Exception;
+    void deliverBinary(ByteBuffer payload) throws Exception;
+    void deliverClose();
+    void deliverError(Throwable error);
+
+    /**
+     * Reports that a published payload of {@code bytes} is no longer held,
+     * having been delivered, dropped or replaced. Called on any thread.
+     */
+    void released(int bytes);
+  }
+
+  /** Starts the dispatch threads. */
+  void start();
+
+  DispatchStats getStats();
+
+  void publishText(ByteBuffer payload);
+
+  void publishBinary(ByteBuffer payload);
+
+  /** Publishes the close; nothing may be published after it. */
+  void publishClose();
+
+  /** Publishes the error; nothing may be published after it. */
+  void publishError(Throwable error);
+
+  /**
+   * Stops the dispatch threads once they have delivered everything already
+   * published, unless a close or an error has been published already.
+   */
+  void finish();
+}
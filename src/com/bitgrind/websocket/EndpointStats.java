@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * A snapshot of how one endpoint of a {@link HedgedSubscription} is doing
+ * against the others. An endpoint which is rarely first and whose lag is
+ * high adds nothing but load.
+ */
+public class EndpointStats {
+  private final String url;
+  private final boolean open;
+  private final boolean dropped;
+  private final long first;
+  private final long late;
+  private final HistogramSnapshot lag;
+
+  EndpointStats(String url, boolean open, boolean dropped, long first, long late, HistogramSnapshot lag) {
+    this.url = url;
+    this.open = open;
+    this.dropped = dropped;
+    this.first = first;
+    this.late = late;
+    this.lag = lag;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  /** Whether the endpoint was closed for being persistently slow. */
+  public boolean isDropped() {
+    return dropped;
+  }
+
+  /** The number of messages this endpoint delivered before any other. */
+  public long getFirst() {
+    return first;
+  }
+
+  /** The number of messages which had already arrived from another endpoint. */
+  public long getLate() {
+    return late;
+  }
+
+  /** How far behind the first copy each late copy arrived, in nanoseconds. */
+  public HistogramSnapshot getLag() {
+    return lag;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("EndpointStats [url=%s, open=%s, dropped=%s, first=%s, late=%s, lag p50=%s]", url, open,
+        dropped, first, late, lag.getP50());
+  }
+}
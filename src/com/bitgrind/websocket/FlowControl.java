@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a connection may read from its socket. Reading is
+ * suspended while the application has paused it, while it has no demand
+ * for more messages, or while the dispatch stage holds more than the high
+ * watermark of bytes, until that falls to the low watermark. A suspended
+ * connection leaves bytes in the socket's receive buffer, so TCP's own
+ * flow control slows the server down.
+ * <p>
+ * The frame decoders check {@link #suspended} between messages, so no
+ * message is delivered beyond the demand, and the transport stops reading
+ * until it is woken. Any thread may change the state; the transport's
+ * wake-up is called whenever reading may resume.
+ */
+class FlowControl {
+  /** Demand which is never used up. */
+  static final long UNBOUNDED = Long.MAX_VALUE;
+
+  private final long lowWatermark;
+  private final long highWatermark;
+  private final AtomicLong demand;
+  private final AtomicLong buffered = new AtomicLong();
+  private volatile boolean paused;
+  private volatile boolean full;
+  private volatile boolean disabled;
+  private volatile Runnable wakeup;
+
+  FlowControl() {
+    this(UNBOUNDED, 0, 0);
+  }
+
+  /**
+   * @param demand the number of messages which may be delivered before
+   *        more are requested, or {@link #UNBOUNDED}
+   * @param highWatermark the buffered bytes at which to suspend reading, or
+   *        zero for no limit
+   */
+  FlowControl(long demand, long lowWatermark, long highWatermark) {
+    this.demand = new AtomicLong(demand);
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+  }
+
+  /** Sets what the transport runs, on any thread, when reading may resume. */
+  void setWakeup(Runnable wakeup) {
+    this.wakeup = wakeup;
+  }
+
+  boolean suspended() {
+    return !disabled && (paused || full || demand.get() == 0);
+  }
+
+  boolean isPaused() {
+    return paused;
+  }
+
+  void pause() {
+    paused = true;
+  }
+
+  void resume() {
+    paused = false;
+    wake();
+  }
+
+  void request(long n) {
+    if (n <= 0)
+      throw new IllegalArgumentException("n must be positive");
+    long current;
+    long next;
+    do {
+      current = demand.get();
+      next = current + n < 0 ? UNBOUNDED : current + n;
+    } while (!demand.compareAndSet(current, next));
+    if (current == 0) {
+      wake();
+    }
+  }
+
+  /** Uses up one message of the demand. */
+  void consumed() {
+    long current;
+    do {
+      current = demand.get();
+    } while (current != UNBOUNDED && current > 0 && !demand.compareAndSet(current, current - 1));
+  }
+
+  /** Counts bytes held by the dispatch stage. Called on the reading thread. */
+  void buffered(int bytes) {
+    if (buffered.addAndGet(bytes) > highWatermark && highWatermark > 0) {
+      full = true;
+      // a dispatch thread may have drained it before seeing full set
+      if (buffered.get() <= lowWatermark) {
+        full = false;
+      }
+    }
+  }
+
+  /** Counts bytes no longer held by the dispatch stage. */
+  void released(int bytes) {
+    if (buffered.addAndGet(-bytes) <= lowWatermark && full) {
+      full = false;
+      wake();
+    }
+  }
+
+  long getBufferedBytes() {
+    return buffered.get();
+  }
+
+  /** Stops suspending reading for good, so that the closing handshake can complete. */
+  void disable() {
+    disabled = true;
+    wake();
+  }
+
+  private void wake() {
+    Runnable wakeup = this.wakeup;
+    if (wakeup != null) {
+      wakeup.run();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Base class for the incremental frame decoders of each protocol version.
+ * Bytes are pushed in as they arrive from the socket, in chunks of any size.
+ * Messages which arrive entirely within a single chunk are handed to the
+ * {@link Handler} as a view of that chunk without being copied; messages
+ * which span chunks or frames are accumulated in a buffer borrowed from a
+ * {@link BufferPool}. Small reassembly buffers are kept for the next
+ * message, large ones go back to the pool as soon as the message is
+ * delivered, and {@link #release} returns whatever is left when the
+ * connection closes.
+ * <p>
+ * Payload buffers passed to the handler are only valid for the duration of
+ * the callback. Binary payloads are read-only, so they can be passed on to
+ * application code as they are; the view objects themselves are reused, so
+ * decoding allocates nothing per frame.
+ * <p>
+ * Messages larger than the maximum message size are never buffered whole.
+ * Depending on the {@link OversizePolicy} they fail the connection, are cut
+ * short, or are passed to the handler in read-only chunks as they arrive,
+ * between {@link Handler#onMessageStart} and {@link Handler#onMessageEnd}.
+ */
+abstract class FrameDecoder {
+
+  interface Handler {
+    void onTextMessage(ByteBuffer payload) throws IOException;
+    void onBinaryMessage(ByteBuffer payload) throws IOException;
+    void onMessageStart(boolean binary) throws IOException;
+    void onMessageChunk(ByteBuffer chunk) throws IOException;
+    void onMessageEnd() throws IOException;
+    void onPing(ByteBuffer payload) throws IOException;
+    void onPong(ByteBuffer payload) throws IOException;
+    void onCloseFrame() throws IOException;
+  }
+
+  /** Reassembly buffers larger than this are not kept between messages. */
+  private static final int RETAIN_LIMIT = 65536;
+  /** The most a declared length reserves beyond the bytes which have arrived. */
+  private static final int RESERVE_LIMIT = 65536;
+
+  final Handler handler;
+  final int maxMessageSize;
+  final OversizePolicy oversizePolicy;
+  private final BufferPool pool;
+  private ByteBuffer messageBuffer;
+  private ByteBuffer view;
+  private ByteBuffer readOnlyView;
+  private ByteBuffer viewSource;
+  private ByteBuffer readOnlyMessage;
+  private FlowControl flow;
+
+  FrameDecoder(Handler handler, BufferPool pool, int maxMessageSize, OversizePolicy oversizePolicy) {
+    this.handler = handler;
+    this.pool = pool;
+    this.maxMessageSize = maxMessageSize;
+    this.oversizePolicy = oversizePolicy;
+  }
+
+  /**
+   * Consumes all remaining bytes of {@code in}, calling the handler for each
+   * message completed along the way. Partial frames are retained until the
+   * next call. If flow control suspends reading, this returns as soon as the
+   * handler returns, with the rest of {@code in} unconsumed; the caller
+   * passes it in again once reading resumes.
+   */
+  abstract void decode(ByteBuffer in) throws IOException;
+
+  void setFlowControl(FlowControl flow) {
+    this.flow = flow;
+  }
+
+  /** Whether to stop decoding, leaving the rest of the input for later. */
+  boolean suspended() {
+    return flow != null && flow.suspended();
+  }
+
+  /**
+   * Inflates messages marked as compressed from now on. Only protocols which
+   * can negotiate compression support this.
+   */
+  void setDeflate(PerMessageDeflate deflate) {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Returns the reassembly buffer, if any, to the pool. */
+  void release() {
+    pool.release(messageBuffer);
+    messageBuffer = null;
+    readOnlyMessage = null;
+  }
+
+  /** The number of bytes of the current message buffered so far. */
+  int buffered() {
+    return messageBuffer == null ? 0 : messageBuffer.position();
+  }
+
+  /**
+   * Returns a view of {@code in} between {@code start} and {@code end}. The
+   * view objects are reused for as long as the caller keeps passing the same
+   * input buffer, which is the usual case.
+   */
+  ByteBuffer view(ByteBuffer in, int start, int end, boolean readOnly) {
+    if (viewSource != in) {
+      view = in.duplicate();
+      readOnlyView = in.asReadOnlyBuffer();
+      viewSource = in;
+    }
+    ByteBuffer result = readOnly ? readOnlyView : view;
+    result.limit(in.limit());
+    result.position(start);
+    result.limit(end);
+    return result;
+  }
+
+  /**
+   * Delivers the buffered text message. A truncated message is cut back to
+   * the last complete character.
+   */
+  void deliverText(boolean truncated) throws IOException {
+    ensureCapacity(0);
+    messageBuffer.flip();
+    if (truncated) {
+      messageBuffer.limit(utf8Boundary(messageBuffer));
+    }
+    try {
+      handler.onTextMessage(messageBuffer);
+    } finally {
+      messageBuffer.clear();
+      trim();
+    }
+  }
+
+  /** Delivers the buffered binary message as a read-only view. */
+  void deliverBinary() throws IOException {
+    ensureCapacity(0);
+    try {
+      handler.onBinaryMessage(readOnlyMessage());
+    } finally {
+      trim();
+    }
+  }
+
+  /** Passes anything buffered so far on as the first chunk of a stream. */
+  void deliverBufferedChunk() throws IOException {
+    if (buffered() > 0) {
+      try {
+        handler.onMessageChunk(readOnlyMessage());
+      } finally {
+        trim();
+      }
+    }
+  }
+
+  /** Copies {@code count} bytes from {@code in} to the message buffer. */
+  void append(ByteBuffer in, int count) {
+    ensureCapacity(buffered() + count);
+    int limit = in.limit();
+    in.limit(in.position() + count);
+    messageBuffer.put(in);
+    in.limit(limit);
+  }
+
+  /**
+   * Sizes the message buffer for the {@code expected} bytes a frame header
+   * declares, but reserves no more than {@link #RESERVE_LIMIT} ahead of what
+   * has arrived: the length is the server's word, and a forged one must not
+   * force a huge allocation. Beyond that the buffer grows as the bytes come.
+   */
+  void reserve(long expected) {
+    ensureCapacity((int) Math.min(expected, buffered() + (long) RESERVE_LIMIT));
+  }
+
+  /**
+   * Ensures the message buffer can hold {@code minCapacity} bytes, moving
+   * its contents to a larger pooled buffer if need be. Pool size classes are
+   * powers of two, so a message which keeps growing is copied a logarithmic
+   * number of times.
+   */
+  void ensureCapacity(int minCapacity) {
+    if (messageBuffer != null && messageBuffer.capacity() >= minCapacity) {
+      return;
+    }
+    ByteBuffer resized = pool.acquire(minCapacity);
+    if (messageBuffer != null) {
+      messageBuffer.flip();
+      resized.put(messageBuffer);
+      pool.release(messageBuffer);
+    }
+    messageBuffer = resized;
+    readOnlyMessage = null;
+  }
+
+  IOException tooLarge() {
+    return new IOException("Message exceeds the maximum size of " + maxMessageSize + " bytes");
+  }
+
+  /**
+   * Returns a read-only view of the complete message in the message buffer,
+   * and clears the buffer for the next one.
+   */
+  private ByteBuffer readOnlyMessage() {
+    if (readOnlyMessage == null) {
+      readOnlyMessage = messageBuffer.asReadOnlyBuffer();
+    }
+    readOnlyMessage.limit(messageBuffer.position());
+    readOnlyMessage.position(0);
+    messageBuffer.clear();
+    return readOnlyMessage;
+  }
+
+  /** Gives an oversized reassembly buffer back once its message is done. */
+  private void trim() {
+    if (messageBuffer != null && messageBuffer.capacity() > RETAIN_LIMIT) {
+      release();
+    }
+  }
+
+  /**
+   * Returns the limit at which {@code text} should be cut so that it does not
+   * end part way through a UTF-8 sequence.
+   */
+  static int utf8Boundary(ByteBuffer text) {
+    int limit = text.limit();
+    int lead = limit - 1;
+    while (lead >= 0 && lead > limit - 4 && (text.get(lead) & 0xc0) == 0x80) {
+      lead--;
+    }
+    if (lead < 0) {
+      return limit;
+    }
+    int b = text.get(lead) & 0xff;
+    int sequence = b < 0x80 ? 1 : b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+    return lead + sequence > limit ? lead : limit;
+  }
+
+  static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+    if (buffer.hasArray()) {
+      byte[] array = buffer.array();
+      int offset = buffer.arrayOffset();
+      for (int i = from + offset, end = to + offset; i < end; i++) {
+        if (array[i] == value) {
+          return i - offset;
+        }
+      }
+      return -1;
+    }
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Base class for the framing of outgoing messages in each protocol version.
+ * Text is encoded to UTF-8 directly into its frame, in a heap buffer
+ * borrowed from a {@link BufferPool} which the {@link FrameWriter} returns
+ * once it is written. Implementations are safe for use by many threads at
+ * once.
+ */
+abstract class FrameEncoder {
+  final BufferPool pool;
+
+  /** @param pool a pool of heap buffers */
+  FrameEncoder(BufferPool pool) {
+    if (pool.isDirect())
+      throw new IllegalArgumentException("FrameEncoder requires a heap buffer pool");
+    this.pool = pool;
+  }
+
+  abstract OutboundFrame encodeText(CharSequence message);
+
+  /** Frames the remaining bytes of {@code payload}, which must not be modified afterwards. */
+  abstract OutboundFrame encodeBinary(ByteBuffer payload);
+
+  abstract OutboundFrame encodeClose();
+
+  /** Returns the answer to a ping; the payload is copied. */
+  abstract OutboundFrame encodePong(ByteBuffer payload);
+
+  /** Returns a ping with an empty payload. */
+  abstract OutboundFrame encodePing();
+
+  /** Frames a message encoded in advance, uncompressed. */
+  abstract OutboundFrame encode(PreparedFrame frame);
+
+  /**
+   * Frames a text message compressed with {@code deflate}. Only protocols
+   * which can negotiate compression support this.
+   */
+  OutboundFrame encodeText(CharSequence message, PerMessageDeflate deflate) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Frames a binary message compressed with {@code deflate}; the payload is
+   * not modified. Only protocols which can negotiate compression support
+   * this.
+   */
+  OutboundFrame encodeBinary(ByteBuffer payload, PerMessageDeflate deflate) {
+    throw new UnsupportedOperationException();
+  }
+
+  static int utf8Length(CharSequence s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes += 1;
+        } else if (!isSurrogate(c)) {
+          bytes += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          // four bytes for the pair of chars
+          bytes += 2;
+          i++;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes {@code s} as UTF-8 into {@code dst} starting at {@code offset},
+   * which must have room for {@link #utf8Length} bytes. Unpaired surrogates
+   * are replaced with '?', as {@link String#getBytes} does.
+   */
+  static int encodeUtf8(CharSequence s, byte[] dst, int offset) {
+    int length = s.length();
+    int p = offset;
+    int i = 0;
+    // ASCII fast path
+    while (i < length) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        break;
+      }
+      dst[p++] = (byte) c;
+      i++;
+    }
+    for (; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        dst[p++] = (byte) c;
+      } else if (c < 0x800) {
+        dst[p++] = (byte) (0xc0 | (c >> 6));
+        dst[p++] = (byte) (0x80 | (c & 0x3f));
+      } else if (isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          dst[p++] = (byte) (0xf0 | (cp >> 18));
+          dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          dst[p++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+          dst[p++] = '?';
+        }
+      } else {
+        dst[p++] = (byte) (0xe0 | (c >> 12));
+        dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        dst[p++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return p - offset;
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+}
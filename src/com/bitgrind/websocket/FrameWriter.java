@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Queues outgoing frames and writes them in batches. Any number of threads
+ * may {@link #enqueue} and {@link #flush}; only one flushes at a time, and it
+ * writes everything queued so far, including frames queued by the others,
+ * with one gathering write per batch. A burst of small messages therefore
+ * costs a few system calls rather than one each. Buffers borrowed from a pool
+ * are returned to it as soon as they have been written.
+ */
+class FrameWriter {
+  /** The most buffers handed to a single gathering write. */
+  static final int MAX_BATCH = 64;
+
+  private final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<OutboundFrame>();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private final Metrics metrics;
+  /** When bytes were last written, by {@link System#nanoTime}. */
+  private volatile long lastWrite = System.nanoTime();
+
+  // Guarded by flushing: the batch currently being written.
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+  private final BufferPool[] pools = new BufferPool[MAX_BATCH];
+  private int offset;
+  private int count;
+
+  FrameWriter() {
+    this(new Metrics(false));
+  }
+
+  /** @param metrics counts the bytes written */
+  FrameWriter(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** Returns when bytes were last written, by {@link System#nanoTime}. */
+  long lastWrite() {
+    return lastWrite;
+  }
+
+  /** Queues a frame, made up of one or more buffers which are kept together. */
+  void enqueue(OutboundFrame frame) {
+    if (frame.buffers.length > MAX_BATCH)
+      throw new IllegalArgumentException("Frame has too many parts");
+    queue.add(frame);
+  }
+
+  /**
+   * Writes queued frames to {@code channel} until none remain or, for a
+   * non-blocking channel, until it stops accepting bytes. If another thread
+   * is already flushing this returns immediately, since that thread will
+   * write whatever has been queued.
+   *
+   * @return false if frames remain because the channel would not take them;
+   *         the caller should flush again once it is writable
+   */
+  boolean flush(GatheringByteChannel channel) throws IOException {
+    while (flushing.compareAndSet(false, true)) {
+      try {
+        if (!drain(channel)) {
+          return false;
+        }
+      } finally {
+        flushing.set(false);
+      }
+      // a frame queued while we were finishing is ours to write
+      if (queue.isEmpty()) {
+        break;
+      }
+    }
+    return true;
+  }
+
+  private boolean drain(GatheringByteChannel channel) throws IOException {
+    while (true) {
+      if (offset == count) {
+        fill();
+        if (count == 0) {
+          return true;
+        }
+      }
+      long written = channel.write(batch, offset, count - offset);
+      metrics.bytesSent.add(written);
+      if (written > 0) {
+        lastWrite = System.nanoTime();
+      }
+      while (offset < count && !batch[offset].hasRemaining()) {
+        if (pools[offset] != null) {
+          pools[offset].release(batch[offset]);
+          pools[offset] = null;
+        }
+        batch[offset++] = null;
+      }
+      if (offset < count && written == 0) {
+        return false;
+      }
+    }
+  }
+
+  private void fill() {
+    offset = 0;
+    count = 0;
+    OutboundFrame frame;
+    while ((frame = queue.peek()) != null && count + frame.buffers.length <= MAX_BATCH) {
+      queue.poll();
+      for (ByteBuffer buffer : frame.buffers) {
+        pools[count] = frame.pool;
+        batch[count++] = buffer;
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * The client side of an opening handshake for one protocol version. Holds no
+ * I/O of its own so that it can be driven by both the blocking and the
+ * non-blocking connection code: they write {@link #getRequest()}, read the
+ * response headers followed by {@link #getResponseLength()} more bytes, and
+ * pass both to {@link #verify}.
+ */
+abstract class Handshake {
+
+  /**
+   * Returns the complete request, ready to be written. Each call returns a
+   * new view positioned at the start.
+   */
+  abstract ByteBuffer getRequest();
+
+  /** The number of bytes which follow the response headers. */
+  abstract int getResponseLength();
+
+  /**
+   * Checks the server's response.
+   *
+   * @param body the {@link #getResponseLength()} bytes after the headers
+   * @throws IOException if the server did not accept the connection
+   */
+  abstract void verify(HttpResponse response, byte[] body) throws IOException;
+
+  /**
+   * Returns the compression state for an extension negotiated by the
+   * handshake, or null if none was. Only meaningful once {@link #verify}
+   * has succeeded.
+   *
+   * @param pool a heap buffer pool for compressed output
+   */
+  PerMessageDeflate newDeflate(BufferPool pool) {
+    return null;
+  }
+
+  /**
+   * Returns a per-thread instance of a digest, so that connections opened
+   * concurrently neither share one nor each create their own.
+   */
+  static ThreadLocal<MessageDigest> threadDigest(final String algorithm) {
+    return new ThreadLocal<MessageDigest>() {
+      @Override
+      protected MessageDigest initialValue() {
+        try {
+          return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+  }
+}
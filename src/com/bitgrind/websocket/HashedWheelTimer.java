@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timer for large numbers of coarse timeouts, such as the idle checks of
+ * every open connection. Timeouts are hashed into the buckets of a wheel
+ * which a single thread advances one bucket per tick, so scheduling and
+ * cancelling cost O(1) whatever the number of timeouts, and each tick only
+ * looks at the timeouts in one bucket. A timeout further away than one turn
+ * of the wheel counts down the turns it has left.
+ * <p>
+ * Timeouts fire up to one tick late. Tasks run on the timer thread and must
+ * not block; anything slow belongs on another thread.
+ */
+class HashedWheelTimer {
+  private static final Logger logger = Logger.getLogger(HashedWheelTimer.class.getName());
+
+  private static HashedWheelTimer defaultTimer;
+
+  /** A scheduled task. */
+  static class Timeout {
+    final Runnable task;
+    final long deadline;
+    private volatile boolean cancelled;
+    // owned by the timer thread
+    private long rounds;
+    private Timeout next;
+    private Timeout previous;
+
+    Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /** Stops the task from running, if it has not already. May be called from any thread. */
+    void cancel() {
+      cancelled = true;
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  /** The timeouts which hash to one bucket, in a doubly linked list. */
+  private static class Bucket {
+    Timeout head;
+
+    void add(Timeout timeout) {
+      timeout.next = head;
+      if (head != null) {
+        head.previous = timeout;
+      }
+      head = timeout;
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.previous != null) {
+        timeout.previous.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.next = null;
+      timeout.previous = null;
+    }
+  }
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  /** Timeouts scheduled since the last tick, waiting to be placed in the wheel. */
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+  private final Thread thread;
+  private final long start;
+  private volatile boolean running = true;
+  /** The number of ticks processed; owned by the timer thread. */
+  private long tick;
+
+  /**
+   * Returns a timer shared by every connection, with a tick of 100
+   * milliseconds. It must not be stopped.
+   */
+  static synchronized HashedWheelTimer getDefault() {
+    if (defaultTimer == null) {
+      defaultTimer = new HashedWheelTimer("websocket-timer", 100, 512);
+    }
+    return defaultTimer;
+  }
+
+  /**
+   * @param tickMillis the resolution of the timer
+   * @param wheelSize the number of buckets, rounded up to a power of two; a
+   *        wheel as long as the usual timeout keeps the buckets short
+   */
+  HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+    if (tickMillis < 1 || wheelSize < 1)
+      throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.start = System.nanoTime();
+    thread = new Thread(new Worker(), name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Runs {@code task} on the timer thread after {@code delayMillis}, unless cancelled first. */
+  Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    added.add(timeout);
+    return timeout;
+  }
+
+  /** Stops the timer thread. Timeouts which have not fired never will. */
+  void stop() {
+    running = false;
+    thread.interrupt();
+  }
+
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      while (running) {
+        long deadline = start + (tick + 1) * tickNanos;
+        long sleep = deadline - System.nanoTime();
+        if (sleep > 0) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(sleep);
+          } catch (InterruptedException e) {
+            continue;
+          }
+        }
+        placeAdded();
+        expire(wheel[(int) tick & mask], deadline);
+        tick++;
+      }
+    }
+
+    private void placeAdded() {
+      Timeout timeout;
+      while ((timeout = added.poll()) != null) {
+        if (timeout.cancelled) {
+          continue;
+        }
+        // the first tick whose deadline is at or after the timeout's
+        long ticks = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+        timeout.rounds = (ticks - tick) / wheel.length;
+        wheel[(int) ticks & mask].add(timeout);
+      }
+    }
+
+    private void expire(Bucket bucket, long now) {
+      Timeout timeout = bucket.head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.cancelled) {
+          bucket.remove(timeout);
+        } else if (timeout.rounds > 0) {
+          timeout.rounds--;
+        } else {
+          bucket.remove(timeout);
+          try {
+            timeout.task.run();
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Timer task failed", e);
+          }
+        }
+        timeout = next;
+      }
+    }
+  }
+}
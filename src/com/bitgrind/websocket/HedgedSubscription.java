@@ -0,0 +1,470 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketClient.CharSequenceListener;
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+
+/**
+ * Subscribes to the same feed on several mirror endpoints at once and
+ * delivers each message only once, from whichever endpoint it arrived on
+ * first, so the listener always sees the fastest path. Messages are matched
+ * by the id an {@link IdExtractor} gives them; the ids of the most recent
+ * messages are remembered in a window of bounded size, and a copy arriving
+ * after its id has left the window is delivered again.
+ * <p>
+ * How far behind the first copy each later copy arrives is recorded for its
+ * endpoint (see {@link #getStats}). An endpoint which is late on every one
+ * of a run of messages, by more than a given lag on average, can be dropped:
+ * its connection is closed and not reopened. The last endpoint still open
+ * is never dropped.
+ * <p>
+ * The listener sees a single stream: {@code onOpen} when the first endpoint
+ * opens, the messages one at a time, and {@code onClose} or
+ * {@code onError} only once every endpoint has ended. Messages are
+ * delivered on the thread of the endpoint which won them, in the order they
+ * were won. Only matching a copy against the window holds the lock the
+ * endpoints share; a listener which is slow to take a message holds up the
+ * endpoints with messages to deliver, but not those whose copies arrive too
+ * late to be delivered.
+ */
+public class HedgedSubscription implements Closeable {
+  private static final Logger logger = Logger.getLogger(HedgedSubscription.class.getName());
+
+  /** Identifies a message, so that its copies from different endpoints can be matched. */
+  public static interface IdExtractor {
+    /**
+     * Returns the id of a text message, or null if it cannot be matched, in
+     * which case every copy is delivered. The sequence is only valid until
+     * the method returns.
+     */
+    Object idOf(CharSequence text);
+
+    /** Returns the id of a binary message, or null. The payload is a read-only view. */
+    Object idOf(ByteBuffer binary);
+  }
+
+  private final SelectorEngine engine;
+  private final IdExtractor ids;
+  private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+  /** Held while calling the listener, so that it sees one stream. Never taken while holding this. */
+  private final Object delivery = new Object();
+  /** The ticket of the next message to deliver, guarded by delivery. */
+  private long turn;
+  /** The ticket of the next message won, guarded by this. */
+  private long tickets;
+  private WebSocketListener listener;
+  /** When each recent id first arrived, oldest first. Guarded by this. */
+  private Map<Object, Long> window;
+  private int windowSize = 4096;
+  private int slowStreak;
+  private long maxLagNanos;
+  private boolean opened;
+  private boolean ended;
+
+  /**
+   * @param engine the engine the connections are made with
+   * @param ids identifies each message
+   */
+  public HedgedSubscription(SelectorEngine engine, IdExtractor ids) {
+    this.engine = engine;
+    this.ids = ids;
+  }
+
+  /** Sets how many recent ids are remembered. Defaults to 4096. */
+  public synchronized HedgedSubscription setWindow(int windowSize) {
+    if (windowSize < 1)
+      throw new IllegalArgumentException("windowSize must be positive");
+    this.windowSize = windowSize;
+    return this;
+  }
+
+  /**
+   * Drops an endpoint once it has been late on {@code streak} messages in a
+   * row, by more than {@code maxLagMillis} on average. Defaults to never
+   * dropping endpoints.
+   */
+  public synchronized HedgedSubscription setDropSlowEndpoints(int streak, long maxLagMillis) {
+    if (streak < 1 || maxLagMillis < 0)
+      throw new IllegalArgumentException("Need streak > 0 and maxLagMillis >= 0");
+    this.slowStreak = streak;
+    this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+    return this;
+  }
+
+  /**
+   * Starts connecting to every endpoint. May only be called once.
+   *
+   * @throws IllegalStateException if already connected
+   */
+  public void connect(List<String> wsUrls, WebSocketListener listener, WebSocketOptions options)
+      throws IOException, URISyntaxException {
+    if (wsUrls.isEmpty())
+      throw new IllegalArgumentException("No endpoints");
+    synchronized (this) {
+      if (this.listener != null)
+        throw new IllegalStateException("Already connected");
+      this.listener = listener;
+      final int size = windowSize;
+      this.window = new LinkedHashMap<Object, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+          return size() > size;
+        }
+      };
+      for (String wsUrl : wsUrls) {
+        endpoints.add(new Endpoint(wsUrl));
+      }
+    }
+    for (Endpoint endpoint : endpoints) {
+      try {
+        endpoint.connected(engine.connect(endpoint.url, endpoint, options));
+      } catch (IOException e) {
+        endpoint.onError(e);
+      }
+    }
+  }
+
+  /**
+   * Sends a text message on every endpoint still open, such as the request
+   * which subscribes to the feed. Messages sent before an endpoint opens
+   * are held until it does.
+   */
+  public void send(String message) throws IOException {
+    for (Endpoint endpoint : endpoints()) {
+      if (live(endpoint)) {
+        endpoint.send(message);
+      }
+    }
+  }
+
+  /** Returns the statistics of each endpoint, in the order they were given. */
+  public synchronized List<EndpointStats> getStats() {
+    List<EndpointStats> stats = new ArrayList<EndpointStats>();
+    for (Endpoint endpoint : endpoints) {
+      stats.add(new EndpointStats(endpoint.url, endpoint.open, endpoint.dropped, endpoint.first, endpoint.late,
+          endpoint.lag.snapshot()));
+    }
+    return stats;
+  }
+
+  /** Closes every endpoint. The listener's {@code onClose} follows once they have all closed. */
+  @Override
+  public void close() {
+    for (Endpoint endpoint : endpoints()) {
+      endpoint.close();
+    }
+  }
+
+  private synchronized List<Endpoint> endpoints() {
+    return new ArrayList<Endpoint>(endpoints);
+  }
+
+  private synchronized boolean live(Endpoint endpoint) {
+    return !endpoint.dropped && !endpoint.ended;
+  }
+
+  /**
+   * Returns whether {@code endpoint} is first with the message {@code id},
+   * recording its lead or lag, and marking it dropped if it is too slow.
+   * Called holding this.
+   */
+  private boolean first(Endpoint endpoint, Object id) {
+    if (id == null) {
+      endpoint.first++;
+      return true;
+    }
+    long now = System.nanoTime();
+    Long arrived = window.get(id);
+    if (arrived == null) {
+      window.put(id, now);
+      endpoint.first++;
+      endpoint.streak = 0;
+      endpoint.streakLag = 0;
+      return true;
+    }
+    long lag = now - arrived;
+    endpoint.late++;
+    endpoint.lag.record(lag);
+    endpoint.streak++;
+    endpoint.streakLag += lag;
+    if (slowStreak > 0 && endpoint.streak >= slowStreak && endpoint.streakLag / endpoint.streak > maxLagNanos) {
+      for (Endpoint other : endpoints) {
+        if (other != endpoint && other.open && !other.dropped) {
+          logger.log(Level.INFO, "Dropping slow endpoint " + endpoint.url);
+          endpoint.dropped = true;
+          break;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the ticket under which the message {@code id} from
+   * {@code endpoint} is to be delivered, or -1 if it is not, closing the
+   * endpoint if that copy got it dropped. Tickets are handed out in the
+   * order the messages are won, and delivered in that order.
+   */
+  private long ticket(Endpoint endpoint, Object id) {
+    synchronized (this) {
+      if (endpoint.dropped) {
+        return -1;
+      }
+      if (first(endpoint, id)) {
+        return tickets++;
+      }
+      if (!endpoint.dropped) {
+        return -1;
+      }
+    }
+    endpoint.close();
+    return -1;
+  }
+
+  /** Waits, holding delivery, until it is the turn of {@code ticket}. */
+  private void awaitTurn(long ticket) {
+    boolean interrupted = false;
+    while (turn != ticket) {
+      try {
+        delivery.wait();
+      } catch (InterruptedException e) {
+        // every later message waits on this one, so it cannot give up
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Passes delivery on to the next ticket. Called holding delivery. */
+  private void nextTurn() {
+    turn++;
+    delivery.notifyAll();
+  }
+
+  private void receivedText(Endpoint endpoint, CharSequence text) {
+    long ticket = ticket(endpoint, ids.idOf(text));
+    if (ticket < 0) {
+      return;
+    }
+    synchronized (delivery) {
+      awaitTurn(ticket);
+      try {
+        if (listener instanceof CharSequenceListener) {
+          ((CharSequenceListener) listener).onMessage(text);
+        } else {
+          listener.onMessage(text.toString());
+        }
+      } finally {
+        nextTurn();
+      }
+    }
+  }
+
+  private void receivedBinary(Endpoint endpoint, ByteBuffer binary) {
+    int position = binary.position();
+    Object id = ids.idOf(binary);
+    binary.position(position);
+    long ticket = ticket(endpoint, id);
+    if (ticket < 0) {
+      return;
+    }
+    synchronized (delivery) {
+      awaitTurn(ticket);
+      try {
+        if (listener instanceof BinaryBufferListener) {
+          ((BinaryBufferListener) listener).onMessage(binary);
+        } else {
+          byte[] message = new byte[binary.remaining()];
+          binary.get(message);
+          listener.onMessage(message);
+        }
+      } finally {
+        nextTurn();
+      }
+    }
+  }
+
+  private void endpointOpened(Endpoint endpoint) {
+    synchronized (this) {
+      endpoint.open = true;
+      if (opened) {
+        return;
+      }
+    }
+    // held from deciding to calling, so that no other endpoint's message
+    // can be delivered before the open
+    synchronized (delivery) {
+      synchronized (this) {
+        if (opened) {
+          return;
+        }
+        opened = true;
+      }
+      listener.onOpen();
+    }
+  }
+
+  private void endpointEnded(Endpoint endpoint, Throwable error) {
+    synchronized (this) {
+      if (endpoint.ended) {
+        return;
+      }
+      endpoint.ended = true;
+      endpoint.open = false;
+      for (Endpoint other : endpoints) {
+        if (!other.ended) {
+          if (error != null) {
+            logger.log(Level.INFO, "Endpoint " + endpoint.url + " failed", error);
+          }
+          return;
+        }
+      }
+      if (ended) {
+        return;
+      }
+      ended = true;
+    }
+    synchronized (delivery) {
+      if (error != null) {
+        listener.onError(error);
+      } else {
+        listener.onClose();
+      }
+    }
+  }
+
+  /** One connection, and the listener which feeds its messages in. */
+  private class Endpoint implements CharSequenceListener, BinaryBufferListener {
+    final String url;
+    final Histogram lag = new Histogram();
+    // guarded by the endpoint
+    /** Null until the engine has returned it. */
+    private WebSocketClient client;
+    /** Messages sent before the client was known, in order. */
+    private List<String> pending = new ArrayList<String>();
+    private boolean closing;
+    // guarded by the subscription
+    boolean open;
+    boolean ended;
+    boolean dropped;
+    long first;
+    long late;
+    /** Messages in a row this endpoint has been late on, and their total lag. */
+    int streak;
+    long streakLag;
+
+    Endpoint(String url) {
+      this.url = url;
+    }
+
+    /**
+     * Publishes the client, sending it whatever was sent before it was
+     * known. Its {@code onOpen} may already have run, and a message sent
+     * from there must not be lost.
+     */
+    synchronized void connected(WebSocketClient client) throws IOException {
+      this.client = client;
+      if (closing) {
+        closeQuietly(client);
+        return;
+      }
+      List<String> messages = pending;
+      pending = null;
+      for (String message : messages) {
+        client.send(message);
+      }
+    }
+
+    /** Sends on the connection, or holds the message until the client is known. */
+    synchronized void send(String message) throws IOException {
+      if (client == null) {
+        pending.add(message);
+      } else {
+        client.send(message);
+      }
+    }
+
+    void close() {
+      WebSocketClient client;
+      synchronized (this) {
+        closing = true;
+        client = this.client;
+      }
+      if (client != null) {
+        closeQuietly(client);
+      }
+    }
+
+    private void closeQuietly(WebSocketClient client) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "IOException thrown while closing WebSocketClient.", e);
+      }
+    }
+
+    @Override
+    public void onOpen() {
+      endpointOpened(this);
+    }
+
+    @Override
+    public void onMessage(CharSequence message) {
+      receivedText(this, message);
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+      receivedBinary(this, message);
+    }
+
+    @Override
+    public void onMessage(String message) {
+      // not called: text arrives as a CharSequence
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+      // not called: binary arrives as a ByteBuffer
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      endpointEnded(this, error);
+    }
+
+    @Override
+    public void onClose() {
+      endpointEnded(this, null);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of non-negative values with log-linear buckets, in
+ * the manner of HdrHistogram: values below 32 are counted exactly, and each
+ * power of two above that is split into 16 buckets, so any recorded value
+ * is reported to within 1/16 of itself. Values of 2^37 and more fall in the
+ * last bucket. Recording is a couple of uncontended atomic increments and takes
+ * no lock; snapshots may be taken from any thread while values are being
+ * recorded.
+ */
+class Histogram {
+  private static final int EXACT = 32;
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MIN_EXPONENT = 5;
+  private static final int MAX_EXPONENT = 36;
+  static final int BUCKETS = EXACT + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucket(value));
+    sum.add(value);
+    raiseMax(value);
+  }
+
+  /** Adds the values recorded so far by {@code other} to this. */
+  void add(Histogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    sum.add(other.sum.sum());
+    raiseMax(other.max.get());
+  }
+
+  private void raiseMax(long value) {
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+    }
+  }
+
+  HistogramSnapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new HistogramSnapshot(copy, sum.sum(), max.get());
+  }
+
+  static int bucket(long value) {
+    if (value < EXACT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return EXACT + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the largest value which falls in {@code bucket}. */
+  static long highestValue(int bucket) {
+    if (bucket < EXACT) {
+      return bucket;
+    }
+    int exponent = (bucket - EXACT) / SUB_BUCKETS + MIN_EXPONENT;
+    int sub = (bucket - EXACT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
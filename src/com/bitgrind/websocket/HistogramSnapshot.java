@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * The distribution of a metric at one moment. Percentiles are reported as
+ * the upper end of the bucket they fall in, which is within 1/16 of the
+ * true value. Durations are in nanoseconds and sizes in bytes.
+ */
+public class HistogramSnapshot {
+  private final long[] counts;
+  private final long count;
+  private final long sum;
+  private final long max;
+
+  HistogramSnapshot(long[] counts, long sum, long max) {
+    this.counts = counts;
+    long count = 0;
+    for (long c : counts) {
+      count += c;
+    }
+    this.count = count;
+    this.sum = sum;
+    this.max = max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the value below which {@code percentile} percent of the recorded
+   * values fall, or 0 if none were recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(Histogram.highestValue(i), max);
+      }
+    }
+    return max;
+  }
+
+  public long getP50() {
+    return getValueAtPercentile(50);
+  }
+
+  public long getP90() {
+    return getValueAtPercentile(90);
+  }
+
+  public long getP99() {
+    return getValueAtPercentile(99);
+  }
+
+  public long getP999() {
+    return getValueAtPercentile(99.9);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("HistogramSnapshot [count=%s, mean=%.1f, p50=%s, p99=%s, p999=%s, max=%s]", count, getMean(),
+        getP50(), getP99(), getP999(), max);
+  }
+}
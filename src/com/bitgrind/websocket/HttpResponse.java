@@ -13,40 +13,153 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.bitgrind.websocket;
 
-import java.util.LinkedHashMap;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.TreeMap;
 
+/**
+ * The status line and headers of an HTTP response. A response read by
+ * {@link HttpResponseParser} keeps the raw header block along with the
+ * offsets of each line's parts; names and values only become Strings when
+ * they are asked for. The headers a WebSocket handshake checks are located
+ * while indexing, so looking them up involves no search. Header names are
+ * case-insensitive, and where a header is repeated the last one wins.
+ */
 public class HttpResponse {
-  private String version;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Headers whose values are indexed directly, by position in this array. */
+  private static final String[] KNOWN_HEADERS = {
+      "Upgrade",
+      "Connection",
+      "Sec-WebSocket-Accept",
+      "Sec-WebSocket-Extensions",
+      "Sec-WebSocket-Protocol",
+      "Sec-WebSocket-Version",
+      "Sec-WebSocket-Origin",
+      "Sec-WebSocket-Location" };
+
+  private final byte[] raw;
+  private int versionStart;
+  private int versionEnd;
   private int statusCode;
+  private int messageStart;
+  private int messageEnd;
+  private String version;
   private String statusMessage;
-  private Map<String, String> headers;
+
+  /** Start and end offsets of the value of each known header, or -1. */
+  private final int[] known = new int[KNOWN_HEADERS.length * 2];
+  private final String[] knownValues = new String[KNOWN_HEADERS.length];
+  /** Name start, name end, value start and value end of other headers. */
+  private int[] others = new int[16];
+  private int otherCount;
+  private Map<String, String> added;
 
   public HttpResponse(String statusLine) {
-    Scanner scanner = new Scanner(statusLine);
-    scanner.useDelimiter("\\s+");
+    this(statusLine.getBytes(UTF8));
+  }
 
-    if (!scanner.hasNext())
-      throw new IllegalArgumentException("Invalid status line");
+  private HttpResponse(byte[] statusLine) {
+    this(statusLine, 0, statusLine.length);
+  }
 
-    String protocolVersion = scanner.next();
+  /**
+   * Indexes the header block in {@code raw}: a status line followed by
+   * header lines, each ending in LF or CRLF. The array is kept, not copied.
+   *
+   * @throws IllegalArgumentException if the status line is malformed
+   */
+  HttpResponse(byte[] raw, int start, int end) {
+    this.raw = raw;
+    Arrays.fill(known, -1);
+    boolean statusLine = true;
+    int lineStart = start;
+    while (lineStart < end) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && raw[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int next = lineEnd + 1;
+      if (lineEnd > lineStart && raw[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+      if (statusLine) {
+        if (lineEnd > lineStart) {
+          parseStatusLine(lineStart, lineEnd);
+          statusLine = false;
+        }
+      } else if (lineEnd == lineStart) {
+        break;
+      } else {
+        indexHeader(lineStart, lineEnd);
+      }
+      lineStart = next;
+    }
+    if (statusLine)
+      throw new IllegalArgumentException("Invalid status line");
+  }
 
-    if (!protocolVersion.startsWith("HTTP/") || protocolVersion.length() <= 5)
+  private void parseStatusLine(int start, int end) {
+    if (end - start <= 5 || !regionMatches(start, "HTTP/"))
       throw new IllegalArgumentException("Invalid status line, missing protocol or version");
+    versionStart = start + 5;
+    int p = versionStart;
+    while (p < end && !isWhitespace(raw[p])) {
+      p++;
+    }
+    versionEnd = p;
+    p = skipWhitespace(p, end);
+    int digits = p;
+    long code = 0;
+    while (p < end && raw[p] >= '0' && raw[p] <= '9') {
+      code = code * 10 + (raw[p++] - '0');
+      if (code > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Invalid status code");
+    }
+    if (p == digits || (p < end && !isWhitespace(raw[p])))
+      throw new IllegalArgumentException("Invalid status line, missing status code");
+    statusCode = (int) code;
+    messageStart = skipWhitespace(p, end);
+    messageEnd = trimEnd(messageStart, end);
+  }
 
-    version = protocolVersion.substring(5);
-    statusCode = scanner.nextInt();
-    if (scanner.hasNext())
-      statusMessage = scanner.nextLine().trim();
-
-    headers = new LinkedHashMap<String, String>();
+  private void indexHeader(int start, int end) {
+    int colon = start;
+    while (colon < end && raw[colon] != ':') {
+      colon++;
+    }
+    if (colon == end) {
+      // not a header; ignore it
+      return;
+    }
+    int nameEnd = trimEnd(start, colon);
+    int valueStart = skipWhitespace(colon + 1, end);
+    int valueEnd = trimEnd(valueStart, end);
+    for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+      if (nameEquals(start, nameEnd, KNOWN_HEADERS[i])) {
+        known[2 * i] = valueStart;
+        known[2 * i + 1] = valueEnd;
+        return;
+      }
+    }
+    if (otherCount * 4 == others.length) {
+      others = Arrays.copyOf(others, others.length * 2);
+    }
+    int i = otherCount++ * 4;
+    others[i] = start;
+    others[i + 1] = nameEnd;
+    others[i + 2] = valueStart;
+    others[i + 3] = valueEnd;
   }
 
   public String getVersion() {
+    if (version == null) {
+      version = string(versionStart, versionEnd);
+    }
     return version;
   }
 
@@ -54,24 +167,132 @@ public class HttpResponse {
     return statusCode;
   }
 
+  /** Returns the reason phrase, or null if there was none. */
   public String getStatusMessage() {
+    if (statusMessage == null && messageEnd > messageStart) {
+      statusMessage = string(messageStart, messageEnd);
+    }
     return statusMessage;
   }
 
   public void addHeader(String name, String value) {
-    headers.put(name, value);
+    if (added == null) {
+      added = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    }
+    added.put(name, value);
   }
 
   public boolean hasHeader(String name) {
-    return headers.containsKey(name);
+    return getHeaderValue(name) != null;
   }
 
   public String getHeaderValue(String name) {
-    return headers.get(name);
+    if (added != null && added.containsKey(name)) {
+      return added.get(name);
+    }
+    for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+      if (KNOWN_HEADERS[i].equalsIgnoreCase(name)) {
+        if (known[2 * i] == -1) {
+          return null;
+        }
+        if (knownValues[i] == null) {
+          knownValues[i] = string(known[2 * i], known[2 * i + 1]);
+        }
+        return knownValues[i];
+      }
+    }
+    for (int i = (otherCount - 1) * 4; i >= 0; i -= 4) {
+      if (nameEquals(others[i], others[i + 1], name)) {
+        return string(others[i + 2], others[i + 3]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the named header is present with the given value,
+   * ignoring case. For the headers a handshake checks this compares the
+   * response bytes directly, without building a String.
+   */
+  public boolean headerEqualsIgnoreCase(String name, String value) {
+    if (added == null || !added.containsKey(name)) {
+      for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+        if (KNOWN_HEADERS[i].equalsIgnoreCase(name)) {
+          return known[2 * i] != -1 && nameEquals(known[2 * i], known[2 * i + 1], value);
+        }
+      }
+    }
+    return value.equalsIgnoreCase(getHeaderValue(name));
+  }
+
+  private Map<String, String> headers() {
+    Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 0; i < otherCount * 4; i += 4) {
+      headers.put(string(others[i], others[i + 1]), string(others[i + 2], others[i + 3]));
+    }
+    for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+      if (known[2 * i] != -1) {
+        headers.put(KNOWN_HEADERS[i], getHeaderValue(KNOWN_HEADERS[i]));
+      }
+    }
+    if (added != null) {
+      headers.putAll(added);
+    }
+    return headers;
+  }
+
+  private String string(int start, int end) {
+    return new String(raw, start, end - start, UTF8);
+  }
+
+  private boolean regionMatches(int start, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (raw[start + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compares ASCII header names or tokens, ignoring case. */
+  private boolean nameEquals(int start, int end, String name) {
+    if (end - start != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      int a = raw[start + i];
+      int b = name.charAt(i);
+      if (a != b) {
+        int lower = a | 0x20;
+        if (lower != (b | 0x20) || lower < 'a' || lower > 'z') {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private int skipWhitespace(int p, int end) {
+    while (p < end && isWhitespace(raw[p])) {
+      p++;
+    }
+    return p;
+  }
+
+  private int trimEnd(int start, int end) {
+    while (end > start && isWhitespace(raw[end - 1])) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
   }
 
   @Override
   public String toString() {
-    return String.format("HttpResponse [version=%s, statusCode=%s, statusMessage=%s, headers=%s]", version, statusCode, statusMessage, headers);
+    return String.format("HttpResponse [version=%s, statusCode=%s, statusMessage=%s, headers=%s]", getVersion(),
+        statusCode, getStatusMessage(), headers());
   }
 }
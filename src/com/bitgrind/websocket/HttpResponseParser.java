@@ -15,10 +15,12 @@
  */
 package com.bitgrind.websocket;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PushbackInputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.util.BufferPool;
 
 /**
  * A *very* minimalistic HTTP response parser. It's only job is to retrieve
@@ -27,110 +29,130 @@ import java.nio.charset.Charset;
  * reasonably robust but should only be used for WebSocket connections where
  * you expect to start immediately into websocket mode. For anything else
  * seek another solution.
+ * <p>
+ * The header block is gathered into a buffer borrowed from the default pool
+ * and scanned a byte at a time as it arrives, so it can be fed incrementally
+ * from a non-blocking channel. Scanning resumes where the previous call left
+ * off. The {@link HttpResponse} returned indexes that buffer in place, so it
+ * must not be used after {@link #release}.
  */
 class HttpResponseParser {
+  /** The largest response header block which will be accepted. */
+  static final int MAX_LENGTH = 2000;
+
+  private static final byte CR = 0x0d;
+  private static final byte LF = 0x0a;
 
-  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Nothing but line breaks seen yet. */
+  private static final int START = 0;
+  /** Within a line. */
+  private static final int LINE = 1;
+  /** Just after a line feed. */
+  private static final int LINE_END = 2;
+  /** Just after a line feed and a carriage return. */
+  private static final int LINE_END_CR = 3;
 
+  private ByteBuffer buffer;
+  private int length;
+  private int state = START;
   private HttpResponse response;
-  private boolean done;
 
+  /**
+   * Reads the response header block from a stream. Anything read beyond the
+   * end of the headers is pushed back, so the stream's pushback buffer must
+   * hold at least {@link #MAX_LENGTH} bytes.
+   *
+   * @throws EOFException if the stream ends before the headers do
+   * @throws IOException if the headers are longer than {@link #MAX_LENGTH}
+   */
   HttpResponse parse(PushbackInputStream input) throws IOException {
-    final byte CR = 0x0d;
-    final byte LF = 0x0a;
-    boolean foundCR = false;
-
-    byte[] buffer = new byte[2000];
-    int previous = 0;
-    int position = 0;
-    int capacity = buffer.length;
-    int limit = capacity;
-    int read = 0;
-
-    while (!done) {
-      if ((read = input.read(buffer, position, capacity - position)) != -1) {
-        position += read;
-      } else {
-        // end of stream
-        break;
+    byte[] bytes = buffer();
+    while (response == null) {
+      if (length == MAX_LENGTH)
+        throw new IOException("Handshake response too large");
+      int read = input.read(bytes, length, MAX_LENGTH - length);
+      if (read == -1)
+        throw new EOFException("Connection closed during handshake");
+      int end = scan(bytes, length, length + read);
+      length += read;
+      if (end != -1) {
+        input.unread(bytes, end, length - end);
+        complete(bytes, end);
       }
+    }
+    return response;
+  }
 
-      // flip
-      limit = position;
-      position = previous;
-
-      while (position < limit) {
-        byte b = buffer[position++];
-        if (!foundCR) {
-          if (b == CR) {
-            foundCR = true;
-          } else
-            if (b == LF) {
-              handleCRLF(buffer, position, foundCR);
-              int remaining = limit - position;
-              System.arraycopy(buffer, position, buffer, 0, remaining);
-              position = 0;
-              limit = remaining;
-
-              if (done) {
-                input.unread(buffer, position, remaining);
-                return response;
-              }
-            }
-        } else
-          if (b == LF) {
-            handleCRLF(buffer, position, foundCR);
-            int remaining = limit - position;
-            System.arraycopy(buffer, position, buffer, 0, remaining);
-            position = 0;
-            limit = remaining;
-            foundCR = false;
-
-            if (done) {
-              input.unread(buffer, position, remaining);
-              return response;
-            }
-          }
-      }
-      previous = position;
-      position = limit;
-      limit = capacity;
+  /**
+   * Consumes bytes from {@code src} up to the end of the response headers.
+   * Returns the response once the blank line ending the headers has been
+   * seen, leaving {@code src} positioned at the first byte after it.
+   * Otherwise consumes everything and returns null; call again when more
+   * bytes arrive.
+   *
+   * @throws IOException if the headers are longer than {@link #MAX_LENGTH}
+   */
+  HttpResponse parse(ByteBuffer src) throws IOException {
+    if (response != null) {
+      return response;
+    }
+    byte[] bytes = buffer();
+    int count = Math.min(src.remaining(), MAX_LENGTH - length);
+    src.get(bytes, length, count);
+    int end = scan(bytes, length, length + count);
+    length += count;
+    if (end != -1) {
+      src.position(src.position() - (length - end));
+      complete(bytes, end);
+    } else if (length == MAX_LENGTH) {
+      throw new IOException("Handshake response too large");
     }
+    return response;
+  }
 
-    return null;
+  /** Returns the buffer to the pool. The response must not be used after. */
+  void release() {
+    BufferPool.getDefault().release(buffer);
+    buffer = null;
   }
 
-  private void handleCRLF(byte[] buffer, int offset, boolean foundCR) {
-    int lineLength = offset - (foundCR ? 2 : 1);
-    String line;
-    try {
-      line = new String(buffer, 0, lineLength, UTF8.name());
-    } catch (UnsupportedEncodingException e) {
-      throw new AssertionError(e);
+  private byte[] buffer() {
+    if (buffer == null) {
+      buffer = BufferPool.getDefault().acquire(MAX_LENGTH);
     }
-    handleLine(line);
+    return buffer.array();
   }
 
-  private void handleLine(String line) {
-    System.out.println(line);
-    if (line.equals("")) {
-      if (response != null) {
-        done = true;
-      }
-    } else
-      if (response == null) {
-        response = new HttpResponse(line);
+  /**
+   * Advances the line state over {@code bytes[from, to)}, returning the
+   * offset just past the blank line which ends the headers, or -1.
+   */
+  private int scan(byte[] bytes, int from, int to) {
+    int s = state;
+    for (int i = from; i < to; i++) {
+      byte b = bytes[i];
+      if (b == LF) {
+        if (s == LINE_END || s == LINE_END_CR) {
+          state = s;
+          return i + 1;
+        }
+        if (s == LINE) {
+          s = LINE_END;
+        }
+      } else if (b == CR) {
+        if (s == LINE_END) {
+          s = LINE_END_CR;
+        }
       } else {
-        parseHeader(line);
+        s = LINE;
       }
+    }
+    state = s;
+    return -1;
   }
 
-  private void parseHeader(String line) {
-    int split = line.indexOf(':');
-    if (split != -1) {
-      String name = line.substring(0, split);
-      String value = line.substring(split + 2);
-      response.addHeader(name, value);
-    }
+  private void complete(byte[] bytes, int end) {
+    length = end;
+    response = new HttpResponse(bytes, 0, end);
   }
 }
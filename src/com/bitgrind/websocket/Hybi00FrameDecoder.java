@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Decodes hybi-00 frames: text as {@code 0x00 <UTF-8> 0xFF}, scanned for the
+ * terminator in bulk, and binary as a base-128 length followed by the
+ * payload. Text frames with a type other than 0x00 are skipped.
+ */
+class Hybi00FrameDecoder extends FrameDecoder {
+  private static final byte FRAME_END = (byte) 0xff;
+
+  private static final int FRAME_TYPE = 0;
+  private static final int LENGTH = 1;
+  private static final int TEXT = 2;
+  private static final int BINARY = 3;
+  private static final int SKIP = 4;
+  private static final int TEXT_STREAM = 5;
+  private static final int BINARY_STREAM = 6;
+  private static final int TEXT_SKIP = 7;
+
+  private int state = FRAME_TYPE;
+  private int frameType;
+  private long length;
+  private long discard;
+
+  Hybi00FrameDecoder(Handler handler, BufferPool pool) {
+    this(handler, pool, Integer.MAX_VALUE, OversizePolicy.REJECT);
+  }
+
+  Hybi00FrameDecoder(Handler handler, BufferPool pool, int maxMessageSize, OversizePolicy oversizePolicy) {
+    super(handler, pool, maxMessageSize, oversizePolicy);
+  }
+
+  @Override
+  void decode(ByteBuffer in) throws IOException {
+    while (in.hasRemaining() && !suspended()) {
+      switch (state) {
+        case FRAME_TYPE:
+          frameType = in.get() & 0xff;
+          length = 0;
+          if ((frameType & 0x80) == 0x80) {
+            state = LENGTH;
+          } else {
+            state = frameType == 0x00 ? TEXT : TEXT_SKIP;
+          }
+          break;
+        case LENGTH:
+          decodeLength(in.get() & 0xff);
+          break;
+        case TEXT:
+          decodeText(in);
+          break;
+        case BINARY:
+          decodeBinary(in);
+          break;
+        case SKIP:
+          int skipped = (int) Math.min(length, in.remaining());
+          in.position(in.position() + skipped);
+          length -= skipped;
+          if (length == 0) {
+            state = FRAME_TYPE;
+          }
+          break;
+        case TEXT_STREAM:
+          streamText(in);
+          break;
+        case BINARY_STREAM:
+          streamBinary(in);
+          break;
+        case TEXT_SKIP:
+          int end = indexOf(in, in.position(), in.limit(), FRAME_END);
+          if (end == -1) {
+            in.position(in.limit());
+          } else {
+            in.position(end + 1);
+            state = FRAME_TYPE;
+          }
+          break;
+        default:
+          throw new AssertionError(state);
+      }
+    }
+  }
+
+  private void decodeLength(int b) throws IOException {
+    if (length > (Long.MAX_VALUE >> 7)) {
+      throw new IOException("Frame length overflow");
+    }
+    length = length * 128 + (b & 0x7f);
+    if ((b & 0x80) == 0x80) {
+      return;
+    }
+    if (frameType == 0xff && length == 0) {
+      state = FRAME_TYPE;
+      handler.onCloseFrame();
+    } else if (length == 0) {
+      state = FRAME_TYPE;
+      deliverBinary();
+    } else if (length <= maxMessageSize && length < Integer.MAX_VALUE) {
+      state = BINARY;
+    } else {
+      oversizedBinary();
+    }
+  }
+
+  private void oversizedBinary() throws IOException {
+    switch (oversizePolicy) {
+      case REJECT:
+        throw tooLarge();
+      case TRUNCATE:
+        // deliver the head as an ordinary frame, then skip the tail
+        discard = length - maxMessageSize;
+        length = maxMessageSize;
+        if (length > 0) {
+          state = BINARY;
+        } else {
+          finishBinary();
+          deliverBinary();
+        }
+        break;
+      case STREAM:
+        state = BINARY_STREAM;
+        handler.onMessageStart(true);
+        break;
+    }
+  }
+
+  private void decodeText(ByteBuffer in) throws IOException {
+    int start = in.position();
+    int end = indexOf(in, start, in.limit(), FRAME_END);
+    long size = buffered() + (long) ((end == -1 ? in.limit() : end) - start);
+    if (size > maxMessageSize) {
+      oversizedText(in, end);
+      return;
+    }
+    if (end == -1) {
+      append(in, in.limit() - start);
+      return;
+    }
+    state = FRAME_TYPE;
+    if (buffered() == 0) {
+      ByteBuffer payload = view(in, start, end, false);
+      in.position(end + 1);
+      handler.onTextMessage(payload);
+    } else {
+      append(in, end - start);
+      in.get();
+      deliverText(false);
+    }
+  }
+
+  private void decodeBinary(ByteBuffer in) throws IOException {
+    int needed = (int) length - buffered();
+    if (buffered() == 0) {
+      if (in.remaining() >= needed) {
+        int start = in.position();
+        ByteBuffer payload = view(in, start, start + needed, true);
+        in.position(start + needed);
+        finishBinary();
+        handler.onBinaryMessage(payload);
+        return;
+      }
+      // the length is known up front, so size the buffer once if it is modest
+      reserve(length);
+    }
+    append(in, Math.min(needed, in.remaining()));
+    if (buffered() == length) {
+      finishBinary();
+      deliverBinary();
+    }
+  }
+
+  /** Moves on to the next frame, or to the tail of a truncated one. */
+  private void finishBinary() {
+    if (discard > 0) {
+      state = SKIP;
+      length = discard;
+      discard = 0;
+    } else {
+      state = FRAME_TYPE;
+    }
+  }
+
+  /**
+   * Handles a text frame which has turned out to be too large, once
+   * {@code in} holds the byte which takes it over the limit. {@code end} is
+   * the index of the frame's terminator in {@code in}, or -1.
+   */
+  private void oversizedText(ByteBuffer in, int end) throws IOException {
+    switch (oversizePolicy) {
+      case REJECT:
+        throw tooLarge();
+      case TRUNCATE:
+        append(in, maxMessageSize - buffered());
+        if (end == -1) {
+          in.position(in.limit());
+          state = TEXT_SKIP;
+        } else {
+          in.position(end + 1);
+          state = FRAME_TYPE;
+        }
+        deliverText(true);
+        break;
+      case STREAM:
+        state = TEXT_STREAM;
+        handler.onMessageStart(false);
+        deliverBufferedChunk();
+        streamText(in);
+        break;
+    }
+  }
+
+  private void streamText(ByteBuffer in) throws IOException {
+    int start = in.position();
+    int end = indexOf(in, start, in.limit(), FRAME_END);
+    ByteBuffer chunk = view(in, start, end == -1 ? in.limit() : end, true);
+    in.position(end == -1 ? in.limit() : end + 1);
+    if (end != -1) {
+      state = FRAME_TYPE;
+    }
+    if (chunk.hasRemaining()) {
+      handler.onMessageChunk(chunk);
+    }
+    if (end != -1) {
+      handler.onMessageEnd();
+    }
+  }
+
+  private void streamBinary(ByteBuffer in) throws IOException {
+    int start = in.position();
+    int count = (int) Math.min(length, in.remaining());
+    ByteBuffer chunk = view(in, start, start + count, true);
+    in.position(start + count);
+    length -= count;
+    if (length == 0) {
+      state = FRAME_TYPE;
+    }
+    handler.onMessageChunk(chunk);
+    if (length == 0) {
+      handler.onMessageEnd();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Frames outgoing hybi-00 messages. Binary payloads are not copied at all but
+ * written after a separate length header.
+ */
+class Hybi00FrameEncoder extends FrameEncoder {
+  private static final byte[] CLOSE_FRAME = { (byte) 0xff, 0x00 };
+
+  Hybi00FrameEncoder(BufferPool pool) {
+    super(pool);
+  }
+
+  /** Returns a text frame, {@code 0x00 <UTF-8> 0xFF}, as one buffer. */
+  @Override
+  OutboundFrame encodeText(CharSequence message) {
+    int length = utf8Length(message);
+    ByteBuffer frame = pool.acquire(length + 2);
+    byte[] array = frame.array();
+    int offset = frame.arrayOffset();
+    array[offset] = 0x00;
+    encodeUtf8(message, array, offset + 1);
+    array[offset + length + 1] = (byte) 0xff;
+    frame.limit(length + 2);
+    return new OutboundFrame(new ByteBuffer[] { frame }, pool);
+  }
+
+  /**
+   * Returns a length-prefixed binary frame: a header of {@code 0x80} and the
+   * length in base-128, most significant group first, followed by
+   * {@code payload} itself.
+   */
+  @Override
+  OutboundFrame encodeBinary(ByteBuffer payload) {
+    return new OutboundFrame(ByteBuffer.wrap(binaryHeader(payload.remaining())), payload);
+  }
+
+  private static byte[] binaryHeader(long length) {
+    int groups = 1;
+    while ((length >>> (7 * groups)) != 0) {
+      groups++;
+    }
+    byte[] header = new byte[groups + 1];
+    header[0] = (byte) 0x80;
+    for (int i = 0; i < groups; i++) {
+      int group = (int) (length >>> (7 * (groups - 1 - i))) & 0x7f;
+      header[i + 1] = (byte) (i < groups - 1 ? group | 0x80 : group);
+    }
+    return header;
+  }
+
+  /** Writes a view of the prepared frame, which is shared by every send. */
+  @Override
+  OutboundFrame encode(PreparedFrame frame) {
+    return new OutboundFrame(frame.hybi00Frame());
+  }
+
+  /**
+   * Builds a complete frame around {@code payload} in a direct buffer,
+   * which sockets are written from without a further copy.
+   */
+  static ByteBuffer frame(boolean binary, ByteBuffer payload) {
+    byte[] header = binary ? binaryHeader(payload.remaining()) : new byte[] { 0x00 };
+    ByteBuffer frame = ByteBuffer.allocateDirect(header.length + payload.remaining() + (binary ? 0 : 1));
+    frame.put(header);
+    frame.put(payload);
+    if (!binary) {
+      frame.put((byte) 0xff);
+    }
+    frame.flip();
+    return frame.asReadOnlyBuffer();
+  }
+
+  @Override
+  OutboundFrame encodeClose() {
+    return new OutboundFrame(ByteBuffer.wrap(CLOSE_FRAME));
+  }
+
+  /** hybi-00 has no ping, so there is never a pong to send. */
+  @Override
+  OutboundFrame encodePong(ByteBuffer payload) {
+    throw new UnsupportedOperationException("hybi-00 has no pong frame");
+  }
+
+  @Override
+  OutboundFrame encodePing() {
+    throw new UnsupportedOperationException("hybi-00 has no ping frame");
+  }
+}
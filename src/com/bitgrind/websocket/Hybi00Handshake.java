@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.bitgrind.websocket.util.Bytes;
+
+/**
+ * The client side of the hybi-00 opening handshake: the upgrade request with
+ * its Key1/Key2/key3 challenge, and the MD5 response the server is expected
+ * to send back. Holds no I/O of its own so that it can be driven by both the
+ * blocking and the non-blocking connection code.
+ * <p>
+ * The request is composed in the calling thread's {@link RequestWriter}, and
+ * the random numbers and digest are per-thread too, so handshakes built
+ * concurrently share no state.
+ */
+class Hybi00Handshake extends Handshake {
+  /** Length of the challenge response which follows the response headers. */
+  static final int RESPONSE_LENGTH = 16;
+
+  private static final byte[] keyChars = Bytes.concat(range(0x21, 0x2f), range(0x3a, 0x7e));
+  private static final ThreadLocal<MessageDigest> md5 = threadDigest("MD5");
+
+  private final ByteBuffer request;
+  private final byte[] expectedResponse;
+
+  Hybi00Handshake(URI uri) {
+    Random rnd = ThreadLocalRandom.current();
+    RequestWriter request = RequestWriter.get();
+    request.append("GET ").append(uri.getPath()).append(" HTTP/1.1").crlf();
+    request.header("Upgrade", "WebSocket");
+    request.header("Connection", "Upgrade");
+    request.header("Host", uri.getHost());
+    request.append("Origin: ").append(uri.getHost()).append(':').append(uri.getPort()).crlf();
+
+    int spaces1 = rnd.nextInt(12) + 1;
+    int spaces2 = rnd.nextInt(12) + 1;
+
+    int key1 = rnd.nextInt(Integer.MAX_VALUE / spaces1);
+    int key2 = rnd.nextInt(Integer.MAX_VALUE / spaces2);
+
+    request.append("Sec-WebSocket-Key1: ");
+    writeKey(request, rnd, key1, spaces1);
+    request.crlf();
+    request.append("Sec-WebSocket-Key2: ");
+    writeKey(request, rnd, key2, spaces2);
+    request.crlf();
+    request.crlf();
+
+    byte[] key3 = new byte[8];
+    rnd.nextBytes(key3);
+
+    // make sure MSB is 0 due to buggy servers that
+    // don't handle key3 > 0x7fffffffffffffff (That's *you* MtGox!)
+    key3[0] &= 0x7f;
+
+    this.request = request.append(key3).toBuffer();
+
+    // stuff 'em all together, key1+key2+key3, big-endian order
+    byte[] challenge = new byte[16];
+    putInt(challenge, 0, key1);
+    putInt(challenge, 4, key2);
+    System.arraycopy(key3, 0, challenge, 8, 8);
+
+    // The server is expected to send back the MD5 of this
+    expectedResponse = md5.get().digest(challenge);
+  }
+
+  /** Returns the complete request, headers followed by key3. */
+  @Override
+  ByteBuffer getRequest() {
+    return request.duplicate();
+  }
+
+  @Override
+  int getResponseLength() {
+    return RESPONSE_LENGTH;
+  }
+
+  @Override
+  void verify(HttpResponse response, byte[] serverResponse) throws IOException {
+    if (response.getStatusCode() != 101)
+      throw new IOException(String.format("Server refused the upgrade: %d %s", response.getStatusCode(),
+          response.getStatusMessage()));
+    if (!response.headerEqualsIgnoreCase("Upgrade", "WebSocket"))
+      throw new IOException("Missing Upgrade: WebSocket header");
+    if (!response.headerEqualsIgnoreCase("Connection", "Upgrade"))
+      throw new IOException("Missing Connection: Upgrade header");
+    if (!MessageDigest.isEqual(serverResponse, expectedResponse))
+      throw new IOException("Challenge response does not match Sec-WebSocket-Key1/Key2");
+  }
+
+  private static byte[] range(int start, int stop) {
+    int len = stop - start;
+    byte[] arr = new byte[len];
+    for (int i = 0; i < len; i++) {
+      arr[i] = (byte) (start + i);
+    }
+    return arr;
+  }
+
+  /**
+   * Writes {@code v * spaces} with twelve random key characters scattered
+   * through it, then {@code spaces} spaces, none of them first or last.
+   */
+  private static void writeKey(RequestWriter request, Random rnd, int v, int spaces) {
+    final int fillCount = 12;
+    int start = request.length();
+    request.append((long) v * spaces);
+    for (int i = 0; i < fillCount; i++) {
+      int pos = rnd.nextInt(request.length() - start + 1);
+      request.insert(start + pos, (char) keyChars[rnd.nextInt(keyChars.length)]);
+    }
+    for (int i = 0; i < spaces; i++) {
+      int pos = rnd.nextInt(request.length() - start - 1) + 1;
+      request.insert(start + pos, ' ');
+    }
+  }
+
+  private static void putInt(byte[] b, int offset, int v) {
+    b[offset] = (byte) (v >>> 24);
+    b[offset + 1] = (byte) (v >>> 16);
+    b[offset + 2] = (byte) (v >>> 8);
+    b[offset + 3] = (byte) v;
+  }
+}
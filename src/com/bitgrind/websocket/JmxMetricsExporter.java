@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registers metrics as MXBeans named
+ * {@code com.bitgrind.websocket:type=WebSocketMetrics,name="<name>"}.
+ * Failures are logged rather than thrown, so that monitoring never breaks a
+ * connection.
+ */
+public class JmxMetricsExporter implements MetricsExporter {
+  private static final Logger logger = Logger.getLogger(JmxMetricsExporter.class.getName());
+
+  private final MBeanServer server;
+
+  /** Registers with the platform MBean server. */
+  public JmxMetricsExporter() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public JmxMetricsExporter(MBeanServer server) {
+    this.server = server;
+  }
+
+  public static ObjectName objectName(String name) throws JMException {
+    return new ObjectName("com.bitgrind.websocket:type=WebSocketMetrics,name=" + ObjectName.quote(name));
+  }
+
+  @Override
+  public void register(String name, WebSocketMetricsMXBean metrics) {
+    try {
+      server.registerMBean(new StandardMBean(metrics, WebSocketMetricsMXBean.class, true), objectName(name));
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Failed to register metrics for " + name, e);
+    }
+  }
+
+  @Override
+  public void unregister(String name) {
+    try {
+      server.unregisterMBean(objectName(name));
+    } catch (JMException e) {
+      logger.log(Level.FINE, "Failed to unregister metrics for " + name, e);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import com.bitgrind.websocket.WebSocketClient.BatchListener;
+
+/**
+ * The messages decoded from one read of the socket, handed to a
+ * {@link BatchListener} together. Payloads are copied into storage which
+ * belongs to the connection and is reused by the next batch, so the batch
+ * and every view taken from it are only valid until {@code onMessages}
+ * returns. The views themselves are reused as well: taking them allocates
+ * nothing once the connection has seen a few batches.
+ */
+public final class MessageBatch {
+  /** Storage larger than this is given up once a batch is delivered. */
+  private static final int RETAIN_LIMIT = 65536;
+
+  private byte[] bytes = new byte[1024];
+  private char[] chars = new char[256];
+  private int byteCount;
+  private int charCount;
+  private int size;
+  private boolean[] binary = new boolean[16];
+  private int[] offsets = new int[16];
+  private int[] lengths = new int[16];
+  /** Views of the storage, one per index, created as first needed. */
+  private ByteBuffer[] byteViews = new ByteBuffer[16];
+  private CharBuffer[] charViews = new CharBuffer[16];
+
+  MessageBatch() {}
+
+  /** The number of messages in the batch; never zero when delivered. */
+  public int size() {
+    return size;
+  }
+
+  public boolean isBinary(int index) {
+    checkIndex(index);
+    return binary[index];
+  }
+
+  /**
+   * Returns a binary message as a read-only view.
+   *
+   * @throws IllegalArgumentException if the message is text
+   */
+  public ByteBuffer getBinary(int index) {
+    if (!isBinary(index))
+      throw new IllegalArgumentException("Message " + index + " is text");
+    ByteBuffer view = byteViews[index];
+    if (view == null) {
+      view = byteViews[index] = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+    view.limit(offsets[index] + lengths[index]);
+    view.position(offsets[index]);
+    return view;
+  }
+
+  /**
+   * Returns a text message; call {@code toString()} on it to keep it.
+   *
+   * @throws IllegalArgumentException if the message is binary
+   */
+  public CharSequence getText(int index) {
+    if (isBinary(index))
+      throw new IllegalArgumentException("Message " + index + " is binary");
+    CharBuffer view = charViews[index];
+    if (view == null) {
+      view = charViews[index] = CharBuffer.wrap(chars).asReadOnlyBuffer();
+    }
+    view.limit(offsets[index] + lengths[index]);
+    view.position(offsets[index]);
+    return view;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+  }
+
+  /** Copies in a binary message. */
+  void addBinary(ByteBuffer payload) {
+    int length = payload.remaining();
+    if (bytes.length - byteCount < length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCount + length));
+      Arrays.fill(byteViews, null);
+    }
+    payload.duplicate().get(bytes, byteCount, length);
+    add(true, byteCount, length);
+    byteCount += length;
+  }
+
+  /** Copies in a decoded text message. */
+  void addText(CharBuffer text) {
+    int length = text.remaining();
+    if (chars.length - charCount < length) {
+      chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+      Arrays.fill(charViews, null);
+    }
+    text.duplicate().get(chars, charCount, length);
+    add(false, charCount, length);
+    charCount += length;
+  }
+
+  private void add(boolean isBinary, int offset, int length) {
+    if (size == offsets.length) {
+      int capacity = size * 2;
+      binary = Arrays.copyOf(binary, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      byteViews = Arrays.copyOf(byteViews, capacity);
+      charViews = Arrays.copyOf(charViews, capacity);
+    }
+    binary[size] = isBinary;
+    offsets[size] = offset;
+    lengths[size] = length;
+    size++;
+  }
+
+  /** Empties the batch for the next read, giving up storage a large message grew. */
+  void clear() {
+    size = 0;
+    byteCount = 0;
+    charCount = 0;
+    if (bytes.length > RETAIN_LIMIT) {
+      bytes = new byte[1024];
+      Arrays.fill(byteViews, null);
+    }
+    if (chars.length > RETAIN_LIMIT) {
+      chars = new char[256];
+      Arrays.fill(charViews, null);
+    }
+  }
+}
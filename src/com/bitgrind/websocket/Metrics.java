@@ -0,0 +1,234 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the metrics of one connection, or the totals of many. Counters
+ * are {@link LongAdder}s, since frames are counted on the reading thread and
+ * on every thread which sends, and the histograms take no lock; recording
+ * costs no more than a few uncontended atomic operations.
+ * <p>
+ * Each histogram holds several kilobytes, which adds up over tens of
+ * thousands of connections, so a connection keeps histograms only if asked
+ * to; otherwise they read as empty. A connection's handshake time is a
+ * single value, and only totals keep a histogram of them.
+ */
+class Metrics implements WebSocketMetricsMXBean {
+  static final int TEXT = 0;
+  static final int BINARY = 1;
+  static final int PING = 2;
+  static final int PONG = 3;
+  static final int CLOSE = 4;
+
+  final LongAdder bytesReceived = new LongAdder();
+  final LongAdder bytesSent = new LongAdder();
+  final LongAdder errors = new LongAdder();
+  private final LongAdder[] framesReceived = newCounters();
+  private final LongAdder[] framesSent = newCounters();
+  /** Null unless histograms are kept. */
+  final Histogram messageSize;
+  final Histogram decodeTime;
+  final Histogram dispatchLatency;
+  /** The handshake times of the connections added; null for a single connection. */
+  private final Histogram handshakeTimes;
+  /** A single connection's handshake time, or -1 until it has one. */
+  private volatile long handshakeTime = -1;
+
+  /** Creates metrics for totals, which keep every histogram. */
+  Metrics() {
+    this(true, true);
+  }
+
+  /**
+   * Creates metrics for a single connection.
+   *
+   * @param histograms whether to keep the message size, decode time and
+   *        dispatch latency histograms
+   */
+  Metrics(boolean histograms) {
+    this(histograms, false);
+  }
+
+  private Metrics(boolean histograms, boolean totals) {
+    messageSize = histograms ? new Histogram() : null;
+    decodeTime = histograms ? new Histogram() : null;
+    dispatchLatency = histograms ? new Histogram() : null;
+    handshakeTimes = totals ? new Histogram() : null;
+  }
+
+  private static LongAdder[] newCounters() {
+    LongAdder[] counters = new LongAdder[CLOSE + 1];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  void received(int type) {
+    framesReceived[type].increment();
+  }
+
+  void sent(int type) {
+    framesSent[type].increment();
+  }
+
+  void handshook(long nanos) {
+    handshakeTime = nanos;
+  }
+
+  boolean keepsHistograms() {
+    return messageSize != null;
+  }
+
+  void messageSize(int bytes) {
+    if (messageSize != null) {
+      messageSize.record(bytes);
+    }
+  }
+
+  void decodeTime(long nanos) {
+    if (decodeTime != null) {
+      decodeTime.record(nanos);
+    }
+  }
+
+  /** Adds everything recorded by {@code other} to this, which must be totals. */
+  void add(Metrics other) {
+    bytesReceived.add(other.bytesReceived.sum());
+    bytesSent.add(other.bytesSent.sum());
+    errors.add(other.errors.sum());
+    for (int i = 0; i <= CLOSE; i++) {
+      framesReceived[i].add(other.framesReceived[i].sum());
+      framesSent[i].add(other.framesSent[i].sum());
+    }
+    if (other.keepsHistograms()) {
+      messageSize.add(other.messageSize);
+      decodeTime.add(other.decodeTime);
+      dispatchLatency.add(other.dispatchLatency);
+    }
+    if (other.handshakeTime >= 0) {
+      handshakeTimes.record(other.handshakeTime);
+    }
+    if (other.handshakeTimes != null) {
+      handshakeTimes.add(other.handshakeTimes);
+    }
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getTextFramesReceived() {
+    return framesReceived[TEXT].sum();
+  }
+
+  @Override
+  public long getBinaryFramesReceived() {
+    return framesReceived[BINARY].sum();
+  }
+
+  @Override
+  public long getPingsReceived() {
+    return framesReceived[PING].sum();
+  }
+
+  @Override
+  public long getPongsReceived() {
+    return framesReceived[PONG].sum();
+  }
+
+  @Override
+  public long getCloseFramesReceived() {
+    return framesReceived[CLOSE].sum();
+  }
+
+  @Override
+  public long getTextFramesSent() {
+    return framesSent[TEXT].sum();
+  }
+
+  @Override
+  public long getBinaryFramesSent() {
+    return framesSent[BINARY].sum();
+  }
+
+  @Override
+  public long getPingsSent() {
+    return framesSent[PING].sum();
+  }
+
+  @Override
+  public long getPongsSent() {
+    return framesSent[PONG].sum();
+  }
+
+  @Override
+  public long getCloseFramesSent() {
+    return framesSent[CLOSE].sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public HistogramSnapshot getMessageSize() {
+    return snapshot(messageSize);
+  }
+
+  @Override
+  public HistogramSnapshot getDecodeTime() {
+    return snapshot(decodeTime);
+  }
+
+  @Override
+  public HistogramSnapshot getHandshakeTime() {
+    if (handshakeTimes != null) {
+      return handshakeTimes.snapshot();
+    }
+    Histogram single = new Histogram();
+    long time = handshakeTime;
+    if (time >= 0) {
+      single.record(time);
+    }
+    return single.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getDispatchLatency() {
+    return snapshot(dispatchLatency);
+  }
+
+  private static HistogramSnapshot snapshot(Histogram histogram) {
+    return histogram != null ? histogram.snapshot() : new HistogramSnapshot(new long[Histogram.BUCKETS], 0, 0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Metrics [bytesReceived=%s, bytesSent=%s, errors=%s, messageSize=%s, decodeTime=%s]",
+        getBytesReceived(), getBytesSent(), getErrors(), getMessageSize(), getDecodeTime());
+  }
+}
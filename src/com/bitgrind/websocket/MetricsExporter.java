@@ -0,0 +1,31 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * Publishes metrics to a monitoring system. Connections are registered when
+ * they open and unregistered when they end; names are unique among the
+ * connections registered at once.
+ *
+ * @see JmxMetricsExporter
+ * @see WebSocketOptions#setMetricsExporter
+ */
+public interface MetricsExporter {
+
+  void register(String name, WebSocketMetricsMXBean metrics);
+
+  void unregister(String name);
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * A single non-blocking connection owned by a {@link SelectorLoop}. Connecting,
+ * the opening handshake and frame decoding are all driven as a state machine
+ * from readiness events, so the connection never holds a thread while it
+ * waits for the network. A {@code wss} connection runs the TLS handshake in
+ * between connecting and sending the opening handshake, and speaks through
+ * a {@link TlsChannel} from then on.
+ * <p>
+ * All methods other than the constructor, {@link #flush}, {@link #abort} and
+ * {@link #execute} are called on the loop thread. Frames are only ever
+ * written from the loop thread; other threads schedule a flush there, and
+ * sends which arrive before it runs are written together.
+ */
+class NioConnection implements Transport {
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private static final int CONNECTING = 0;
+  private static final int TLS = 1;
+  private static final int REQUEST = 2;
+  private static final int RESPONSE = 3;
+  private static final int OPEN = 4;
+  private static final int CLOSED = 5;
+
+  private final SelectorLoop loop;
+  private final WebSocketClient client;
+  private final SocketChannel channel;
+  /** The TLS layer over the channel, or null for a plain connection. */
+  private final TlsChannel tls;
+  /** What bytes are read from and written to: the TLS layer or the channel itself. */
+  private final ByteChannel io;
+  private final BufferPool pool;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flushFrames();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  };
+  private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+  private final Runnable resumeTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        resumeReading();
+      } catch (IOException e) {
+        fail(e);
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+  };
+  /** Holds a partial handshake response between reads; otherwise null. */
+  private ByteBuffer readBuffer;
+  /** Holds the input a suspended decoder has not consumed; otherwise null. */
+  private ByteBuffer unread;
+  /** Whether the socket is being read, as opposed to suspended by flow control. */
+  private boolean reading = true;
+  private SelectionKey key;
+  private Handshake handshake;
+  private HttpResponseParser parser;
+  private HttpResponse response;
+  private ByteBuffer request;
+  private SelectorLoop.Timeout timeout;
+  private int state;
+
+  /**
+   * @param tls the TLS layer to speak through once connected, or null
+   */
+  NioConnection(SelectorLoop loop, WebSocketClient client, SocketChannel channel, TlsChannel tls, BufferPool pool,
+      boolean connected) {
+    this.loop = loop;
+    this.client = client;
+    this.channel = channel;
+    this.tls = tls;
+    this.io = tls != null ? tls : channel;
+    this.pool = pool;
+    this.state = connected ? connectedState() : CONNECTING;
+    client.flowControl().setWakeup(new Runnable() {
+      @Override
+      public void run() {
+        if (resumeScheduled.compareAndSet(false, true)) {
+          NioConnection.this.loop.execute(resumeTask);
+        }
+      }
+    });
+  }
+
+  private int connectedState() {
+    return tls != null ? TLS : REQUEST;
+  }
+
+  void register(Selector selector) {
+    try {
+      if (state == CONNECTING) {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        startTimeout(client.getConnectTimeout(), "Connect timed out");
+      } else {
+        key = channel.register(selector, SelectionKey.OP_WRITE, this);
+        startTimeout(client.getHandshakeTimeout(), "Handshake timed out");
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Fails the connection if it is still in its current state after
+   * {@code millis}. Zero means no limit.
+   */
+  private void startTimeout(int millis, final String message) {
+    cancelTimeout();
+    if (millis == 0) {
+      return;
+    }
+    final int expected = state;
+    timeout = loop.schedule(new Runnable() {
+      @Override
+      public void run() {
+        timeout = null;
+        // the handshake timeout runs from connecting until open
+        if (state == expected || (expected > CONNECTING && state < OPEN)) {
+          fail(new SocketTimeoutException(message));
+        }
+      }
+    }, millis);
+  }
+
+  private void cancelTimeout() {
+    if (timeout != null) {
+      timeout.cancel();
+      timeout = null;
+    }
+  }
+
+  void handle() {
+    try {
+      if (key.isConnectable()) {
+        if (channel.finishConnect()) {
+          state = connectedState();
+          startTimeout(client.getHandshakeTimeout(), "Handshake timed out");
+          if (state == TLS) {
+            handshakeTls();
+          } else {
+            writeRequest();
+          }
+        }
+      } else if (key.isWritable()) {
+        if (state == TLS) {
+          handshakeTls();
+        } else if (state == REQUEST) {
+          writeRequest();
+        } else {
+          flushFrames();
+        }
+      }
+      if (key.isValid() && key.isReadable()) {
+        if (state == TLS) {
+          handshakeTls();
+        } else {
+          readAvailable();
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void handshakeTls() throws IOException {
+    if (tls.handshake()) {
+      state = REQUEST;
+      writeRequest();
+    } else {
+      key.interestOps(tls.wantsRead() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+  }
+
+  private void writeRequest() throws IOException {
+    if (request == null) {
+      handshake = client.newHandshake();
+      request = handshake.getRequest();
+    }
+    io.write(request);
+    if (request.hasRemaining()) {
+      key.interestOps(SelectionKey.OP_WRITE);
+    } else {
+      request = null;
+      state = RESPONSE;
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void readAvailable() throws IOException {
+    // the TLS layer may already hold bytes which the socket will not signal
+    // again, so drain it
+    while (read() > 0 && tls != null && state != CLOSED && reading) {
+    }
+  }
+
+  /**
+   * Reads into a buffer borrowed from the pool just for this event, so that
+   * idle connections hold no receive buffer at all.
+   *
+   * @return the number of bytes read
+   */
+  private int read() throws IOException {
+    ByteBuffer buffer = readBuffer != null ? readBuffer : pool.acquire(READ_BUFFER_SIZE);
+    readBuffer = null;
+    try {
+      int read = io.read(buffer);
+      if (read == -1) {
+        throw new EOFException("Connection closed by server");
+      }
+      buffer.flip();
+      if (state == RESPONSE && !readResponse(buffer)) {
+        // keep accumulating the response
+        buffer.compact();
+        readBuffer = buffer;
+        buffer = null;
+        return read;
+      }
+      if (state == OPEN) {
+        client.decode(buffer);
+        if (buffer.hasRemaining()) {
+          // the decoder stopped because flow control suspended it; even if
+          // another thread has resumed it since, the rest must be decoded by
+          // resumeReading before anything more is read
+          unread = buffer;
+          buffer = null;
+          if (state == OPEN) {
+            suspendReading();
+          }
+        } else if (state == OPEN && client.flowControl().suspended()) {
+          suspendReading();
+        }
+      }
+      return read;
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Attempts to complete the handshake from the bytes received so far. The
+   * headers are consumed from the buffer as they are parsed. On success the
+   * buffer is left positioned at the first byte following the challenge
+   * response.
+   */
+  private boolean readResponse(ByteBuffer buffer) throws IOException {
+    if (response == null) {
+      if (parser == null) {
+        parser = new HttpResponseParser();
+      }
+      response = parser.parse(buffer);
+      if (response == null) {
+        return false;
+      }
+    }
+    if (buffer.remaining() < handshake.getResponseLength()) {
+      return false;
+    }
+
+    byte[] body = new byte[handshake.getResponseLength()];
+    buffer.get(body);
+    try {
+      handshake.verify(response, body);
+    } finally {
+      releaseParser();
+    }
+    client.negotiated(handshake);
+    handshake = null;
+    state = OPEN;
+    cancelTimeout();
+    client.opened(this);
+    return true;
+  }
+
+  private void releaseParser() {
+    if (parser != null) {
+      parser.release();
+      parser = null;
+    }
+    response = null;
+  }
+
+  private void suspendReading() {
+    reading = false;
+    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+  }
+
+  /**
+   * Decodes any input left when reading was suspended, and reads again
+   * unless that suspends it once more. Input is only ever left over while
+   * reading is suspended, and whatever resumes flow control afterwards
+   * schedules this again.
+   */
+  private void resumeReading() throws IOException {
+    resumeScheduled.set(false);
+    if (state != OPEN || reading || client.flowControl().suspended()) {
+      return;
+    }
+    if (unread != null) {
+      ByteBuffer buffer = unread;
+      unread = null;
+      try {
+        client.decode(buffer);
+        if (buffer.hasRemaining()) {
+          unread = buffer;
+          buffer = null;
+        }
+      } finally {
+        pool.release(buffer);
+      }
+      if (state != OPEN || unread != null || client.flowControl().suspended()) {
+        return;
+      }
+    }
+    reading = true;
+    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    if (tls != null) {
+      readAvailable();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (loop.inLoop()) {
+      flushFrames();
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      loop.execute(flushTask);
+    }
+  }
+
+  @Override
+  public void abort(final Throwable error) {
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        fail(error);
+      }
+    });
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    loop.execute(task);
+  }
+
+  private void flushFrames() throws IOException {
+    flushScheduled.set(false);
+    if (state != OPEN) {
+      return;
+    }
+    boolean flushed = client.getFrameWriter().flush(tls != null ? tls : channel);
+    if (tls != null) {
+      flushed = tls.flush() && flushed;
+    }
+    int readOps = reading ? SelectionKey.OP_READ : 0;
+    if (flushed) {
+      key.interestOps(readOps);
+    } else {
+      key.interestOps(readOps | SelectionKey.OP_WRITE);
+    }
+  }
+
+  @Override
+  public void close() {
+    close(false);
+  }
+
+  private void close(boolean failed) {
+    state = CLOSED;
+    cancelTimeout();
+    if (key != null) {
+      key.cancel();
+    }
+    if (tls != null) {
+      tls.close();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {}
+    pool.release(readBuffer);
+    readBuffer = null;
+    pool.release(unread);
+    unread = null;
+    releaseParser();
+    client.releaseBuffers(failed);
+  }
+
+  private void fail(Throwable error) {
+    if (state != CLOSED) {
+      close(true);
+      client.failed(error);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * An encoded frame waiting in a {@link FrameWriter}: the buffers to write, in
+ * order, and the pool they are returned to once written, if they were
+ * borrowed from one.
+ */
+class OutboundFrame {
+  final ByteBuffer[] buffers;
+  final BufferPool pool;
+
+  OutboundFrame(ByteBuffer[] buffers, BufferPool pool) {
+    this.buffers = buffers;
+    this.pool = pool;
+  }
+
+  OutboundFrame(ByteBuffer... buffers) {
+    this(buffers, null);
+  }
+}
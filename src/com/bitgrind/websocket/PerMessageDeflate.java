@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * The compression state of one connection which has negotiated the
+ * permessage-deflate extension (RFC 7692). A single {@link Deflater} and
+ * {@link Inflater} live as long as the connection, along with the buffer
+ * inflated data is written to, so compressing a message allocates nothing
+ * beyond the pooled buffer its output is written to.
+ * <p>
+ * With context takeover, the default, each side keeps its sliding window
+ * from one message to the next, which compresses streams of similar
+ * messages far better. When the peers agree to no context takeover the
+ * corresponding side is reset after every message instead, which trades
+ * compression for memory on the server.
+ * <p>
+ * Outbound compression may be called from any thread, but with context
+ * takeover messages must be written in the order they were compressed;
+ * callers hold this object's lock across compressing and queueing. The
+ * inbound half belongs to the thread which decodes frames.
+ */
+class PerMessageDeflate {
+  /**
+   * The empty stored block which ends every flushed deflate block. It is
+   * removed from each message sent and restored to each message received.
+   */
+  private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+  private static final int INFLATE_CHUNK = 16384;
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+
+  private final BufferPool pool;
+  private final boolean resetDeflater;
+  private final boolean resetInflater;
+
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private boolean deflaterEnded;
+
+  private final Inflater inflater = new Inflater(true);
+  private final byte[] inflated = new byte[INFLATE_CHUNK];
+  private final ByteBuffer inflatedView = ByteBuffer.wrap(inflated).asReadOnlyBuffer();
+  private byte[] input = new byte[0];
+
+  // each counter has a single writer: the lock holder for the deflate side,
+  // the decoding thread for the inflate side
+  private volatile long uncompressedSent;
+  private volatile long compressedSent;
+  private volatile long deflateNanos;
+  private volatile long compressedReceived;
+  private volatile long uncompressedReceived;
+  private volatile long inflateNanos;
+
+  /**
+   * @param pool a heap buffer pool for compressed output
+   * @param resetDeflater true for client_no_context_takeover
+   * @param resetInflater true for server_no_context_takeover
+   */
+  PerMessageDeflate(BufferPool pool, boolean resetDeflater, boolean resetInflater) {
+    this.pool = pool;
+    this.resetDeflater = resetDeflater;
+    this.resetInflater = resetInflater;
+  }
+
+  /**
+   * Compresses one message. Returns a pooled heap buffer holding the
+   * compressed payload, without the trailing empty block, which the caller
+   * must release.
+   */
+  synchronized ByteBuffer deflate(byte[] src, int offset, int length) {
+    if (deflaterEnded)
+      throw new IllegalStateException("WebSocket is closed");
+    long start = now();
+    deflater.setInput(src, offset, length);
+    ByteBuffer out = pool.acquire(length + (length >> 12) + 64);
+    int n = 0;
+    while (true) {
+      n += deflater.deflate(out.array(), out.arrayOffset() + n, out.capacity() - n, Deflater.SYNC_FLUSH);
+      if (n < out.capacity()) {
+        break;
+      }
+      // a full buffer may mean there is more to come
+      ByteBuffer larger = pool.acquire(out.capacity() * 2);
+      System.arraycopy(out.array(), out.arrayOffset(), larger.array(), larger.arrayOffset(), n);
+      pool.release(out);
+      out = larger;
+    }
+    n -= TAIL.length;
+    if (resetDeflater) {
+      deflater.reset();
+    }
+    out.limit(n);
+    uncompressedSent += length;
+    compressedSent += n;
+    deflateNanos += now() - start;
+    return out;
+  }
+
+  /** Supplies the next piece of a compressed message, consuming all of it. */
+  void setInput(ByteBuffer data) {
+    int length = data.remaining();
+    compressedReceived += length;
+    if (data.hasArray()) {
+      inflater.setInput(data.array(), data.arrayOffset() + data.position(), length);
+      data.position(data.limit());
+    } else {
+      if (input.length < length) {
+        input = new byte[Math.max(length, input.length * 2)];
+      }
+      data.get(input, 0, length);
+      inflater.setInput(input, 0, length);
+    }
+  }
+
+  /** Supplies the end of a compressed message. */
+  void finishInput() {
+    inflater.setInput(TAIL);
+  }
+
+  /**
+   * Inflates as much of the input as fits in the output buffer. Returns a
+   * read-only view of the output, valid until the next call, or null once
+   * the input has been used up.
+   */
+  ByteBuffer inflate() throws IOException {
+    long start = now();
+    int n;
+    try {
+      n = inflater.inflate(inflated);
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed message: " + e.getMessage());
+    } finally {
+      inflateNanos += now() - start;
+    }
+    if (n == 0) {
+      return null;
+    }
+    uncompressedReceived += n;
+    inflatedView.limit(n);
+    inflatedView.position(0);
+    return inflatedView;
+  }
+
+  /** Called once a compressed message has been inflated completely. */
+  void endMessage() {
+    // a final block ends the stream, so the next message starts a new one
+    if (resetInflater || inflater.finished()) {
+      inflater.reset();
+    }
+  }
+
+  /** Frees the native memory held by the inflater and deflater. */
+  void end() {
+    inflater.end();
+    synchronized (this) {
+      deflaterEnded = true;
+      deflater.end();
+    }
+  }
+
+  /**
+   * The CPU time of the calling thread, or elapsed time where the JVM cannot
+   * measure it for this thread. Both readings of one call are taken on the
+   * same thread, so they are always of the same kind.
+   */
+  private static long now() {
+    if (CPU_TIME) {
+      long time = threads.getCurrentThreadCpuTime();
+      if (time != -1) return time;
+    }
+    return System.nanoTime();
+  }
+
+  CompressionStats getStats() {
+    return new CompressionStats(uncompressedSent, compressedSent, deflateNanos, uncompressedReceived,
+        compressedReceived, inflateNanos);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A message encoded once, to be sent on any number of connections. Text is
+ * encoded to UTF-8 when the frame is prepared, rather than by every send.
+ * Over hybi-00 the whole frame is built once, in a direct buffer, and each
+ * connection writes a view of it. RFC 6455 requires a client to mask every
+ * frame with a fresh key, so there each send still costs a masked copy of
+ * the payload, but nothing more. Prepared messages are never compressed,
+ * even on connections which negotiated permessage-deflate.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public final class PreparedFrame {
+  private static final Logger logger = Logger.getLogger(PreparedFrame.class.getName());
+
+  private final boolean binary;
+  /** The payload, read-only; only ever read through duplicates. */
+  private final ByteBuffer payload;
+  /** The complete hybi-00 frame, built on first use. */
+  private volatile ByteBuffer hybi00Frame;
+
+  private PreparedFrame(boolean binary, ByteBuffer payload) {
+    this.binary = binary;
+    this.payload = payload.asReadOnlyBuffer();
+  }
+
+  /** Prepares a text message. */
+  public static PreparedFrame text(CharSequence message) {
+    byte[] utf8 = new byte[FrameEncoder.utf8Length(message)];
+    FrameEncoder.encodeUtf8(message, utf8, 0);
+    return new PreparedFrame(false, ByteBuffer.wrap(utf8));
+  }
+
+  /** Prepares a binary message from a copy of the remaining bytes of {@code message}. */
+  public static PreparedFrame binary(ByteBuffer message) {
+    ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+    copy.put(message.duplicate());
+    copy.flip();
+    return new PreparedFrame(true, copy);
+  }
+
+  public static PreparedFrame binary(byte[] message) {
+    return binary(ByteBuffer.wrap(message));
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /** The length of the payload in bytes. */
+  public int getLength() {
+    return payload.remaining();
+  }
+
+  /** Returns a view of the payload for one send. */
+  ByteBuffer payload() {
+    return payload.duplicate();
+  }
+
+  /** Returns a view of the complete hybi-00 frame for one send. */
+  ByteBuffer hybi00Frame() {
+    ByteBuffer frame = hybi00Frame;
+    if (frame == null) {
+      // racing threads build equal frames, and either will do
+      hybi00Frame = frame = Hybi00FrameEncoder.frame(binary, payload.duplicate());
+    }
+    return frame.duplicate();
+  }
+
+  /**
+   * Sends this message on each of {@code clients}, skipping any which are
+   * closing or fail, and returns the number it was sent on. As with
+   * {@link WebSocketClient#send}, it may not be on the wire yet.
+   */
+  public int sendTo(Iterable<WebSocketClient> clients) {
+    int sent = 0;
+    for (WebSocketClient client : clients) {
+      try {
+        client.send(this);
+        sent++;
+      } catch (IllegalStateException e) {
+        // closing
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Broadcast to " + client.getUri() + " failed", e);
+      }
+    }
+    return sent;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds an HTTP request directly as bytes. Each thread reuses one writer and
+ * its scratch array, so composing a request allocates nothing but the
+ * finished buffer. Strings are written as ISO-8859-1, which is all an HTTP
+ * request line and headers may contain.
+ */
+class RequestWriter {
+  private static final ThreadLocal<RequestWriter> WRITERS = new ThreadLocal<RequestWriter>() {
+    @Override
+    protected RequestWriter initialValue() {
+      return new RequestWriter();
+    }
+  };
+
+  private byte[] bytes = new byte[512];
+  private int length;
+
+  /** Returns this thread's writer, emptied. */
+  static RequestWriter get() {
+    RequestWriter writer = WRITERS.get();
+    writer.length = 0;
+    return writer;
+  }
+
+  RequestWriter append(String s) {
+    int n = s.length();
+    ensure(n);
+    for (int i = 0; i < n; i++) {
+      bytes[length++] = (byte) s.charAt(i);
+    }
+    return this;
+  }
+
+  RequestWriter append(char c) {
+    ensure(1);
+    bytes[length++] = (byte) c;
+    return this;
+  }
+
+  RequestWriter append(byte[] b) {
+    ensure(b.length);
+    System.arraycopy(b, 0, bytes, length, b.length);
+    length += b.length;
+    return this;
+  }
+
+  /** Appends a non-negative number in decimal. */
+  RequestWriter append(long n) {
+    int digits = 1;
+    for (long v = n; v >= 10; v /= 10) {
+      digits++;
+    }
+    ensure(digits);
+    length += digits;
+    for (int i = length - 1; i >= length - digits; i--) {
+      bytes[i] = (byte) ('0' + n % 10);
+      n /= 10;
+    }
+    return this;
+  }
+
+  /** Appends a header line, terminated by CRLF. */
+  RequestWriter header(String name, String value) {
+    return append(name).append(": ").append(value).crlf();
+  }
+
+  RequestWriter crlf() {
+    ensure(2);
+    bytes[length++] = '\r';
+    bytes[length++] = '\n';
+    return this;
+  }
+
+  /**
+   * Inserts {@code c} at {@code offset}, shifting everything after it along.
+   * Used to scatter characters through a value already written.
+   */
+  void insert(int offset, char c) {
+    ensure(1);
+    System.arraycopy(bytes, offset, bytes, offset + 1, length - offset);
+    bytes[offset] = (byte) c;
+    length++;
+  }
+
+  int length() {
+    return length;
+  }
+
+  /** Copies the request into a new buffer, ready to be written. */
+  ByteBuffer toBuffer() {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.put(bytes, 0, length).flip();
+    return buffer;
+  }
+
+  private void ensure(int n) {
+    if (length + n > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+    }
+  }
+}
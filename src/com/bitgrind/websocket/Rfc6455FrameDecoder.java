@@ -0,0 +1,366 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Decodes RFC 6455 frames as sent by a server: unmasked, with 7, 16 or 64 bit
+ * lengths. Fragmented messages are reassembled from their continuation
+ * frames, and control frames arriving between fragments are handled without
+ * disturbing the message in progress. Any violation of the framing rules
+ * fails the connection with an {@link IOException}.
+ * <p>
+ * Once permessage-deflate has been negotiated, messages whose first frame
+ * has RSV1 set are inflated as their frames arrive. The maximum message size
+ * applies to the inflated size, so a small compressed frame cannot force a
+ * huge buffer on the client.
+ */
+class Rfc6455FrameDecoder extends FrameDecoder {
+  static final int OP_CONTINUATION = 0x0;
+  static final int OP_TEXT = 0x1;
+  static final int OP_BINARY = 0x2;
+  static final int OP_CLOSE = 0x8;
+  static final int OP_PING = 0x9;
+  static final int OP_PONG = 0xa;
+
+  /** The reserved bit permessage-deflate uses to mark compressed messages. */
+  static final int RSV1 = 0x40;
+
+  /** The largest payload a control frame may carry. */
+  static final int MAX_CONTROL_PAYLOAD = 125;
+
+  private static final int HEADER = 0;
+  private static final int EXTENDED_LENGTH = 1;
+  private static final int PAYLOAD = 2;
+
+  /** What is being done with the data message in progress, if any. */
+  private static final int NONE = 0;
+  private static final int BUFFER = 1;
+  private static final int TRUNCATE = 2;
+  private static final int STREAM = 3;
+
+  private int state = HEADER;
+  private int headerBytes;
+  private int firstByte;
+  private boolean fin;
+  private int opcode;
+  private int lengthBytes;
+  private long length;
+  private boolean compressedFrame;
+
+  private int messageMode = NONE;
+  private boolean binaryMessage;
+  private boolean compressedMessage;
+  private PerMessageDeflate deflate;
+  private ByteBuffer controlBuffer;
+
+  Rfc6455FrameDecoder(Handler handler, BufferPool pool) {
+    this(handler, pool, Integer.MAX_VALUE, OversizePolicy.REJECT);
+  }
+
+  Rfc6455FrameDecoder(Handler handler, BufferPool pool, int maxMessageSize, OversizePolicy oversizePolicy) {
+    super(handler, pool, maxMessageSize, oversizePolicy);
+  }
+
+  @Override
+  void setDeflate(PerMessageDeflate deflate) {
+    this.deflate = deflate;
+  }
+
+  @Override
+  void decode(ByteBuffer in) throws IOException {
+    while (in.hasRemaining() && !suspended()) {
+      switch (state) {
+        case HEADER:
+          int b = in.get() & 0xff;
+          if (headerBytes++ == 0) {
+            firstByte = b;
+          } else {
+            headerBytes = 0;
+            decodeHeader(firstByte, b, in);
+          }
+          break;
+        case EXTENDED_LENGTH:
+          length = (length << 8) | (in.get() & 0xff);
+          if (--lengthBytes == 0) {
+            if (length < 0) {
+              throw new IOException("Frame length overflow");
+            }
+            startPayload(in);
+          }
+          break;
+        case PAYLOAD:
+          if (isControl(opcode)) {
+            decodeControl(in);
+          } else {
+            decodeData(in);
+          }
+          break;
+        default:
+          throw new AssertionError(state);
+      }
+    }
+  }
+
+  private void decodeHeader(int b0, int b1, ByteBuffer in) throws IOException {
+    fin = (b0 & 0x80) != 0;
+    int reserved = b0 & 0x70;
+    compressedFrame = reserved == RSV1 && deflate != null;
+    if (reserved != 0 && !compressedFrame) {
+      throw new IOException("Reserved bits set without a negotiated extension");
+    }
+    opcode = b0 & 0x0f;
+    if ((b1 & 0x80) != 0) {
+      throw new IOException("Masked frame from server");
+    }
+    length = b1 & 0x7f;
+    if (length == 126) {
+      lengthBytes = 2;
+    } else if (length == 127) {
+      lengthBytes = 8;
+    } else {
+      startPayload(in);
+      return;
+    }
+    length = 0;
+    state = EXTENDED_LENGTH;
+  }
+
+  private void startPayload(ByteBuffer in) throws IOException {
+    state = PAYLOAD;
+    if (isControl(opcode)) {
+      if (opcode != OP_CLOSE && opcode != OP_PING && opcode != OP_PONG) {
+        throw new IOException("Unknown opcode " + opcode);
+      }
+      if (!fin || length > MAX_CONTROL_PAYLOAD || compressedFrame) {
+        throw new IOException("Invalid control frame");
+      }
+    } else {
+      startData();
+    }
+    if (length == 0) {
+      // nothing more to read; complete the frame now
+      if (isControl(opcode)) {
+        decodeControl(in);
+      } else {
+        decodeData(in);
+      }
+    }
+  }
+
+  private void startData() throws IOException {
+    if (opcode == OP_CONTINUATION) {
+      if (messageMode == NONE) {
+        throw new IOException("Continuation frame without a message to continue");
+      }
+      if (compressedFrame) {
+        throw new IOException("RSV1 set on a continuation frame");
+      }
+    } else if (opcode == OP_TEXT || opcode == OP_BINARY) {
+      if (messageMode != NONE) {
+        throw new IOException("New message started before the last was finished");
+      }
+      messageMode = BUFFER;
+      binaryMessage = opcode == OP_BINARY;
+      compressedMessage = compressedFrame;
+    } else {
+      throw new IOException("Unknown opcode " + opcode);
+    }
+
+    // the inflated size of a compressed message is only known as it grows
+    if (messageMode == BUFFER && !compressedMessage && !fits(length)) {
+      oversized();
+    }
+  }
+
+  private boolean fits(long count) {
+    long size = buffered() + count;
+    return size <= maxMessageSize && size < Integer.MAX_VALUE;
+  }
+
+  /** Applies the oversize policy to the message being buffered. */
+  private void oversized() throws IOException {
+    switch (oversizePolicy) {
+      case REJECT:
+        throw tooLarge();
+      case TRUNCATE:
+        messageMode = TRUNCATE;
+        break;
+      case STREAM:
+        messageMode = STREAM;
+        handler.onMessageStart(binaryMessage);
+        deliverBufferedChunk();
+        break;
+    }
+  }
+
+  private void decodeData(ByteBuffer in) throws IOException {
+    int start = in.position();
+    int count = (int) Math.min(length, in.remaining());
+    if (messageMode == BUFFER && !compressedMessage && fin && count == length && buffered() == 0) {
+      // the whole message is in this chunk: no need to copy it
+      ByteBuffer payload = view(in, start, start + count, binaryMessage);
+      in.position(start + count);
+      state = HEADER;
+      messageMode = NONE;
+      if (binaryMessage) {
+        handler.onBinaryMessage(payload);
+      } else {
+        handler.onTextMessage(payload);
+      }
+      return;
+    }
+
+    length -= count;
+    boolean last = length == 0 && fin;
+    if (length == 0) {
+      state = HEADER;
+    }
+    ByteBuffer data = view(in, start, start + count, !compressedMessage);
+    in.position(start + count);
+    if (compressedMessage) {
+      deflate.setInput(data);
+      inflate();
+      if (last) {
+        deflate.finishInput();
+        inflate();
+        deflate.endMessage();
+      }
+    } else {
+      if (messageMode == BUFFER) {
+        // the frame length is known up front, so size the buffer once if it is modest
+        reserve(buffered() + (long) count + length);
+      }
+      consume(data);
+    }
+    if (last) {
+      finishMessage();
+    }
+  }
+
+  private void inflate() throws IOException {
+    ByteBuffer inflated;
+    while ((inflated = deflate.inflate()) != null) {
+      consume(inflated);
+    }
+  }
+
+  /** Adds payload bytes to the message in progress. */
+  private void consume(ByteBuffer data) throws IOException {
+    switch (messageMode) {
+      case BUFFER:
+        if (!fits(data.remaining())) {
+          oversized();
+          consume(data);
+          return;
+        }
+        append(data, data.remaining());
+        break;
+      case TRUNCATE:
+        append(data, Math.min(data.remaining(), maxMessageSize - buffered()));
+        break;
+      case STREAM:
+        if (data.hasRemaining()) {
+          handler.onMessageChunk(data);
+        }
+        break;
+      default:
+        throw new AssertionError(messageMode);
+    }
+  }
+
+  private void finishMessage() throws IOException {
+    int mode = messageMode;
+    messageMode = NONE;
+    switch (mode) {
+      case BUFFER:
+        deliver(false);
+        break;
+      case TRUNCATE:
+        deliver(true);
+        break;
+      case STREAM:
+        handler.onMessageEnd();
+        break;
+      default:
+        throw new AssertionError(mode);
+    }
+  }
+
+  private void deliver(boolean truncated) throws IOException {
+    if (binaryMessage) {
+      deliverBinary();
+    } else {
+      deliverText(truncated);
+    }
+  }
+
+  private void decodeControl(ByteBuffer in) throws IOException {
+    int start = in.position();
+    int count = (int) Math.min(length, in.remaining());
+    boolean partial = controlBuffer != null && controlBuffer.position() > 0;
+    if (count == length && !partial) {
+      ByteBuffer payload = view(in, start, start + count, true);
+      in.position(start + count);
+      state = HEADER;
+      control(payload);
+      return;
+    }
+
+    if (controlBuffer == null) {
+      controlBuffer = ByteBuffer.allocate(MAX_CONTROL_PAYLOAD);
+    }
+    int limit = in.limit();
+    in.limit(start + count);
+    controlBuffer.put(in);
+    in.limit(limit);
+    length -= count;
+    if (length == 0) {
+      state = HEADER;
+      controlBuffer.flip();
+      try {
+        control(controlBuffer.asReadOnlyBuffer());
+      } finally {
+        controlBuffer.clear();
+      }
+    }
+  }
+
+  private void control(ByteBuffer payload) throws IOException {
+    switch (opcode) {
+      case OP_CLOSE:
+        handler.onCloseFrame();
+        break;
+      case OP_PING:
+        handler.onPing(payload);
+        break;
+      case OP_PONG:
+        handler.onPong(payload);
+        break;
+      default:
+        throw new AssertionError(opcode);
+    }
+  }
+
+  private static boolean isControl(int opcode) {
+    return (opcode & 0x8) != 0;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.OP_BINARY;
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.OP_CLOSE;
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.OP_PING;
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.OP_PONG;
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.OP_TEXT;
+import static com.bitgrind.websocket.Rfc6455FrameDecoder.RSV1;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Frames outgoing RFC 6455 messages. Every message is sent as a single
+ * frame, masked with a fresh key as the protocol requires of clients. The
+ * mask is applied eight bytes at a time while the payload is copied into
+ * the frame, so unlike hybi-00 binary payloads are copied; the caller's
+ * buffer is never modified. Compressed messages are deflated into a pooled
+ * buffer first and marked with RSV1.
+ * <p>
+ * RFC 6455 requires masking keys which cannot be predicted, so they come
+ * from a {@link SecureRandom}, drawn a block of keys at a time so that the
+ * cost of drawing them is shared by many frames.
+ */
+class Rfc6455FrameEncoder extends FrameEncoder {
+  private static final SecureRandom random = new SecureRandom();
+  private static final int KEYS_PER_BLOCK = 64;
+
+  /** Status code 1000, normal closure. */
+  private static final byte[] NORMAL_CLOSURE = { 0x03, (byte) 0xe8 };
+
+  /** Masking keys not yet used, taken from the position on. Guarded by this. */
+  private final ByteBuffer keys = ByteBuffer.allocate(4 * KEYS_PER_BLOCK);
+
+  Rfc6455FrameEncoder(BufferPool pool) {
+    super(pool);
+    keys.position(keys.limit());
+  }
+
+  /** Returns a fresh masking key, refilling the block when it runs out. */
+  private synchronized int nextKey() {
+    if (!keys.hasRemaining()) {
+      random.nextBytes(keys.array());
+      keys.clear();
+    }
+    return keys.getInt();
+  }
+
+  @Override
+  OutboundFrame encodeText(CharSequence message) {
+    int length = utf8Length(message);
+    int key = nextKey();
+    ByteBuffer frame = header(OP_TEXT, length, key);
+    int payloadStart = frame.position();
+    encodeUtf8(message, frame.array(), frame.arrayOffset() + payloadStart);
+    frame.limit(payloadStart + length);
+    ByteBuffer payload = frame.slice();
+    mask(payload, payload.duplicate(), key);
+    frame.position(0);
+    return new OutboundFrame(new ByteBuffer[] { frame }, pool);
+  }
+
+  @Override
+  OutboundFrame encodeBinary(ByteBuffer payload) {
+    return encode(OP_BINARY, payload);
+  }
+
+  @Override
+  OutboundFrame encodeClose() {
+    return encode(OP_CLOSE, ByteBuffer.wrap(NORMAL_CLOSURE));
+  }
+
+  @Override
+  OutboundFrame encodePong(ByteBuffer payload) {
+    return encode(OP_PONG, payload);
+  }
+
+  @Override
+  OutboundFrame encodePing() {
+    return encode(OP_PING, ByteBuffer.allocate(0));
+  }
+
+  /** Masks a copy of the prepared payload; the UTF-8 encoding is already done. */
+  @Override
+  OutboundFrame encode(PreparedFrame frame) {
+    return encode(frame.isBinary() ? OP_BINARY : OP_TEXT, frame.payload());
+  }
+
+  @Override
+  OutboundFrame encodeText(CharSequence message, PerMessageDeflate deflate) {
+    int length = utf8Length(message);
+    ByteBuffer text = pool.acquire(length);
+    try {
+      encodeUtf8(message, text.array(), text.arrayOffset());
+      return encodeCompressed(OP_TEXT, deflate.deflate(text.array(), text.arrayOffset(), length));
+    } finally {
+      pool.release(text);
+    }
+  }
+
+  @Override
+  OutboundFrame encodeBinary(ByteBuffer payload, PerMessageDeflate deflate) {
+    if (payload.hasArray()) {
+      return encodeCompressed(OP_BINARY,
+          deflate.deflate(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()));
+    }
+    ByteBuffer copy = pool.acquire(payload.remaining());
+    try {
+      copy.put(payload.duplicate());
+      return encodeCompressed(OP_BINARY, deflate.deflate(copy.array(), copy.arrayOffset(), copy.position()));
+    } finally {
+      pool.release(copy);
+    }
+  }
+
+  private OutboundFrame encodeCompressed(int opcode, ByteBuffer compressed) {
+    try {
+      return encode(RSV1 | opcode, compressed);
+    } finally {
+      pool.release(compressed);
+    }
+  }
+
+  /** @param opcode the opcode, along with any reserved bits to set */
+  private OutboundFrame encode(int opcode, ByteBuffer payload) {
+    int key = nextKey();
+    ByteBuffer frame = header(opcode, payload.remaining(), key);
+    mask(payload.duplicate(), frame, key);
+    frame.flip();
+    return new OutboundFrame(new ByteBuffer[] { frame }, pool);
+  }
+
+  /**
+   * Returns a pooled buffer with room for the whole frame, holding the
+   * header and masking key and positioned at the start of the payload.
+   */
+  private ByteBuffer header(int opcode, int length, int key) {
+    int headerLength = length < 126 ? 2 : length < 65536 ? 4 : 10;
+    ByteBuffer frame = pool.acquire(headerLength + 4 + length);
+    frame.order(ByteOrder.BIG_ENDIAN);
+    frame.put((byte) (0x80 | opcode));
+    if (length < 126) {
+      frame.put((byte) (0x80 | length));
+    } else if (length < 65536) {
+      frame.put((byte) (0x80 | 126));
+      frame.putShort((short) length);
+    } else {
+      frame.put((byte) (0x80 | 127));
+      frame.putLong(length);
+    }
+    frame.putInt(key);
+    return frame;
+  }
+
+  /**
+   * Copies the remaining bytes of {@code src} to {@code dst}, XORing them
+   * with the masking key. The key is repeated to fill a long so that the
+   * bulk of the payload is masked eight bytes per operation. {@code src}
+   * and {@code dst} may share content, provided they start at the same
+   * place.
+   */
+  static void mask(ByteBuffer src, ByteBuffer dst, int key) {
+    src.order(ByteOrder.BIG_ENDIAN);
+    dst.order(ByteOrder.BIG_ENDIAN);
+    long wideKey = ((long) key << 32) | (key & 0xffffffffL);
+    while (src.remaining() >= 8) {
+      dst.putLong(src.getLong() ^ wideKey);
+    }
+    // the longs consumed a multiple of four bytes, so the key starts over
+    for (int i = 0; src.hasRemaining(); i++) {
+      dst.put((byte) (src.get() ^ (key >>> (24 - 8 * (i & 3)))));
+    }
+  }
+}
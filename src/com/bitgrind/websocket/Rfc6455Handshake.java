@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import com.bitgrind.websocket.util.Base64;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * The client side of the RFC 6455 opening handshake: a random
+ * Sec-WebSocket-Key, and the Sec-WebSocket-Accept the server must derive
+ * from it. Optionally offers the permessage-deflate extension, and checks
+ * that the server's answer to the offer is one the client can honour.
+ * <p>
+ * Like {@link Hybi00Handshake}, the request is composed in a per-thread
+ * {@link RequestWriter} with a per-thread random source and digest.
+ */
+class Rfc6455Handshake extends Handshake {
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] ACCEPT_GUID_BYTES = ACCEPT_GUID.getBytes(UTF8);
+  private static final ThreadLocal<SecureRandom> rnd = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      return new SecureRandom();
+    }
+  };
+  private static final ThreadLocal<MessageDigest> sha1 = threadDigest("SHA-1");
+
+  private final ByteBuffer request;
+  private final String expectedAccept;
+  private final boolean offerDeflate;
+  private final boolean contextTakeover;
+
+  private boolean deflateAccepted;
+  private boolean clientNoContextTakeover;
+  private boolean serverNoContextTakeover;
+
+  Rfc6455Handshake(URI uri) {
+    this(uri, false, true);
+  }
+
+  /**
+   * @param offerDeflate whether to offer permessage-deflate
+   * @param contextTakeover if false, ask for no context takeover in both
+   *        directions
+   */
+  Rfc6455Handshake(URI uri, boolean offerDeflate, boolean contextTakeover) {
+    this.offerDeflate = offerDeflate;
+    this.contextTakeover = contextTakeover;
+    byte[] nonce = new byte[16];
+    rnd.get().nextBytes(nonce);
+    String key = Base64.encode(nonce);
+
+    RequestWriter request = RequestWriter.get();
+    request.append("GET ").append(uri.getPath()).append(" HTTP/1.1").crlf();
+    request.append("Host: ").append(uri.getHost());
+    if (uri.getPort() != (uri.getScheme().equals("wss") ? 443 : 80)) {
+      request.append(':').append(uri.getPort());
+    }
+    request.crlf();
+    request.header("Upgrade", "websocket");
+    request.header("Connection", "Upgrade");
+    request.header("Sec-WebSocket-Key", key);
+    request.header("Sec-WebSocket-Version", "13");
+    if (offerDeflate) {
+      request.append("Sec-WebSocket-Extensions: permessage-deflate");
+      if (!contextTakeover) {
+        request.append("; client_no_context_takeover; server_no_context_takeover");
+      }
+      request.crlf();
+    }
+    request.crlf();
+    this.request = request.toBuffer();
+
+    MessageDigest digest = sha1.get();
+    digest.update(key.getBytes(UTF8));
+    digest.update(ACCEPT_GUID_BYTES);
+    expectedAccept = Base64.encode(digest.digest());
+  }
+
+  @Override
+  ByteBuffer getRequest() {
+    return request.duplicate();
+  }
+
+  @Override
+  int getResponseLength() {
+    return 0;
+  }
+
+  @Override
+  void verify(HttpResponse response, byte[] body) throws IOException {
+    if (response.getStatusCode() != 101)
+      throw new IOException(String.format("Server refused the upgrade: %d %s", response.getStatusCode(),
+          response.getStatusMessage()));
+    if (!response.headerEqualsIgnoreCase("Upgrade", "websocket"))
+      throw new IOException("Missing Upgrade: websocket header");
+    if (!hasToken(response.getHeaderValue("Connection"), "upgrade"))
+      throw new IOException("Missing Connection: Upgrade header");
+    if (!expectedAccept.equals(response.getHeaderValue("Sec-WebSocket-Accept")))
+      throw new IOException("Sec-WebSocket-Accept does not match Sec-WebSocket-Key");
+    String extensions = response.getHeaderValue("Sec-WebSocket-Extensions");
+    if (extensions != null) {
+      acceptExtensions(extensions);
+    }
+  }
+
+  /**
+   * Parses the extensions the server agreed to. Anything other than a single
+   * permessage-deflate, with parameters the client can honour, fails the
+   * handshake as RFC 6455 requires.
+   */
+  private void acceptExtensions(String extensions) throws IOException {
+    for (String extension : extensions.split(",")) {
+      String[] params = extension.split(";");
+      String name = params[0].trim();
+      if (name.length() == 0) {
+        continue;
+      }
+      if (!offerDeflate || !name.equalsIgnoreCase("permessage-deflate") || deflateAccepted)
+        throw new IOException("Server accepted an extension which was not offered: " + name);
+      deflateAccepted = true;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        String value = null;
+        int equals = param.indexOf('=');
+        if (equals != -1) {
+          value = param.substring(equals + 1).trim();
+          param = param.substring(0, equals).trim();
+        }
+        if (param.equalsIgnoreCase("client_no_context_takeover") && value == null) {
+          clientNoContextTakeover = true;
+        } else if (param.equalsIgnoreCase("server_no_context_takeover") && value == null) {
+          serverNoContextTakeover = true;
+        } else if (param.equalsIgnoreCase("server_max_window_bits") && isWindowBits(value)) {
+          // a smaller window on the server's side needs nothing of the inflater
+        } else {
+          // includes client_max_window_bits, which was not offered: the
+          // JDK's Deflater always uses a 32K window
+          throw new IOException("Unsupported permessage-deflate parameter: " + params[i].trim());
+        }
+      }
+    }
+  }
+
+  private static boolean isWindowBits(String value) {
+    if (value == null)
+      return false;
+    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+      value = value.substring(1, value.length() - 1);
+    }
+    try {
+      int bits = Integer.parseInt(value);
+      return bits >= 8 && bits <= 15;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  @Override
+  PerMessageDeflate newDeflate(BufferPool pool) {
+    if (!deflateAccepted)
+      return null;
+    return new PerMessageDeflate(pool, clientNoContextTakeover || !contextTakeover, serverNoContextTakeover);
+  }
+
+  private static boolean hasToken(String value, String token) {
+    if (value == null)
+      return false;
+    for (String part : value.split(",")) {
+      if (part.trim().equalsIgnoreCase(token))
+        return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.WebSocketOptions.OverflowPolicy;
+import com.bitgrind.websocket.WebSocketOptions.WaitStrategy;
+
+/**
+ * Hands messages from a connection's reading thread to one or more dispatch
+ * threads through a bounded ring of preallocated slots, so that the listener
+ * runs without holding up the socket. Every message is delivered, in order
+ * with a single dispatch thread, unless the {@link OverflowPolicy} drops it.
+ * <p>
+ * The reading thread is the only producer. Each slot carries a sequence
+ * number which says whether it is free for the producer or full for a
+ * consumer, so neither side takes a lock; consumers claim a slot by
+ * advancing the shared head with a CAS. A consumer releases a slot as soon
+ * as it has claimed it by swapping its own spare array for the slot's, so
+ * the producer never waits on a listener callback in progress, and
+ * {@link OverflowPolicy#DROP_OLDEST} can discard the oldest message simply
+ * by claiming it in the consumers' place. Payload arrays move between slots
+ * and consumers rather than being copied twice or allocated per message.
+ * <p>
+ * Each consumer drains every message available before it waits again. The
+ * end of the connection is published like a message, so it is delivered
+ * after everything received before it; with several consumers, the one
+ * which claims the end first waits for the others to finish delivering the
+ * messages they claimed before it.
+ */
+class RingDispatcher implements Dispatcher {
+  private static final Logger logger = Logger.getLogger(RingDispatcher.class.getName());
+
+  private static final int TEXT = 0;
+  private static final int BINARY = 1;
+  private static final int CLOSE = 2;
+  private static final int ERROR = 3;
+  /** Ends dispatch without telling the listener. */
+  private static final int STOP = 4;
+
+  /** Payload arrays larger than this are not kept once delivered. */
+  private static final int RETAIN_LIMIT = 65536;
+
+  private static final AtomicInteger threadNumber = new AtomicInteger();
+
+  private static class Slot {
+    /** Equal to the index it may next be published at while free; one more once published. */
+    volatile long sequence;
+    int type;
+    byte[] data;
+    int length;
+    /** When the message was published, by {@link System#nanoTime}. */
+    long published;
+    Throwable error;
+  }
+
+  private final Sink sink;
+  private final Histogram latency;
+  private final Slot[] slots;
+  private final int mask;
+  private final WaitStrategy waitStrategy;
+  private final OverflowPolicy overflowPolicy;
+  private final Consumer[] workers;
+  private final Thread[] consumers;
+
+  /** The index of the next slot to consume. */
+  private final AtomicLong head = new AtomicLong();
+  /** The index of the next slot to publish; written by the producer only. */
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicInteger sleepingConsumers = new AtomicInteger();
+  private volatile Thread sleepingProducer;
+  private volatile boolean stopped;
+  private boolean ended;
+
+  /**
+   * @param latency records how long each message waits between being
+   *        published and being delivered, if not null
+   */
+  RingDispatcher(Sink sink, Histogram latency, int capacity, int threads, WaitStrategy waitStrategy,
+      OverflowPolicy overflowPolicy) {
+    this.sink = sink;
+    this.latency = latency;
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new Slot[size];
+    this.mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      slots[i].sequence = i;
+    }
+    this.waitStrategy = waitStrategy;
+    this.overflowPolicy = overflowPolicy;
+    this.workers = new Consumer[threads];
+    this.consumers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Consumer();
+      consumers[i] = new Thread(workers[i], "websocket-dispatch-" + threadNumber.incrementAndGet());
+      consumers[i].setDaemon(true);
+    }
+  }
+
+  @Override
+  public void start() {
+    for (Thread consumer : consumers) {
+      consumer.start();
+    }
+  }
+
+  int getCapacity() {
+    return slots.length;
+  }
+
+  @Override
+  public DispatchStats getStats() {
+    long consumed = head.get();
+    long published = tail.get();
+    return new DispatchStats(slots.length, (int) Math.max(0, published - consumed), published, dropped.get());
+  }
+
+  @Override
+  public void publishText(ByteBuffer payload) {
+    publish(TEXT, payload, null);
+  }
+
+  @Override
+  public void publishBinary(ByteBuffer payload) {
+    publish(BINARY, payload, null);
+  }
+
+  @Override
+  public void publishClose() {
+    end(CLOSE, null);
+  }
+
+  @Override
+  public void publishError(Throwable error) {
+    end(ERROR, error);
+  }
+
+  @Override
+  public void finish() {
+    end(STOP, null);
+  }
+
+  private void end(int type, Throwable error) {
+    if (ended) {
+      return;
+    }
+    ended = true;
+    // the end of the connection is never dropped
+    long index = tail.get();
+    Slot slot = slots[(int) index & mask];
+    while (slot.sequence != index) {
+      if (overflowPolicy != OverflowPolicy.DROP_OLDEST || !discardOldest()) {
+        waitForSpace();
+      }
+    }
+    fill(slot, index, type, null, error);
+  }
+
+  private void publish(int type, ByteBuffer payload, Throwable error) {
+    if (ended) {
+      sink.released(payload.remaining());
+      return;
+    }
+    long index = tail.get();
+    Slot slot = slots[(int) index & mask];
+    while (slot.sequence != index) {
+      switch (overflowPolicy) {
+        case DROP_NEWEST:
+          dropped.incrementAndGet();
+          sink.released(payload.remaining());
+          return;
+        case DROP_OLDEST:
+          if (discardOldest()) {
+            continue;
+          }
+          // the oldest is being handed to a consumer right now
+          waitForSpace();
+          break;
+        default:
+          waitForSpace();
+      }
+    }
+    fill(slot, index, type, payload, error);
+  }
+
+  private void fill(Slot slot, long index, int type, ByteBuffer payload, Throwable error) {
+    slot.type = type;
+    slot.error = error;
+    if (payload != null) {
+      int length = payload.remaining();
+      if (slot.data == null || slot.data.length < length) {
+        slot.data = new byte[Math.max(length, 256)];
+      }
+      int position = payload.position();
+      payload.get(slot.data, 0, length);
+      payload.position(position);
+      slot.length = length;
+      slot.published = System.nanoTime();
+    }
+    slot.sequence = index + 1;
+    tail.lazySet(index + 1);
+    if (sleepingConsumers.get() > 0) {
+      for (Thread consumer : consumers) {
+        LockSupport.unpark(consumer);
+      }
+    }
+  }
+
+  /** Claims the oldest message in place of a consumer and throws it away. */
+  private boolean discardOldest() {
+    long index = head.get();
+    Slot slot = slots[(int) index & mask];
+    if (slot.sequence != index + 1 || slot.type > BINARY || !head.compareAndSet(index, index + 1)) {
+      return false;
+    }
+    int length = slot.length;
+    slot.sequence = index + slots.length;
+    dropped.incrementAndGet();
+    sink.released(length);
+    return true;
+  }
+
+  private void waitForSpace() {
+    if (stopped)
+      throw new IllegalStateException("Dispatcher has stopped");
+    switch (waitStrategy) {
+      case BUSY_SPIN:
+        break;
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        sleepingProducer = Thread.currentThread();
+        Slot slot = slots[(int) tail.get() & mask];
+        if (slot.sequence != tail.get()) {
+          LockSupport.park(this);
+        }
+        sleepingProducer = null;
+    }
+  }
+
+  private class Consumer implements Runnable {
+    private final Utf8Decoder utf8 = new Utf8Decoder();
+    private byte[] spare;
+    /**
+     * The index this consumer may be claiming or delivering, or
+     * {@link Long#MAX_VALUE} while it is not. Set before the claim, so a
+     * consumer which claims a later index sees it.
+     */
+    volatile long claiming = Long.MAX_VALUE;
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        if (!drain()) {
+          await();
+        }
+      }
+    }
+
+    /** Delivers every message available; returns false if there were none. */
+    private boolean drain() {
+      boolean delivered = false;
+      long index;
+      Slot slot;
+      while (!stopped) {
+        index = head.get();
+        claiming = index;
+        slot = slots[(int) index & mask];
+        long sequence = slot.sequence;
+        if (sequence != index + 1) {
+          if (sequence - (index + 1) < 0) {
+            // empty
+            claiming = Long.MAX_VALUE;
+            return delivered;
+          }
+          // another consumer has claimed it
+          continue;
+        }
+        if (!head.compareAndSet(index, index + 1)) {
+          continue;
+        }
+        int type = slot.type;
+        int length = slot.length;
+        byte[] data = slot.data;
+        long published = slot.published;
+        Throwable error = slot.error;
+        slot.data = spare;
+        slot.error = null;
+        slot.sequence = index + slots.length;
+        Thread producer = sleepingProducer;
+        if (producer != null) {
+          LockSupport.unpark(producer);
+        }
+        if (type <= BINARY) {
+          sink.released(length);
+          if (latency != null) {
+            latency.record(System.nanoTime() - published);
+          }
+        }
+        deliver(index, type, data, length, error);
+        spare = data != null && data.length <= RETAIN_LIMIT ? data : null;
+        delivered = true;
+      }
+      claiming = Long.MAX_VALUE;
+      return delivered;
+    }
+
+    private void deliver(long index, int type, byte[] data, int length, Throwable error) {
+      try {
+        switch (type) {
+          case TEXT:
+            sink.deliverText(wrap(data, length), utf8);
+            break;
+          case BINARY:
+            sink.deliverBinary(wrap(data, length).asReadOnlyBuffer());
+            break;
+          case CLOSE:
+            awaitEarlier(index);
+            stop();
+            sink.deliverClose();
+            break;
+          case ERROR:
+            awaitEarlier(index);
+            stop();
+            sink.deliverError(error);
+            break;
+          default:
+            stop();
+        }
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Listener failed", e);
+        sink.deliverError(e);
+      }
+    }
+
+    /** Waits for the other consumers to deliver what they claimed before {@code index}. */
+    private void awaitEarlier(long index) {
+      for (Consumer other : workers) {
+        while (other != this && other.claiming < index) {
+          LockSupport.parkNanos(this, 100000);
+        }
+      }
+    }
+
+    private ByteBuffer wrap(byte[] data, int length) {
+      return ByteBuffer.wrap(data, 0, length).slice();
+    }
+
+    private void await() {
+      switch (waitStrategy) {
+        case BUSY_SPIN:
+          break;
+        case YIELD:
+          Thread.yield();
+          break;
+        default:
+          sleepingConsumers.incrementAndGet();
+          long index = head.get();
+          if (slots[(int) index & mask].sequence != index + 1 && !stopped) {
+            LockSupport.park(this);
+          }
+          sleepingConsumers.decrementAndGet();
+      }
+    }
+  }
+
+  private void stop() {
+    stopped = true;
+    for (Thread consumer : consumers) {
+      LockSupport.unpark(consumer);
+    }
+    Thread producer = sleepingProducer;
+    if (producer != null) {
+      LockSupport.unpark(producer);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * Multiplexes many WebSocket connections over a small, fixed number of event
+ * loop threads using non-blocking channels, rather than dedicating a thread
+ * to each connection as the {@link WebSocketClient} constructor does.
+ * <p>
+ * Connections are spread across the loops round-robin. All listener
+ * callbacks for a connection are made on its loop thread, so listeners
+ * should hand off any lengthy work.
+ */
+public class SelectorEngine implements Closeable {
+  private static SelectorEngine defaultEngine;
+  private static final AtomicInteger connectorNumber = new AtomicInteger();
+
+  private final SelectorLoop[] loops;
+  private final BufferPool pool;
+  private final AtomicInteger next = new AtomicInteger();
+  /**
+   * Resolves host names and opens sockets for {@link #connectAsync}. Both
+   * may block for as long as a resolver stalls, so they get threads of their
+   * own rather than a shared pool's, which would be held up by a connect
+   * storm: a virtual thread each where the JDK has them, otherwise daemon
+   * threads which expire when idle.
+   */
+  private final ExecutorService connector = Executors.newCachedThreadPool(connectorThreads());
+
+  /** Creates an engine with one event loop per available processor. */
+  public SelectorEngine() throws IOException {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Returns an engine shared by the whole process, with one loop per
+   * available processor, creating it on first use. Its threads are daemons.
+   * It must not be closed.
+   */
+  public static synchronized SelectorEngine getDefault() throws IOException {
+    if (defaultEngine == null) {
+      defaultEngine = new SelectorEngine();
+    }
+    return defaultEngine;
+  }
+
+  public SelectorEngine(int threads) throws IOException {
+    this(threads, BufferPool.getDefault());
+  }
+
+  /**
+   * @param threads the number of event loop threads
+   * @param pool the pool which receive buffers are borrowed from; a pool of
+   *          direct buffers saves a copy on every read
+   */
+  public SelectorEngine(int threads, BufferPool pool) throws IOException {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be positive");
+
+    this.pool = pool;
+    loops = new SelectorLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new SelectorLoop("websocket-selector-" + i, pool);
+    }
+    for (SelectorLoop loop : loops) {
+      loop.start();
+    }
+  }
+
+  /**
+   * Starts connecting to {@code wsUrl} and returns immediately. The
+   * listener's {@code onOpen} is called once the handshake completes, or
+   * {@code onError} if it fails.
+   */
+  public WebSocketClient connect(String wsUrl, WebSocketListener listener) throws IOException, URISyntaxException {
+    return connect(wsUrl, listener, new WebSocketOptions());
+  }
+
+  public WebSocketClient connect(String wsUrl, WebSocketListener listener, WebSocketOptions options)
+      throws IOException, URISyntaxException {
+    URI uri = WebSocketClient.toWebSocketUri(wsUrl);
+    WebSocketClient client = new WebSocketClient(uri, listener, options, pool);
+    open(client);
+    return client;
+  }
+
+  private void open(WebSocketClient client) throws IOException {
+    URI uri = client.getUri();
+    SocketChannel channel = SocketChannel.open();
+    try {
+      channel.configureBlocking(false);
+      TlsChannel tls = client.isSecure() ? new TlsChannel(channel, channel, client.newSslEngine()) : null;
+      boolean connected = channel.connect(new InetSocketAddress(uri.getHost(), uri.getPort()));
+      SelectorLoop loop = nextLoop();
+      loop.register(new NioConnection(loop, client, channel, tls, pool, connected));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static ThreadFactory connectorThreads() {
+    if (VirtualThreads.isSupported()) {
+      return VirtualThreads.factory("websocket-connect-");
+    }
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "websocket-connect-" + connectorNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Connects without blocking the caller, not even to resolve the host name,
+   * which is done on a thread belonging to the engine. The
+   * future completes once the listener's {@code onOpen} has returned, or
+   * exceptionally if the connection fails first; failures are reported to
+   * the listener's {@code onError} as well. Dependent stages run on a loop
+   * thread unless an executor is given for them.
+   */
+  public CompletableFuture<WebSocketClient> connectAsync(String wsUrl, WebSocketListener listener,
+      WebSocketOptions options) {
+    final WebSocketClient client;
+    try {
+      client = new WebSocketClient(WebSocketClient.toWebSocketUri(wsUrl), listener, options, pool);
+    } catch (URISyntaxException e) {
+      CompletableFuture<WebSocketClient> failed = new CompletableFuture<WebSocketClient>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    try {
+      connector.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            open(client);
+          } catch (IOException e) {
+            client.failed(e);
+          } catch (RuntimeException e) {
+            client.failed(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the engine has been closed
+      client.failed(e);
+    }
+    return client.opening();
+  }
+
+  /**
+   * Connects to many endpoints at once, keeping at most
+   * {@code maxInFlight} connections between starting to connect and
+   * opening or failing. This lets a whole fleet come up in parallel without
+   * every handshake hitting the servers in the same instant. Set a connect
+   * and handshake timeout in {@code options}, or an unresponsive server can
+   * hold its slot forever.
+   *
+   * @param endpoints a listener for each URL
+   * @return a future for each URL, as from {@link #connectAsync}, in the
+   *         iteration order of {@code endpoints}
+   */
+  public Map<String, CompletableFuture<WebSocketClient>> connectAll(Map<String, WebSocketListener> endpoints,
+      WebSocketOptions options, int maxInFlight) {
+    if (maxInFlight < 1)
+      throw new IllegalArgumentException("maxInFlight must be positive");
+
+    Map<String, CompletableFuture<WebSocketClient>> results =
+        new LinkedHashMap<String, CompletableFuture<WebSocketClient>>();
+    BulkConnect bulk = new BulkConnect(options);
+    for (Map.Entry<String, WebSocketListener> endpoint : endpoints.entrySet()) {
+      CompletableFuture<WebSocketClient> result = new CompletableFuture<WebSocketClient>();
+      results.put(endpoint.getKey(), result);
+      bulk.pending.add(new PendingConnect(endpoint.getKey(), endpoint.getValue(), result));
+    }
+    for (int i = 0; i < maxInFlight; i++) {
+      bulk.startNext();
+    }
+    return results;
+  }
+
+  private static class PendingConnect {
+    final String wsUrl;
+    final WebSocketListener listener;
+    final CompletableFuture<WebSocketClient> result;
+
+    PendingConnect(String wsUrl, WebSocketListener listener, CompletableFuture<WebSocketClient> result) {
+      this.wsUrl = wsUrl;
+      this.listener = listener;
+      this.result = result;
+    }
+  }
+
+  /**
+   * Starts the next pending connection each time one finishes. A connection
+   * which fails at once finishes inside {@link #connectAsync}, so rather
+   * than recurse, a call made while another is starting connections only
+   * asks that one to start one more.
+   */
+  private class BulkConnect {
+    final Queue<PendingConnect> pending = new ArrayDeque<PendingConnect>();
+    final WebSocketOptions options;
+    /** Connections to start; guarded by pending. */
+    private int requested;
+    /** Whether a thread is starting connections; guarded by pending. */
+    private boolean starting;
+
+    BulkConnect(WebSocketOptions options) {
+      this.options = options;
+    }
+
+    void startNext() {
+      synchronized (pending) {
+        requested++;
+        if (starting) {
+          return;
+        }
+        starting = true;
+      }
+      while (true) {
+        final PendingConnect next;
+        synchronized (pending) {
+          next = requested > 0 ? pending.poll() : null;
+          if (next == null) {
+            requested = 0;
+            starting = false;
+            return;
+          }
+          requested--;
+        }
+        connectAsync(next.wsUrl, next.listener, options).whenComplete(new BiConsumer<WebSocketClient, Throwable>() {
+          @Override
+          public void accept(WebSocketClient client, Throwable error) {
+            if (error != null) {
+              next.result.completeExceptionally(error);
+            } else {
+              next.result.complete(client);
+            }
+            startNext();
+          }
+        });
+      }
+    }
+  }
+
+  /** Stops every event loop, closing their connections without callbacks. */
+  @Override
+  public void close() {
+    connector.shutdown();
+    for (SelectorLoop loop : loops) {
+      loop.shutdown();
+    }
+  }
+
+  private SelectorLoop nextLoop() {
+    return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * One event loop thread of a {@link SelectorEngine}. Owns a {@link Selector}
+ * and every {@link NioConnection} registered with it.
+ */
+class SelectorLoop implements Runnable {
+  private static final Logger logger = Logger.getLogger(SelectorLoop.class.getName());
+
+  /** A task to run on the loop thread once its deadline has passed. */
+  static class Timeout implements Comparable<Timeout> {
+    final long deadline;
+    final Runnable task;
+    boolean cancelled;
+
+    Timeout(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    /** Stops the task from running. Must be called on the loop thread. */
+    void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public int compareTo(Timeout o) {
+      return Long.compare(deadline - o.deadline, 0);
+    }
+  }
+
+  private final Selector selector;
+  private final BufferPool pool;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  /** Only touched on the loop thread. */
+  private final PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  SelectorLoop(String name, BufferPool pool) throws IOException {
+    this.pool = pool;
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /** Hands a connection to this loop. May be called from any thread. */
+  void register(final NioConnection connection) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        connection.register(selector);
+      }
+    });
+  }
+
+  /**
+   * Runs {@code task} on the loop thread, after the current round of
+   * readiness events. May be called from any thread.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (!inLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Runs {@code task} on the loop thread after {@code delayMillis}, unless
+   * it is cancelled first. Must be called on the loop thread.
+   */
+  Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(System.nanoTime() + delayMillis * 1000000L, task);
+    timeouts.add(timeout);
+    return timeout;
+  }
+
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    pool.attachThreadCache();
+    while (running) {
+      try {
+        selector.select(untilNextTimeout());
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Select failed", e);
+        continue;
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (key.isValid()) {
+          ((NioConnection) key.attachment()).handle();
+        }
+      }
+
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Task failed", e);
+        }
+      }
+      runTimeouts();
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      ((NioConnection) key.attachment()).close();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException thrown while closing Selector.", e);
+    }
+    pool.releaseThreadCache();
+  }
+
+  /** Returns the select timeout in milliseconds, zero meaning none. */
+  private long untilNextTimeout() {
+    Timeout next;
+    while ((next = timeouts.peek()) != null && next.cancelled) {
+      timeouts.poll();
+    }
+    if (next == null) {
+      return 0;
+    }
+    return Math.max(1, (next.deadline - System.nanoTime() + 999999) / 1000000);
+  }
+
+  private void runTimeouts() {
+    long now = System.nanoTime();
+    Timeout next;
+    while ((next = timeouts.peek()) != null && next.deadline - now <= 0) {
+      timeouts.poll();
+      if (!next.cancelled) {
+        try {
+          next.task.run();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Timeout task failed", e);
+        }
+      }
+    }
+  }
+}
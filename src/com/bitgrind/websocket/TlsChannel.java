@@ -0,0 +1,354 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+/**
+ * A TLS connection layered over a pair of byte channels with an
+ * {@link SSLEngine}. It works over blocking channels, where every call
+ * completes or fails, and over non-blocking ones, where {@link #handshake},
+ * {@link #read} and {@link #write} return early when the network is not
+ * ready and report what they are waiting for.
+ * <p>
+ * The network buffers, and the buffer of decrypted bytes not yet read, are
+ * direct buffers borrowed from a pool shared by every connection, so the
+ * socket reads and writes straight from them without a copy.
+ * <p>
+ * One thread reads and any number may write; writes, and the handshake
+ * messages the reading side must send, are serialized by a lock. The
+ * handshake must complete before either begins.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+  private static final BufferPool pool = new BufferPool(true, 1 << 16, 64);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private static final int EOF = -1;
+  private static final int NEED_DATA = 0;
+  private static final int UNWRAPPED = 1;
+
+  private final ReadableByteChannel in;
+  private final WritableByteChannel out;
+  private final SSLEngine engine;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  /** Bytes received and not yet unwrapped; kept ready for reading into. */
+  private ByteBuffer netIn;
+  /** Decrypted bytes not yet returned by {@link #read}; kept ready for draining. */
+  private ByteBuffer appIn;
+  /** Bytes wrapped and not yet written; kept ready for draining. Guarded by writeLock. */
+  private ByteBuffer netOut;
+  private boolean handshaking = true;
+  private boolean wantsRead;
+  private volatile boolean closed;
+
+  /**
+   * @param in the channel records are read from
+   * @param out the channel records are written to
+   * @param engine an engine in client mode
+   */
+  TlsChannel(ReadableByteChannel in, WritableByteChannel out, SSLEngine engine) throws SSLException {
+    this.in = in;
+    this.out = out;
+    this.engine = engine;
+    int packetSize = engine.getSession().getPacketBufferSize();
+    netIn = pool.acquire(packetSize);
+    netOut = pool.acquire(packetSize);
+    netOut.flip();
+    appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+    appIn.flip();
+    engine.beginHandshake();
+  }
+
+  /**
+   * Advances the TLS handshake as far as the network allows.
+   *
+   * @return true once the handshake has completed; if false, call again
+   *         when the channel is readable if {@link #wantsRead}, otherwise
+   *         when it is writable
+   */
+  boolean handshake() throws IOException {
+    while (handshaking) {
+      if (!flush()) {
+        wantsRead = false;
+        return false;
+      }
+      switch (engine.getHandshakeStatus()) {
+        case NEED_TASK:
+          runTasks();
+          break;
+        case NEED_WRAP:
+          wrap(EMPTY);
+          break;
+        case FINISHED:
+        case NOT_HANDSHAKING:
+          handshaking = false;
+          break;
+        default:
+          int status = unwrap();
+          if (status == EOF) {
+            throw new EOFException("Connection closed during TLS handshake");
+          }
+          if (status == NEED_DATA) {
+            wantsRead = true;
+            return false;
+          }
+      }
+    }
+    return true;
+  }
+
+  /** Whether an incomplete {@link #handshake} is waiting to read rather than to write. */
+  boolean wantsRead() {
+    return wantsRead;
+  }
+
+  /**
+   * Reads decrypted bytes into {@code dst}.
+   *
+   * @return the number of bytes read, which is zero only for a non-blocking
+   *         channel with no complete record available, or -1 at the end of
+   *         the stream
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (closed) {
+      return -1;
+    }
+    while (!appIn.hasRemaining()) {
+      int status = unwrap();
+      if (status != UNWRAPPED) {
+        return status == EOF ? -1 : 0;
+      }
+      // the peer may start a new handshake, or expect a reply to a key update
+      switch (engine.getHandshakeStatus()) {
+        case NEED_TASK:
+          runTasks();
+          break;
+        case NEED_WRAP:
+          writeLock.lock();
+          try {
+            wrap(EMPTY);
+            flush();
+          } finally {
+            writeLock.unlock();
+          }
+          break;
+        default:
+      }
+    }
+    int count = Math.min(dst.remaining(), appIn.remaining());
+    int limit = appIn.limit();
+    appIn.limit(appIn.position() + count);
+    dst.put(appIn);
+    appIn.limit(limit);
+    return count;
+  }
+
+  /**
+   * Unwraps at most one record, reading from the network if no complete
+   * record is buffered.
+   */
+  private int unwrap() throws IOException {
+    while (true) {
+      netIn.flip();
+      appIn.compact();
+      SSLEngineResult result;
+      try {
+        result = engine.unwrap(netIn, appIn);
+      } finally {
+        netIn.compact();
+        appIn.flip();
+      }
+      switch (result.getStatus()) {
+        case OK:
+          return UNWRAPPED;
+        case BUFFER_OVERFLOW:
+          appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+          break;
+        case BUFFER_UNDERFLOW:
+          if (!netIn.hasRemaining()) {
+            netIn.flip();
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+            netIn.compact();
+          }
+          int read = in.read(netIn);
+          if (read == -1) {
+            return EOF;
+          }
+          if (read == 0) {
+            return NEED_DATA;
+          }
+          break;
+        default:
+          return EOF;
+      }
+    }
+  }
+
+  /** Returns a buffer holding the remaining bytes of {@code buffer}, with room for {@code more}. */
+  private static ByteBuffer grow(ByteBuffer buffer, int more) {
+    ByteBuffer larger = pool.acquire(buffer.remaining() + more);
+    larger.put(buffer);
+    larger.flip();
+    pool.release(buffer);
+    return larger;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return (int) write(new ByteBuffer[] { src }, 0, 1);
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  /**
+   * Encrypts and writes as much of {@code srcs} as the network accepts.
+   * Bytes encrypted but not yet written are kept, and written ahead of
+   * anything else; {@link #flush} writes them alone.
+   *
+   * @return the number of plaintext bytes consumed
+   */
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    writeLock.lock();
+    try {
+      if (closed)
+        throw new ClosedChannelException();
+      long consumed = 0;
+      while (flush() && remaining(srcs, offset, length)) {
+        consumed += wrap(srcs, offset, length);
+      }
+      return consumed;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private static boolean remaining(ByteBuffer[] srcs, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (srcs[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int wrap(ByteBuffer src) throws IOException {
+    return wrap(new ByteBuffer[] { src }, 0, 1);
+  }
+
+  private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    netOut.compact();
+    SSLEngineResult result;
+    try {
+      result = engine.wrap(srcs, offset, length, netOut);
+    } finally {
+      netOut.flip();
+    }
+    switch (result.getStatus()) {
+      case OK:
+        return result.bytesConsumed();
+      case BUFFER_OVERFLOW:
+        if (!netOut.hasRemaining()) {
+          netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+        }
+        return 0;
+      default:
+        if (result.bytesProduced() == 0)
+          throw new SSLException("TLS connection closed");
+        // close_notify
+        return 0;
+    }
+  }
+
+  /**
+   * Writes any bytes already encrypted.
+   *
+   * @return false if some remain because the channel would not take them
+   */
+  boolean flush() throws IOException {
+    writeLock.lock();
+    try {
+      while (netOut.hasRemaining()) {
+        if (out.write(netOut) == 0) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Sends close_notify if it can without waiting, and returns the buffers
+   * to the pool. Does not close the underlying channels. Must be called on
+   * the reading thread.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    pool.release(netIn);
+    pool.release(appIn);
+    netIn = null;
+    appIn = null;
+    if (writeLock.tryLock()) {
+      try {
+        engine.closeOutbound();
+        wrap(EMPTY);
+        flush();
+      } catch (IOException e) {
+        // the peer does not need to see it
+      } finally {
+        pool.release(netOut);
+        netOut = null;
+        writeLock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+
+/**
+ * The connection underneath a {@link WebSocketClient}: either a blocking
+ * socket with a reader thread of its own, or a channel multiplexed by a
+ * {@link SelectorEngine}.
+ */
+interface Transport {
+  /**
+   * Writes out the frames queued in the client's {@link FrameWriter}. May
+   * return before they are written if that is done on another thread.
+   */
+  void flush() throws IOException;
+
+  /** Closes the connection. Does not call back into the listener. */
+  void close();
+
+  /**
+   * Closes the connection and reports {@code error} to the listener, as if
+   * reading had failed with it. May be called on any thread.
+   */
+  void abort(Throwable error);
+
+  /**
+   * Runs {@code task} on a thread where it may write to the connection,
+   * without holding up the caller.
+   */
+  void execute(Runnable task);
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Decodes UTF-8 text frames into a {@link CharBuffer} which is reused from
+ * one message to the next, along with the {@link CharsetDecoder} itself. The
+ * leading run of ASCII bytes, which is usually the whole message, is widened
+ * directly to chars; the decoder only takes over from the first multi-byte
+ * sequence. Malformed input is reported, as before.
+ * <p>
+ * One instance belongs to one connection and is not thread safe.
+ */
+class Utf8Decoder {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Buffers larger than this are not kept once a smaller message arrives. */
+  private static final int RETAIN_LIMIT = 65536;
+
+  private final CharsetDecoder decoder = UTF8.newDecoder();
+  private CharBuffer chars;
+
+  /**
+   * Decodes the remaining bytes of {@code in}. The returned buffer is only
+   * valid until the next call.
+   */
+  CharBuffer decode(ByteBuffer in) throws CharacterCodingException {
+    // UTF-8 never decodes to more chars than it has bytes
+    int length = in.remaining();
+    if (chars == null || chars.capacity() < length
+        || (chars.capacity() > RETAIN_LIMIT && length <= RETAIN_LIMIT)) {
+      chars = CharBuffer.allocate(Math.max(length, 256));
+    }
+    chars.clear();
+    if (!decodeAscii(in, chars)) {
+      decoder.reset();
+      CoderResult result = decoder.decode(in, chars, true);
+      if (!result.isUnderflow()) {
+        result.throwException();
+      }
+      result = decoder.flush(chars);
+      if (!result.isUnderflow()) {
+        result.throwException();
+      }
+    }
+    chars.flip();
+    return chars;
+  }
+
+  /**
+   * Copies bytes to {@code out} for as long as they are ASCII. Returns true
+   * if that consumed all of {@code in}; otherwise {@code in} is left at the
+   * first non-ASCII byte.
+   */
+  static boolean decodeAscii(ByteBuffer in, CharBuffer out) {
+    int position = in.position();
+    int limit = in.limit();
+    int count = 0;
+    if (in.hasArray() && out.hasArray()) {
+      byte[] src = in.array();
+      char[] dst = out.array();
+      int srcOffset = in.arrayOffset() + position;
+      int dstOffset = out.arrayOffset() + out.position();
+      for (int n = limit - position; count < n; count++) {
+        byte b = src[srcOffset + count];
+        if (b < 0) {
+          break;
+        }
+        dst[dstOffset + count] = (char) b;
+      }
+    } else {
+      for (int i = position; i < limit; i++, count++) {
+        byte b = in.get(i);
+        if (b < 0) {
+          break;
+        }
+        out.put(out.position() + count, (char) b);
+      }
+    }
+    in.position(position + count);
+    out.position(out.position() + count);
+    return position + count == limit;
+  }
+}
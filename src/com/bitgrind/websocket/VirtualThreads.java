@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads, on JDKs which have them, without requiring one to
+ * build: the library targets Java 8, so {@code Thread.ofVirtual()} is called
+ * reflectively through the public {@code Thread.Builder} interface.
+ */
+class VirtualThreads {
+  private VirtualThreads() {}
+
+  /** Whether this JDK has virtual threads; they were finalized in Java 21. */
+  static boolean isSupported() {
+    try {
+      factory("probe-");
+      return true;
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns a factory of virtual threads named {@code prefix} followed by a
+   * sequence number.
+   *
+   * @throws UnsupportedOperationException if this JDK has no virtual threads
+   */
+  static ThreadFactory factory(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+      Method factory = builderType.getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    } catch (ClassNotFoundException e) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    } catch (IllegalAccessException e) {
+      throw new UnsupportedOperationException(e.toString());
+    } catch (InvocationTargetException e) {
+      // a preview API which has not been enabled
+      throw new UnsupportedOperationException(e.getCause().toString());
+    }
+  }
+}
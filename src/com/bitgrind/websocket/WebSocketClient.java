@@ -15,28 +15,40 @@
  */
 package com.bitgrind.websocket;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PushbackInputStream;
-import java.math.BigInteger;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.Random;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+import com.bitgrind.websocket.util.BufferPool;
 import com.bitgrind.websocket.util.ByteStreams;
-import com.bitgrind.websocket.util.Bytes;
 import com.bitgrind.websocket.util.Closeables;
 
 public class WebSocketClient {
@@ -49,44 +61,522 @@ public class WebSocketClient {
     void onClose();
   }
 
-  private static final byte[] keyChars = Bytes.concat(range(0x21, 0x2f), range(0x3a, 0x7e));
-  private static final Random rnd = new Random();
+  /**
+   * A listener which receives binary messages as a read-only view of the
+   * connection's receive buffer, instead of as a newly allocated array. The
+   * view is only valid until the method returns; copy out anything which is
+   * needed later. {@link WebSocketListener#onMessage(byte[])} is not called
+   * for listeners of this type.
+   */
+  public static interface BinaryBufferListener extends WebSocketListener {
+    void onMessage(ByteBuffer message);
+  }
+
+  /**
+   * A listener which receives text messages as a view of the connection's
+   * decode buffer, instead of as a new String. The sequence is only valid
+   * until the method returns; call {@code toString()} on it to keep it.
+   * {@link WebSocketListener#onMessage(String)} is not called for listeners
+   * of this type.
+   */
+  public static interface CharSequenceListener extends WebSocketListener {
+    void onMessage(CharSequence message);
+  }
+
+  /**
+   * A listener which can receive messages in pieces as they arrive, rather
+   * than whole. Used for messages larger than
+   * {@link WebSocketOptions#getMaxMessageSize()} under
+   * {@link WebSocketOptions.OversizePolicy#STREAM}; smaller messages are
+   * still delivered whole through {@code onMessage}.
+   * <p>
+   * Chunks are read-only views of the receive buffer, only valid until the
+   * method returns. Text arrives as raw UTF-8, so a character may be split
+   * between chunks.
+   */
+  public static interface StreamingListener extends WebSocketListener {
+    void onMessageStart(boolean binary);
+    void onMessageChunk(ByteBuffer chunk);
+    void onMessageEnd();
+  }
+
+  /**
+   * A listener which receives every message decoded from one read of the
+   * socket in a single call, so that a burst can be handled under one lock
+   * or transaction and the cost of a callback is paid once per burst rather
+   * than once per message. The batch is only valid until the method
+   * returns. {@code onMessage} is not called for listeners of this type,
+   * and they cannot be combined with a dispatch stage.
+   */
+  public static interface BatchListener extends WebSocketListener {
+    void onMessages(MessageBatch batch);
+  }
+
+  /**
+   * Maps each message to the key it is conflated under. Messages with the
+   * same key replace one another while waiting for the listener, so only
+   * the newest is delivered. See {@link WebSocketOptions#setConflation}.
+   */
+  public static interface KeyExtractor {
+    /**
+     * Returns the key for a message, or null if it must not be replaced.
+     * Text arrives as raw UTF-8. The payload is a read-only view which is
+     * only valid until the method returns. Called on the reading thread.
+     */
+    Object keyOf(ByteBuffer payload, boolean binary);
+  }
+
+  private static final AtomicInteger connectionNumber = new AtomicInteger();
+  private static final AtomicInteger readerNumber = new AtomicInteger();
+  private static final AtomicInteger writerNumber = new AtomicInteger();
+
+  /**
+   * Runs the keep-alives of blocking connections. Those writes block on the
+   * socket, so they get threads of their own rather than a shared pool's: a
+   * virtual thread each where the JDK has them, otherwise a cached pool of
+   * daemon threads which lets idle ones go.
+   */
+  private static final Executor blockingWriter = Executors.newCachedThreadPool(writerThreads());
 
-  private final Charset UTF8 = Charset.forName("UTF-8");
-  private final MessageDigest MD5;
+  private static ThreadFactory writerThreads() {
+    if (VirtualThreads.isSupported()) {
+      return VirtualThreads.factory("websocket-writer-");
+    }
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "websocket-writer-" + writerNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
 
-  private URI uri;
-  private InetSocketAddress endpoint;
-  private Socket socket;
+  private final URI uri;
   private final WebSocketListener listener;
+  private final BufferPool pool;
+  private final FrameDecoder decoder;
+  private final Utf8Decoder utf8 = new Utf8Decoder();
+  private final FrameEncoder encoder;
+  private final Protocol protocol;
+  private final boolean offerDeflate;
+  private final boolean contextTakeover;
+  private final int connectTimeout;
+  private final int handshakeTimeout;
+  /** Null for the default context. */
+  private final SSLContext sslContext;
+  private final CompletableFuture<WebSocketClient> opening = new CompletableFuture<WebSocketClient>();
+  private final CompletableFuture<WebSocketClient> terminated = new CompletableFuture<WebSocketClient>();
+  private volatile PerMessageDeflate deflate;
+  private final Metrics metrics;
+  private final MetricsExporter metricsExporter;
+  /** The name metrics are exported under while open; otherwise null. */
+  private volatile String metricsName;
+  private long handshakeStarted;
+  private final FrameWriter writer;
+  private final FlowControl flow;
+  /** Collects the messages of one read for a {@link BatchListener}; otherwise null. */
+  private final MessageBatch batch;
+  /** Delivers messages on separate threads; null to deliver them inline. */
+  private final Dispatcher dispatcher;
+  private volatile boolean dispatching;
+  private volatile Transport transport;
+  private volatile boolean closing;
+  private final long readIdleNanos;
+  private final long writeIdleNanos;
+  /** Sent as the keep-alive; null to send a ping. */
+  private final String keepAliveMessage;
+  /** When bytes were last received, by {@link System#nanoTime}. */
+  private volatile long lastRead;
+  /** Time spent in the listener during the current read, left out of its decode time. */
+  private long listenerNanos;
+  private final IdleMonitor idleMonitor;
 
   public WebSocketClient(String wsUrl, WebSocketListener listener) throws IOException, URISyntaxException {
+    this(wsUrl, listener, new WebSocketOptions());
+  }
+
+  public WebSocketClient(String wsUrl, WebSocketListener listener, WebSocketOptions options) throws IOException,
+      URISyntaxException {
+    this(toWebSocketUri(wsUrl), listener, options, BufferPool.getDefault());
+    InetSocketAddress endpoint = new InetSocketAddress(uri.getHost(), uri.getPort());
+    SocketChannel channel = SocketChannel.open();
+    TlsChannel tls = null;
+    WebSocketTask task;
+    try {
+      channel.socket().connect(endpoint, connectTimeout);
+      channel.socket().setSoTimeout(handshakeTimeout);
+      InputStream socketInput = channel.socket().getInputStream();
+      GatheringByteChannel output = channel;
+      if (isSecure()) {
+        // read through the socket's stream, which honours the timeout
+        tls = new TlsChannel(Channels.newChannel(socketInput), channel, newSslEngine());
+        tls.handshake();
+        socketInput = Channels.newInputStream(tls);
+        output = tls;
+      }
+      PushbackInputStream input = new PushbackInputStream(socketInput, HttpResponseParser.MAX_LENGTH);
+      doHandShake(input, output);
+      channel.socket().setSoTimeout(0);
+      task = new WebSocketTask(channel, input, output);
+      opened(task);
+    } catch (IOException e) {
+      Closeables.closeQuietly(tls);
+      channel.close();
+      throw e;
+    }
+    start(task, options);
+  }
+
+  /** Starts the reading task the way the options ask. */
+  private void start(WebSocketTask task, WebSocketOptions options) {
+    Executor executor = options.getExecutor();
+    ThreadFactory threadFactory = options.getThreadFactory();
+    try {
+      if (executor != null) {
+        executor.execute(task);
+      } else if (threadFactory != null) {
+        Thread thread = threadFactory.newThread(task);
+        if (thread == null)
+          throw new RejectedExecutionException("ThreadFactory returned null");
+        thread.start();
+      } else {
+        new Thread(task, "websocket-reader-" + readerNumber.incrementAndGet()).start();
+      }
+    } catch (RejectedExecutionException e) {
+      // the listener has seen the open, so it hears of the failure too
+      task.close();
+      releaseBuffers(true);
+      failed(e);
+    }
+  }
+
+  /**
+   * Creates a client which is not yet connected. Used by
+   * {@link SelectorEngine}, which connects it later and reports progress
+   * through {@link #opened}, {@link #decode} and {@link #failed}.
+   *
+   * @param pool the pool which receive buffers are borrowed from
+   */
+  WebSocketClient(URI uri, WebSocketListener listener, WebSocketOptions options, BufferPool pool) {
+    if (options.getOversizePolicy() == OversizePolicy.STREAM && !(listener instanceof StreamingListener))
+      throw new IllegalArgumentException("OversizePolicy.STREAM requires a StreamingListener");
+    if (options.isPerMessageDeflate() && options.getProtocol() != Protocol.RFC_6455)
+      throw new IllegalArgumentException("permessage-deflate requires Protocol.RFC_6455");
+    if ((options.getDispatchCapacity() > 0 || options.getConflation() != null)
+        && options.getOversizePolicy() == OversizePolicy.STREAM)
+      throw new IllegalArgumentException("OversizePolicy.STREAM cannot be combined with a dispatch stage");
+    if (options.getDispatchCapacity() > 0 && options.getConflation() != null)
+      throw new IllegalArgumentException("Conflation cannot be combined with a dispatch ring");
+    if ((options.getDispatchCapacity() > 0 || options.getConflation() != null) && listener instanceof BatchListener)
+      throw new IllegalArgumentException("A BatchListener cannot be combined with a dispatch stage");
+    if (options.getWriteIdleTimeout() > 0 && options.getKeepAliveMessage() == null
+        && options.getProtocol() == Protocol.HYBI_00)
+      throw new IllegalArgumentException("A write idle timeout needs a keep-alive message with Protocol.HYBI_00");
+
+    this.uri = uri;
     this.listener = listener;
+    this.pool = pool;
+    this.protocol = options.getProtocol();
+    this.offerDeflate = options.isPerMessageDeflate();
+    this.contextTakeover = options.isContextTakeover();
+    this.connectTimeout = options.getConnectTimeout();
+    this.handshakeTimeout = options.getHandshakeTimeout();
+    this.metricsExporter = options.getMetricsExporter();
+    this.metrics = new Metrics(options.isRecordHistograms());
+    this.writer = new FrameWriter(metrics);
+    this.sslContext = options.getSslContext();
+    this.readIdleNanos = TimeUnit.MILLISECONDS.toNanos(options.getReadIdleTimeout());
+    this.writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(options.getWriteIdleTimeout());
+    this.keepAliveMessage = options.getKeepAliveMessage();
+    this.idleMonitor = readIdleNanos > 0 || writeIdleNanos > 0 ? new IdleMonitor() : null;
+    this.batch = listener instanceof BatchListener ? new MessageBatch() : null;
+    this.flow = new FlowControl(options.getInitialDemand(), options.getLowWatermark(), options.getHighWatermark());
+    FrameHandler handler = new FrameHandler();
+    if (options.getConflation() != null) {
+      this.dispatcher = new ConflatingDispatcher(handler, metrics.dispatchLatency, options.getConflation());
+    } else if (options.getDispatchCapacity() > 0) {
+      this.dispatcher = new RingDispatcher(handler, metrics.dispatchLatency, options.getDispatchCapacity(),
+          options.getDispatchThreads(), options.getWaitStrategy(), options.getOverflowPolicy());
+    } else {
+      this.dispatcher = null;
+    }
+    if (protocol == Protocol.RFC_6455) {
+      this.decoder = new Rfc6455FrameDecoder(handler, pool, options.getMaxMessageSize(), options.getOversizePolicy());
+      this.encoder = new Rfc6455FrameEncoder(BufferPool.getDefault());
+    } else {
+      this.decoder = new Hybi00FrameDecoder(handler, pool, options.getMaxMessageSize(), options.getOversizePolicy());
+      this.encoder = new Hybi00FrameEncoder(BufferPool.getDefault());
+    }
+    decoder.setFlowControl(flow);
+  }
+
+  /**
+   * Connects without blocking the caller. The name is resolved on a pooled
+   * thread, and the connection and handshake are driven by the shared
+   * {@link SelectorEngine#getDefault() default engine}. The future
+   * completes once the listener's {@code onOpen} has returned, or
+   * exceptionally if the connection fails first. Callbacks and dependent
+   * stages run on the engine's loop thread, so they should not block.
+   */
+  public static CompletableFuture<WebSocketClient> connectAsync(String wsUrl, WebSocketListener listener) {
+    return connectAsync(wsUrl, listener, new WebSocketOptions());
+  }
+
+  public static CompletableFuture<WebSocketClient> connectAsync(String wsUrl, WebSocketListener listener,
+      WebSocketOptions options) {
+    SelectorEngine engine;
     try {
-      MD5 = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+      engine = SelectorEngine.getDefault();
+    } catch (IOException e) {
+      CompletableFuture<WebSocketClient> failed = new CompletableFuture<WebSocketClient>();
+      failed.completeExceptionally(e);
+      return failed;
     }
+    return engine.connectAsync(wsUrl, listener, options);
+  }
 
+  static URI toWebSocketUri(String wsUrl) throws URISyntaxException {
     URI tmp = new URI(wsUrl);
+    String scheme = tmp.getScheme();
+    if (!"ws".equalsIgnoreCase(scheme) && !"wss".equalsIgnoreCase(scheme))
+      throw new URISyntaxException(wsUrl, "Scheme must be ws or wss");
+    scheme = scheme.toLowerCase(Locale.ENGLISH);
     int port = tmp.getPort();
     if (tmp.getPort() == -1)
-      port = 80;
+      port = scheme.equals("wss") ? 443 : 80;
 
     String path = tmp.getPath();
     if (path.equals(""))
       path = "/";
 
-    this.uri = new URI(tmp.getScheme(), "", tmp.getHost(), port, path, "", "");
-    endpoint = new InetSocketAddress(uri.getHost(), uri.getPort());
-    socket = new Socket();
-    socket.connect(endpoint);
-    PushbackInputStream input = new PushbackInputStream(socket.getInputStream());
-    OutputStream output = socket.getOutputStream();
-    doHandShake(input, output);
-    listener.onOpen();
-    Thread thread = new Thread(new WebSocketTask(socket, input, output));
-    thread.start();
+    return new URI(scheme, "", tmp.getHost(), port, path, "", "");
+  }
+
+  /** Whether the connection is made over TLS, for a {@code wss} URI. */
+  boolean isSecure() {
+    return uri.getScheme().equals("wss");
+  }
+
+  /**
+   * Creates the TLS engine for a connection to the URI's endpoint. Engines
+   * for the same endpoint from the same {@link SSLContext} share its session
+   * cache, so a reconnect resumes the previous session rather than
+   * repeating the full handshake.
+   */
+  SSLEngine newSslEngine() throws IOException {
+    SSLContext context = sslContext;
+    if (context == null) {
+      try {
+        context = SSLContext.getDefault();
+      } catch (NoSuchAlgorithmException e) {
+        throw new SSLException(e);
+      }
+    }
+    SSLEngine engine = context.createSSLEngine(uri.getHost(), uri.getPort());
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    engine.setSSLParameters(parameters);
+    return engine;
+  }
+
+  /** Creates the handshake, which is taken to start now. */
+  Handshake newHandshake() {
+    handshakeStarted = System.nanoTime();
+    if (protocol == Protocol.RFC_6455)
+      return new Rfc6455Handshake(uri, offerDeflate, contextTakeover);
+    return new Hybi00Handshake(uri);
+  }
+
+  /**
+   * Takes up the extensions agreed in a successful handshake. Called before
+   * {@link #opened}, on the thread which will call {@link #decode}.
+   */
+  void negotiated(Handshake handshake) {
+    metrics.handshook(System.nanoTime() - handshakeStarted);
+    PerMessageDeflate deflate = handshake.newDeflate(encoder.pool);
+    if (deflate != null) {
+      decoder.setDeflate(deflate);
+      this.deflate = deflate;
+    }
+  }
+
+  /**
+   * Returns the compression counters of this connection, or null if
+   * permessage-deflate was not negotiated.
+   */
+  public CompressionStats getCompressionStats() {
+    PerMessageDeflate deflate = this.deflate;
+    return deflate == null ? null : deflate.getStats();
+  }
+
+  /**
+   * Returns the state of this connection's dispatch ring, or null if it
+   * delivers messages on the reading thread.
+   */
+  public DispatchStats getDispatchStats() {
+    return dispatcher == null ? null : dispatcher.getStats();
+  }
+
+  /**
+   * Returns the metrics of this connection. The values are live: each call
+   * to a getter reads the current count.
+   */
+  public WebSocketMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Stops reading from the socket until {@link #resume} is called, so that
+   * the server is held back by TCP flow control. Messages already read are
+   * still delivered. Any thread may pause and resume.
+   */
+  public void pause() {
+    flow.pause();
+  }
+
+  public void resume() {
+    flow.resume();
+  }
+
+  public boolean isPaused() {
+    return flow.isPaused();
+  }
+
+  /**
+   * Allows {@code n} more messages to be delivered, in the manner of a
+   * Reactive Streams subscription. Only meaningful with a finite
+   * {@link WebSocketOptions#setInitialDemand initial demand}: the
+   * connection reads from its socket only while messages are wanted, and
+   * delivers no more than were requested. A message delivered in chunks
+   * counts once.
+   */
+  public void request(long n) {
+    flow.request(n);
+  }
+
+  FlowControl flowControl() {
+    return flow;
+  }
+
+  URI getUri() {
+    return uri;
+  }
+
+  int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  int getHandshakeTimeout() {
+    return handshakeTimeout;
+  }
+
+  /** Completes when the connection opens, or exceptionally if it fails first. */
+  CompletableFuture<WebSocketClient> opening() {
+    return opening;
+  }
+
+  /**
+   * Completes once the connection has ended, after the listener's
+   * {@code onClose} or {@code onError}, however it ended.
+   */
+  CompletableFuture<WebSocketClient> terminated() {
+    return terminated;
+  }
+
+  FrameWriter getFrameWriter() {
+    return writer;
+  }
+
+  /**
+   * Sends a text message. Messages are queued and written in batches, so
+   * this may return before the message is on the wire; messages from one
+   * thread are always sent in order. Messages sent before the connection
+   * opens are held until it does.
+   *
+   * @throws IllegalStateException if {@link #close} has been called
+   */
+  public void send(String message) throws IOException {
+    checkNotClosing();
+    PerMessageDeflate deflate = this.deflate;
+    if (deflate == null) {
+      writer.enqueue(encoder.encodeText(message));
+    } else {
+      // with context takeover the server must see messages in the order
+      // they were compressed
+      synchronized (deflate) {
+        writer.enqueue(encoder.encodeText(message, deflate));
+      }
+    }
+    metrics.sent(Metrics.TEXT);
+    flush();
+  }
+
+  /** Sends a binary message. The array is not copied and must not be modified afterwards. */
+  public void send(byte[] message) throws IOException {
+    send(ByteBuffer.wrap(message));
+  }
+
+  /**
+   * Sends the remaining bytes of {@code message} as a binary message. The
+   * buffer's position is not changed. Its contents are not copied and must
+   * not be modified afterwards.
+   */
+  public void send(ByteBuffer message) throws IOException {
+    checkNotClosing();
+    PerMessageDeflate deflate = this.deflate;
+    if (deflate == null) {
+      writer.enqueue(encoder.encodeBinary(message.slice()));
+    } else {
+      synchronized (deflate) {
+        writer.enqueue(encoder.encodeBinary(message.slice(), deflate));
+      }
+    }
+    metrics.sent(Metrics.BINARY);
+    flush();
+  }
+
+  /**
+   * Sends a message encoded in advance, without encoding it again. Use to
+   * send the same message on many connections; see {@link PreparedFrame}.
+   */
+  public void send(PreparedFrame frame) throws IOException {
+    checkNotClosing();
+    writer.enqueue(encoder.encode(frame));
+    metrics.sent(frame.isBinary() ? Metrics.BINARY : Metrics.TEXT);
+    flush();
+  }
+
+  private void checkNotClosing() {
+    if (closing)
+      throw new IllegalStateException("WebSocket is closed");
+  }
+
+  private void flush() throws IOException {
+    Transport transport = this.transport;
+    if (transport != null) {
+      transport.flush();
+    }
+  }
+
+  /**
+   * Starts the closing handshake. The listener's {@code onClose} is called
+   * when the server answers and the connection has been closed.
+   */
+  public void close() throws IOException {
+    if (closing)
+      return;
+    closing = true;
+    // the server's answer has to be read however far behind the listener is
+    flow.disable();
+    writer.enqueue(encoder.encodeClose());
+    metrics.sent(Metrics.CLOSE);
+    flush();
   }
 
   void onMessage(String message) {
@@ -97,177 +587,471 @@ public class WebSocketClient {
     listener.onMessage(message);
   }
 
-  private class WebSocketTask implements Runnable {
-    private final InputStream input;
-    private final OutputStream output;
+  void opened(Transport transport) throws IOException {
+    this.transport = transport;
+    if (dispatcher != null) {
+      dispatcher.start();
+      dispatching = true;
+    }
+    if (metricsExporter != null) {
+      metricsName = uri + "#" + connectionNumber.incrementAndGet();
+      metricsExporter.register(metricsName, metrics);
+    }
+    listener.onOpen();
+    opening.complete(this);
+    transport.flush();
+    if (idleMonitor != null) {
+      lastRead = System.nanoTime();
+      idleMonitor.start();
+    }
+  }
 
-    public WebSocketTask(Socket socket, InputStream input, OutputStream output) {
-      this.input = input;
-      this.output = output;
+  /**
+   * Feeds bytes read from the connection to the frame decoder. The decode
+   * time recorded leaves out the listener calls made along the way; a read
+   * which fails to decode is recorded too, since it cost the time all the
+   * same.
+   */
+  void decode(ByteBuffer in) throws IOException {
+    metrics.bytesReceived.add(in.remaining());
+    long start = System.nanoTime();
+    lastRead = start;
+    listenerNanos = 0;
+    try {
+      decoder.decode(in);
+    } finally {
+      metrics.decodeTime(System.nanoTime() - start - listenerNanos);
+      deliverBatch();
+    }
+  }
+
+  /** Hands a {@link BatchListener} whatever the last read decoded. */
+  private void deliverBatch() {
+    if (batch != null && batch.size() > 0) {
+      long start = listenerStarted();
+      try {
+        ((BatchListener) listener).onMessages(batch);
+      } finally {
+        batch.clear();
+        listenerReturned(start);
+      }
+    }
+  }
+
+  /** Returns when a listener call on the reading thread began, if decode time is recorded. */
+  private long listenerStarted() {
+    return metrics.keepsHistograms() ? System.nanoTime() : 0;
+  }
+
+  private void listenerReturned(long started) {
+    if (started != 0) {
+      listenerNanos += System.nanoTime() - started;
+    }
+  }
+
+  void failed(Throwable error) {
+    error(error);
+    opening.completeExceptionally(error);
+    terminate();
+  }
+
+  /** Completes {@link #terminated}, withdrawing the metrics the first time. */
+  private void terminate() {
+    if (terminated.complete(this)) {
+      if (idleMonitor != null) {
+        idleMonitor.stop();
+      }
+      String name = metricsName;
+      if (name != null) {
+        metricsExporter.unregister(name);
+      }
+    }
+  }
+
+  /** Reports an error to the listener, after any messages still being dispatched. */
+  private void error(Throwable error) {
+    if (dispatching) {
+      dispatcher.publishError(error);
+    } else {
+      metrics.errors.increment();
+      listener.onError(error);
+    }
+  }
+
+  /**
+   * Returns receive buffers to the pool once the connection is closed. Must
+   * be called on the thread which calls {@link #decode}.
+   *
+   * @param failed true if {@link #failed} is called next, in which case the
+   *        dispatcher is left for the error it publishes to end
+   */
+  void releaseBuffers(boolean failed) {
+    if (dispatching && !failed) {
+      dispatcher.finish();
+    }
+    decoder.release();
+    PerMessageDeflate deflate = this.deflate;
+    if (deflate != null) {
+      deflate.end();
+    }
+  }
+
+  /**
+   * Watches for the connection going idle, on the shared
+   * {@link HashedWheelTimer}. Rather than firing on a fixed period, it is
+   * scheduled for the earliest moment one of the timeouts could expire, so a
+   * busy connection costs one timer event per timeout.
+   */
+  private class IdleMonitor implements Runnable {
+    private volatile HashedWheelTimer.Timeout timeout;
+    private final Runnable keepAlive = new Runnable() {
+      @Override
+      public void run() {
+        sendKeepAlive();
+      }
+    };
+
+    void start() {
+      schedule(Math.min(readIdleNanos > 0 ? readIdleNanos : Long.MAX_VALUE,
+          writeIdleNanos > 0 ? writeIdleNanos : Long.MAX_VALUE));
+    }
+
+    void stop() {
+      HashedWheelTimer.Timeout timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+
+    private void schedule(long nanos) {
+      timeout = HashedWheelTimer.getDefault().schedule(this, (nanos + 999999) / 1000000);
+      // terminate() may have missed the new timeout
+      if (terminated.isDone()) {
+        stop();
+      }
     }
 
     @Override
     public void run() {
-      boolean closing = false;
-      boolean closed = false;
-      boolean error = false;
-      ByteBuffer messageBuffer = ByteBuffer.allocate(4096);
-      while (!(closed || error)) {
-        try {
-          int frameType = input.read();
-          long length = 0;
-          if ((frameType & 0x80) == 0x80) {
-            int b;
-            do {
-              b = input.read();
-              length *= 128;
-              length += b & 0x7f;
-            } while ((b & 0x80) == 0x80);
-            if (frameType == 0xff && length == 0) {
-              if (closing) {
-                closed = true;
-                listener.onClose();
-                break;
-              } else {
-                closing = true;
-                output.write(0xff);
-                output.write(0x00);
-                output.flush();
-                Closeables.closeQuietly(output);
-              }
-            } else if (length < Integer.MAX_VALUE) {
-              byte[] buffer = new byte[(int) length];
-              ByteStreams.readFully(input, buffer);
-              ReadableByteChannel channel = Channels.newChannel(input);
-              do {
-                if (messageBuffer.capacity() < length) {
-                  messageBuffer = expand(messageBuffer, 1 - (messageBuffer.capacity() / length));
-                }
-                channel.read(messageBuffer);
-              } while (messageBuffer.position() < length);
-              messageBuffer.flip();
-              onMessage(buffer);
-              messageBuffer.clear();
-            } else {
-              ByteStreams.skipFully(input, length);
-            }
-          } else {
-            int b;
-            while ((b = input.read()) != 0xff) {
-              messageBuffer.put((byte) b);
-              if (messageBuffer.remaining() == 0) {
-                messageBuffer = expand(messageBuffer, 1.6f);
-              }
-            }
-            messageBuffer.flip();
-            String message = UTF8.newDecoder().decode(messageBuffer).toString();
-            messageBuffer.clear();
-            if (frameType == 0x00) {
-              onMessage(message);
-            }
-          }
-        } catch (IOException e) {
-          error = true;
-          listener.onError(e);
+      if (terminated.isDone()) {
+        return;
+      }
+      long now = System.nanoTime();
+      long next = Long.MAX_VALUE;
+      if (readIdleNanos > 0) {
+        if (flow.suspended()) {
+          // not reading by choice is not idle
+          lastRead = now;
+        }
+        long idle = now - lastRead;
+        if (idle >= readIdleNanos) {
+          transport.abort(new SocketTimeoutException("Nothing received for "
+              + TimeUnit.NANOSECONDS.toMillis(readIdleNanos) + " ms"));
+          return;
         }
+        next = readIdleNanos - idle;
       }
-      Closeables.closeQuietly(input);
-      try {
-        socket.close();
-      } catch (IOException e) {}
+      if (writeIdleNanos > 0) {
+        long idle = now - writer.lastWrite();
+        if (idle >= writeIdleNanos) {
+          transport.execute(keepAlive);
+          idle = 0;
+        }
+        next = Math.min(next, writeIdleNanos - idle);
+      }
+      schedule(next);
     }
+  }
 
-    private ByteBuffer expand(ByteBuffer buffer, float scaleFactor) {
-      int newCapacity = (int) (buffer.capacity() * scaleFactor) + 1;
-      ByteBuffer resized = ByteBuffer.allocate(newCapacity);
-      resized.put(buffer.array(), 0, buffer.limit());
-      resized.position(buffer.position());
-      resized.limit(buffer.capacity());
-      return resized;
+  private void sendKeepAlive() {
+    if (closing) {
+      return;
+    }
+    try {
+      if (keepAliveMessage != null) {
+        send(keepAliveMessage);
+      } else {
+        writer.enqueue(encoder.encodePing());
+        metrics.sent(Metrics.PING);
+        flush();
+      }
+    } catch (IllegalStateException e) {
+      // closed since the check
+    } catch (IOException e) {
+      transport.abort(e);
     }
   }
 
-  private void doHandShake(PushbackInputStream source, OutputStream output) throws IOException {
-    PushbackInputStream input = new PushbackInputStream(source, 2000);
-    StringBuilder request = new StringBuilder();
-    request.append(String.format("GET %s HTTP/1.1\r\n", uri.getPath()));
-    request.append("Upgrade: WebSocket\r\n");
-    request.append("Connection: Upgrade\r\n");
-    request.append(String.format("Host: %s\r\n", uri.getHost()));
-    request.append(String.format("Origin: %s:%d\r\n", uri.getHost(), uri.getPort()));
+  private class FrameHandler implements FrameDecoder.Handler, Dispatcher.Sink {
+    @Override
+    public void onTextMessage(ByteBuffer payload) throws IOException {
+      metrics.received(Metrics.TEXT);
+      metrics.messageSize(payload.remaining());
+      flow.consumed();
+      if (dispatcher != null) {
+        flow.buffered(payload.remaining());
+        dispatcher.publishText(payload);
+      } else {
+        long start = listenerStarted();
+        try {
+          deliverText(payload, utf8);
+        } finally {
+          listenerReturned(start);
+        }
+      }
+    }
 
-    int spaces1 = rnd.nextInt(12) + 1;
-    int spaces2 = rnd.nextInt(12) + 1;
+    @Override
+    public void onBinaryMessage(ByteBuffer payload) {
+      metrics.received(Metrics.BINARY);
+      metrics.messageSize(payload.remaining());
+      flow.consumed();
+      if (dispatcher != null) {
+        flow.buffered(payload.remaining());
+        dispatcher.publishBinary(payload);
+      } else {
+        long start = listenerStarted();
+        try {
+          deliverBinary(payload);
+        } finally {
+          listenerReturned(start);
+        }
+      }
+    }
 
-    long key1 = rnd.nextInt(Integer.MAX_VALUE / spaces1);
-    long key2 = rnd.nextInt(Integer.MAX_VALUE / spaces2);
+    @Override
+    public void deliverText(ByteBuffer payload, Utf8Decoder utf8) throws IOException {
+      CharBuffer message = utf8.decode(payload);
+      if (batch != null) {
+        batch.addText(message);
+      } else if (listener instanceof CharSequenceListener) {
+        ((CharSequenceListener) listener).onMessage(message);
+      } else {
+        onMessage(message.toString());
+      }
+    }
 
-    request.append(String.format("Sec-WebSocket-Key1: %s\r\n", generateKey(key1, spaces1)));
-    request.append(String.format("Sec-WebSocket-Key2: %s\r\n", generateKey(key2, spaces2)));
-    request.append("\r\n");
-    try {
-      ByteBuffer encoded = UTF8.newEncoder().encode(CharBuffer.wrap(request.toString()));
-      output.write(encoded.array(), encoded.position(), encoded.limit());
-    } catch (CharacterCodingException e) {
-      throw new AssertionError(e);
+    @Override
+    public void deliverBinary(ByteBuffer payload) {
+      if (batch != null) {
+        batch.addBinary(payload);
+        return;
+      }
+      if (listener instanceof BinaryBufferListener) {
+        ((BinaryBufferListener) listener).onMessage(payload);
+        return;
+      }
+      byte[] message = new byte[payload.remaining()];
+      payload.get(message);
+      onMessage(message);
     }
-    byte[] key3 = new byte[8];
-    rnd.nextBytes(key3);
 
-    // make sure MSB is 0 due to buggy servers that
-    // don't handle key3 > 0x7fffffffffffffff (That's *you* MtGox!)
-    key3[0] &= 0x7f;
+    @Override
+    public void onMessageStart(boolean binary) {
+      // messages stay in order
+      deliverBatch();
+      metrics.received(binary ? Metrics.BINARY : Metrics.TEXT);
+      flow.consumed();
+      long start = listenerStarted();
+      try {
+        ((StreamingListener) listener).onMessageStart(binary);
+      } finally {
+        listenerReturned(start);
+      }
+    }
 
-    output.write(key3);
+    @Override
+    public void onMessageChunk(ByteBuffer chunk) {
+      long start = listenerStarted();
+      try {
+        ((StreamingListener) listener).onMessageChunk(chunk);
+      } finally {
+        listenerReturned(start);
+      }
+    }
 
-    // stuff 'em all together, key1+key2+key3, big-endian order
-    BigInteger merged =
-        BigInteger.valueOf(key1)
-            .shiftLeft(32)
-            .or(BigInteger.valueOf(key2))
-            .shiftLeft(64)
-            .or(new BigInteger(key3));
+    @Override
+    public void onMessageEnd() {
+      long start = listenerStarted();
+      try {
+        ((StreamingListener) listener).onMessageEnd();
+      } finally {
+        listenerReturned(start);
+      }
+    }
 
-    // The server is expected to send back the MD5 of this
-    byte[] expectedResponse = MD5.digest(merged.toByteArray());
+    @Override
+    public void onPing(ByteBuffer payload) throws IOException {
+      metrics.received(Metrics.PING);
+      if (!closing) {
+        writer.enqueue(encoder.encodePong(payload));
+        metrics.sent(Metrics.PONG);
+        transport.flush();
+      }
+    }
 
-    HttpResponseParser parser = new HttpResponseParser();
-    @SuppressWarnings("unused")
-    HttpResponse response = parser.parse(input);
-    // TODO verify response makes sense for a WebSocket connection
+    @Override
+    public void onPong(ByteBuffer payload) {
+      metrics.received(Metrics.PONG);
+    }
 
-    byte[] serverResponse = new byte[16];
-    input.read(serverResponse);
+    @Override
+    public void deliverClose() {
+      listener.onClose();
+    }
 
-    if (!Arrays.equals(serverResponse, expectedResponse)) {
-      System.err.println("Handshake failure!");
+    @Override
+    public void deliverError(Throwable error) {
+      metrics.errors.increment();
+      listener.onError(error);
+    }
+
+    @Override
+    public void released(int bytes) {
+      flow.released(bytes);
     }
-  }
 
-  private static byte[] range(int start, int stop) {
-    int len = stop - start;
-    byte[] arr = new byte[len];
-    for (int i = 0; i < len; i++) {
-      arr[i] = (byte) (start + i);
+    @Override
+    public void onCloseFrame() throws IOException {
+      metrics.received(Metrics.CLOSE);
+      deliverBatch();
+      Transport transport = WebSocketClient.this.transport;
+      if (dispatcher != null) {
+        // before closing the transport finishes the dispatcher
+        dispatcher.publishClose();
+      }
+      try {
+        if (!closing) {
+          closing = true;
+          writer.enqueue(encoder.encodeClose());
+          metrics.sent(Metrics.CLOSE);
+          transport.flush();
+        }
+      } finally {
+        transport.close();
+      }
+      if (dispatcher == null) {
+        long start = listenerStarted();
+        try {
+          listener.onClose();
+        } finally {
+          listenerReturned(start);
+        }
+      }
+      terminate();
     }
-    return arr;
   }
 
-  private static String generateKey(long v, int divisor) {
-    final int fillCount = 12;
-    int spaces = divisor;
+  private class WebSocketTask implements Runnable, Transport {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final InputStream input;
+    /** The channel itself, or the TLS layer over it. */
+    private final GatheringByteChannel output;
+    /** Set when the connection is aborted, to be reported once reading stops. */
+    private volatile Throwable abortCause;
+
+    public WebSocketTask(SocketChannel channel, InputStream input, GatheringByteChannel output) {
+      this.channel = channel;
+      this.input = input;
+      this.output = output;
+    }
+
+    @Override
+    public void run() {
+      final Thread reader = Thread.currentThread();
+      flow.setWakeup(new Runnable() {
+        @Override
+        public void run() {
+          LockSupport.unpark(reader);
+        }
+      });
+      ByteBuffer readBuffer = pool.acquire(READ_BUFFER_SIZE);
+      readBuffer.limit(0);
+      try {
+        // Frames which arrived along with the handshake response were pushed
+        // back; take exactly those first, since a larger read would block
+        // waiting on the socket before returning them.
+        int pending = Math.min(input.available(), READ_BUFFER_SIZE);
+        while (channel.isOpen()) {
+          while (flow.suspended() && channel.isOpen()) {
+            LockSupport.park(this);
+          }
+          // what the decoder left when it was suspended comes first
+          if (!readBuffer.hasRemaining()) {
+            readBuffer.clear();
+            int read = input.read(readBuffer.array(), readBuffer.arrayOffset(),
+                pending > 0 ? pending : READ_BUFFER_SIZE);
+            pending = 0;
+            if (read == -1) {
+              throw new EOFException("Connection closed by server");
+            }
+            readBuffer.limit(read);
+          }
+          decode(readBuffer);
+        }
+      } catch (IOException e) {
+        if (channel.isOpen()) {
+          error(e);
+        }
+      }
+      Throwable aborted = abortCause;
+      if (aborted != null) {
+        error(aborted);
+      }
+      close();
+      releaseBuffers(false);
+      pool.release(readBuffer);
+      terminate();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writer.flush(output);
+    }
 
-    BigInteger number = new BigInteger(Long.toString(v));
-    number = number.multiply(new BigInteger(Integer.toString(spaces)));
-    StringBuilder s = new StringBuilder(number.toString());
-    for (int i = 0; i < fillCount; i++) {
-      int pos = rnd.nextInt(s.length() - 1) + 1;
-      s.insert(pos, (char) keyChars[rnd.nextInt(keyChars.length)]);
+    @Override
+    public void close() {
+      // closes the TLS layer too, if any
+      Closeables.closeQuietly(input);
+      Closeables.closeQuietly(channel);
+    }
+
+    @Override
+    public void abort(Throwable error) {
+      if (!channel.isOpen()) {
+        return;
+      }
+      abortCause = error;
+      // stops a blocked read, or a reader parked by flow control
+      Closeables.closeQuietly(channel);
+      flow.disable();
     }
-    for (int i = 0; i < spaces; i++) {
-      int pos = rnd.nextInt(s.length() - 1) + 1;
-      s.insert(pos, " ");
+
+    /** Runs the task on a writer thread, since a write may block. */
+    @Override
+    public void execute(Runnable task) {
+      blockingWriter.execute(task);
+    }
+  }
+
+  private void doHandShake(PushbackInputStream input, WritableByteChannel output) throws IOException {
+    Handshake handshake = newHandshake();
+    ByteBuffer request = handshake.getRequest();
+    while (request.hasRemaining()) {
+      output.write(request);
+    }
+
+    HttpResponseParser parser = new HttpResponseParser();
+    try {
+      HttpResponse response = parser.parse(input);
+      byte[] body = new byte[handshake.getResponseLength()];
+      ByteStreams.readFully(input, body);
+      handshake.verify(response, body);
+    } finally {
+      parser.release();
     }
-    return s.toString();
+    negotiated(handshake);
   }
 }
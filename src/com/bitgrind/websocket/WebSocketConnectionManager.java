@@ -0,0 +1,453 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+
+/**
+ * Keeps a set of connections open, one per URI, reconnecting each whenever it
+ * drops. Connections are made through a {@link SelectorEngine}; retries are
+ * timed by a single scheduler shared by every connection, so a thousand
+ * connections waiting to retry hold no threads.
+ * <p>
+ * The delay before each retry is drawn uniformly from zero up to an
+ * exponentially growing ceiling ("full jitter"), so that connections dropped
+ * together by a failover do not all come back in the same instant. The
+ * ceiling starts at the initial backoff, doubles with each failed attempt up
+ * to the maximum, and resets once a connection has stayed open for a while.
+ * A connection which opens and is dropped straight away counts as a failed
+ * attempt, so a server which accepts and then rejects is not redialled in a
+ * tight loop.
+ * <p>
+ * Subscription messages registered for a URI are sent again, in order,
+ * each time its connection opens, right after the listener's
+ * {@code onOpen}. The listener sees every open, error and close, including
+ * those of attempts which are retried.
+ */
+public class WebSocketConnectionManager implements Closeable {
+  private static final Logger logger = Logger.getLogger(WebSocketConnectionManager.class.getName());
+
+  private final SelectorEngine engine;
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownsScheduler;
+  private final ConcurrentMap<URI, Connection> connections = new ConcurrentHashMap<URI, Connection>();
+  private volatile long initialBackoff = 100;
+  private volatile long maxBackoff = 30000;
+  private volatile long resetAfter = 10000;
+  private volatile boolean closed;
+  /** The totals of connections which have ended. */
+  private final Metrics retired = new Metrics();
+  private final WebSocketMetricsMXBean metrics = new TotalMetrics();
+
+  /** Creates a manager using the default engine and its own scheduler thread. */
+  public WebSocketConnectionManager() throws IOException {
+    this(SelectorEngine.getDefault(), null);
+  }
+
+  /**
+   * @param engine the engine connections are made with
+   * @param scheduler times the retries; if null the manager creates one,
+   *        with a single daemon thread, and shuts it down on {@link #close}
+   */
+  public WebSocketConnectionManager(SelectorEngine engine, ScheduledExecutorService scheduler) {
+    this.engine = engine;
+    this.ownsScheduler = scheduler == null;
+    this.scheduler = scheduler != null ? scheduler : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "websocket-reconnect");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Sets the bounds of the retry delay, in milliseconds. Defaults to 100 and
+   * 30000.
+   */
+  public WebSocketConnectionManager setBackoff(long initialMillis, long maxMillis) {
+    if (initialMillis < 1 || maxMillis < initialMillis)
+      throw new IllegalArgumentException("Need 0 < initialMillis <= maxMillis");
+    this.initialBackoff = initialMillis;
+    this.maxBackoff = maxMillis;
+    return this;
+  }
+
+  /**
+   * Sets how long, in milliseconds, a connection must stay open before the
+   * retry delay starts again from the initial backoff. Defaults to 10000.
+   */
+  public WebSocketConnectionManager setResetAfter(long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("millis must not be negative");
+    this.resetAfter = millis;
+    return this;
+  }
+
+  /**
+   * Starts managing a connection to {@code wsUrl} and connects it.
+   *
+   * @throws IllegalStateException if the URI is already managed, or the
+   *         manager has been closed
+   * @throws IllegalArgumentException if {@code options} are invalid; the URI
+   *         is not managed
+   */
+  public void connect(String wsUrl, WebSocketListener listener, WebSocketOptions options) throws URISyntaxException {
+    if (closed)
+      throw new IllegalStateException("WebSocketConnectionManager is closed");
+    URI uri = WebSocketClient.toWebSocketUri(wsUrl);
+    Connection connection = new Connection(uri, wsUrl, listener, options);
+    if (connections.putIfAbsent(uri, connection) != null)
+      throw new IllegalStateException("Already managing " + uri);
+    connection.connect();
+  }
+
+  /**
+   * Registers a message to be sent every time the connection to
+   * {@code wsUrl} opens. If it is open now, the message is sent at once.
+   *
+   * @throws IllegalArgumentException if the URI is not managed
+   */
+  public void subscribe(String wsUrl, String message) throws URISyntaxException, IOException {
+    Connection connection = get(wsUrl);
+    connection.subscriptions.add(message);
+    WebSocketClient client = connection.client;
+    if (client != null) {
+      client.send(message);
+    }
+  }
+
+  /** Stops sending {@code message} on reconnect. Sends nothing now. */
+  public void unsubscribe(String wsUrl, String message) throws URISyntaxException {
+    get(wsUrl).subscriptions.remove(message);
+  }
+
+  /**
+   * Returns the open client for {@code wsUrl}, or null while it is
+   * connecting or waiting to retry. Close it through {@link #disconnect},
+   * not directly, or it will be reconnected.
+   */
+  public WebSocketClient getClient(String wsUrl) throws URISyntaxException {
+    Connection connection = connections.get(WebSocketClient.toWebSocketUri(wsUrl));
+    return connection == null ? null : connection.client;
+  }
+
+  /** Stops managing {@code wsUrl} and closes its connection. */
+  public void disconnect(String wsUrl) throws URISyntaxException {
+    Connection connection = connections.remove(WebSocketClient.toWebSocketUri(wsUrl));
+    if (connection != null) {
+      connection.stop();
+    }
+  }
+
+  /** Closes every managed connection; none are reconnected. */
+  @Override
+  public void close() {
+    closed = true;
+    for (Connection connection : connections.values()) {
+      connection.stop();
+    }
+    connections.clear();
+    if (ownsScheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the metrics of every connection this manager has made, summed:
+   * those which have ended and those open now. Reading them walks the open
+   * connections, so while connections are opening and ending the totals may
+   * briefly miss or double count one.
+   */
+  public WebSocketMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  /** Publishes the totals of {@link #getMetrics} under {@code name}. */
+  public void exportMetrics(MetricsExporter exporter, String name) {
+    exporter.register(name, metrics);
+  }
+
+  /** Sums the retired totals and those of each open connection. */
+  private Metrics total() {
+    Metrics total = new Metrics();
+    total.add(retired);
+    for (Connection connection : connections.values()) {
+      WebSocketClient client = connection.client;
+      if (client != null) {
+        total.add(client.metrics());
+      }
+    }
+    return total;
+  }
+
+  private Connection get(String wsUrl) throws URISyntaxException {
+    URI uri = WebSocketClient.toWebSocketUri(wsUrl);
+    Connection connection = connections.get(uri);
+    if (connection == null)
+      throw new IllegalArgumentException("Not managing " + uri);
+    return connection;
+  }
+
+  /** Returns the failed attempts to connect to {@code wsUrl} since the backoff was last reset. */
+  int getAttempts(String wsUrl) throws URISyntaxException {
+    Connection connection = get(wsUrl);
+    synchronized (connection) {
+      return connection.attempt;
+    }
+  }
+
+  /** Returns a delay drawn from [0, min(max, initial * 2^attempt)]. */
+  long backoff(int attempt) {
+    long ceiling = initialBackoff << Math.min(attempt, 30);
+    if (ceiling <= 0 || ceiling > maxBackoff) {
+      ceiling = maxBackoff;
+    }
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  private class Connection implements Runnable {
+    final URI uri;
+    final String wsUrl;
+    final WebSocketListener listener;
+    final WebSocketOptions options;
+    final List<String> subscriptions = new CopyOnWriteArrayList<String>();
+    volatile WebSocketClient client;
+    volatile boolean stopped;
+    /** Failed attempts since the connection last stayed open long enough. */
+    private int attempt;
+    /** When the connection last opened, by {@link System#nanoTime}. */
+    private long openedAt;
+
+    Connection(URI uri, String wsUrl, WebSocketListener listener, WebSocketOptions options) {
+      this.uri = uri;
+      this.wsUrl = wsUrl;
+      this.listener = listener;
+      this.options = options;
+    }
+
+    /** Runs a scheduled retry. */
+    @Override
+    public void run() {
+      try {
+        connect();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Stopped reconnecting to " + wsUrl, e);
+        listener.onError(e);
+      }
+    }
+
+    /**
+     * Starts an attempt. If it cannot even start, as when the options are
+     * invalid, no retry would either, so the connection stops being managed.
+     */
+    void connect() {
+      if (stopped) {
+        return;
+      }
+      CompletableFuture<WebSocketClient> opening;
+      try {
+        opening = engine.connectAsync(wsUrl, listener, options);
+      } catch (RuntimeException e) {
+        stopped = true;
+        connections.remove(uri, this);
+        throw e;
+      }
+      opening.whenComplete(new BiConsumer<WebSocketClient, Throwable>() {
+        @Override
+        public void accept(WebSocketClient opened, Throwable error) {
+          if (error != null) {
+            retry();
+          } else {
+            opened(opened);
+          }
+        }
+      });
+    }
+
+    private void opened(WebSocketClient opened) {
+      synchronized (this) {
+        openedAt = System.nanoTime();
+      }
+      client = opened;
+      if (stopped) {
+        closeQuietly(opened);
+        return;
+      }
+      try {
+        for (String subscription : subscriptions) {
+          opened.send(subscription);
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to resubscribe to " + wsUrl, e);
+      }
+      opened.terminated().whenComplete(new BiConsumer<WebSocketClient, Throwable>() {
+        @Override
+        public void accept(WebSocketClient ended, Throwable error) {
+          retired.add(ended.metrics());
+          client = null;
+          resetIfStable();
+          retry();
+        }
+      });
+    }
+
+    private synchronized void resetIfStable() {
+      if (System.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(resetAfter)) {
+        attempt = 0;
+      }
+    }
+
+    private void retry() {
+      if (stopped) {
+        return;
+      }
+      long delay;
+      synchronized (this) {
+        delay = backoff(attempt++);
+      }
+      try {
+        scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // the scheduler was shut down
+      }
+    }
+
+    void stop() {
+      stopped = true;
+      WebSocketClient client = this.client;
+      if (client != null) {
+        closeQuietly(client);
+      }
+    }
+
+    private void closeQuietly(WebSocketClient client) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "IOException thrown while closing WebSocketClient.", e);
+      }
+    }
+  }
+
+  /** Computes each value afresh from the connections when it is read. */
+  private class TotalMetrics implements WebSocketMetricsMXBean {
+    @Override
+    public long getBytesReceived() {
+      return total().getBytesReceived();
+    }
+
+    @Override
+    public long getBytesSent() {
+      return total().getBytesSent();
+    }
+
+    @Override
+    public long getTextFramesReceived() {
+      return total().getTextFramesReceived();
+    }
+
+    @Override
+    public long getBinaryFramesReceived() {
+      return total().getBinaryFramesReceived();
+    }
+
+    @Override
+    public long getPingsReceived() {
+      return total().getPingsReceived();
+    }
+
+    @Override
+    public long getPongsReceived() {
+      return total().getPongsReceived();
+    }
+
+    @Override
+    public long getCloseFramesReceived() {
+      return total().getCloseFramesReceived();
+    }
+
+    @Override
+    public long getTextFramesSent() {
+      return total().getTextFramesSent();
+    }
+
+    @Override
+    public long getBinaryFramesSent() {
+      return total().getBinaryFramesSent();
+    }
+
+    @Override
+    public long getPingsSent() {
+      return total().getPingsSent();
+    }
+
+    @Override
+    public long getPongsSent() {
+      return total().getPongsSent();
+    }
+
+    @Override
+    public long getCloseFramesSent() {
+      return total().getCloseFramesSent();
+    }
+
+    @Override
+    public long getErrors() {
+      return total().getErrors();
+    }
+
+    @Override
+    public HistogramSnapshot getMessageSize() {
+      return total().getMessageSize();
+    }
+
+    @Override
+    public HistogramSnapshot getDecodeTime() {
+      return total().getDecodeTime();
+    }
+
+    @Override
+    public HistogramSnapshot getHandshakeTime() {
+      return total().getHandshakeTime();
+    }
+
+    @Override
+    public HistogramSnapshot getDispatchLatency() {
+      return total().getDispatchLatency();
+    }
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketClient.CharSequenceListener;
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+
+/**
+ * Shares one connection per URI between any number of subscribers. The
+ * first subscriber to a URI opens the connection; later ones join it, and
+ * it is closed when the last one leaves. Each message is decoded once and
+ * then handed to every subscriber in turn, in the order they subscribed,
+ * on the connection's reading thread. Text becomes a single String which
+ * all the subscribers share, and binary a single array, which they must
+ * not modify. {@link CharSequenceListener}s and
+ * {@link BinaryBufferListener}s are given the decode buffers themselves,
+ * as they would be by a connection of their own.
+ * <p>
+ * A subscriber which joins an open connection has its {@code onOpen}
+ * called at once and receives the messages which follow. When the
+ * connection ends, every subscriber still on it sees the close or error,
+ * and the next subscription to the URI opens a new connection. A
+ * subscriber which leaves sees nothing further.
+ */
+public class WebSocketHub implements Closeable {
+  private static final Logger logger = Logger.getLogger(WebSocketHub.class.getName());
+
+  private final SelectorEngine engine;
+  private final WebSocketOptions options;
+  /** Guarded by itself, along with the reference counts. */
+  private final Map<URI, Upstream> upstreams = new HashMap<URI, Upstream>();
+  private boolean closed;
+
+  /** Creates a hub connecting through the default engine, with default options. */
+  public WebSocketHub() throws IOException {
+    this(SelectorEngine.getDefault(), new WebSocketOptions());
+  }
+
+  /**
+   * @param engine the engine connections are made with
+   * @param options the options of every connection the hub makes
+   */
+  public WebSocketHub(SelectorEngine engine, WebSocketOptions options) {
+    this.engine = engine;
+    this.options = options;
+  }
+
+  /**
+   * Subscribes {@code listener} to the messages from {@code wsUrl}, opening
+   * a connection only if there is none already.
+   *
+   * @throws IllegalStateException if the hub has been closed
+   */
+  public Subscription subscribe(String wsUrl, WebSocketListener listener) throws IOException, URISyntaxException {
+    URI uri = WebSocketClient.toWebSocketUri(wsUrl);
+    Upstream upstream;
+    synchronized (upstreams) {
+      if (closed)
+        throw new IllegalStateException("WebSocketHub is closed");
+      upstream = upstreams.get(uri);
+      if (upstream == null) {
+        upstream = new Upstream(uri);
+        upstreams.put(uri, upstream);
+      }
+      upstream.references++;
+    }
+    Subscription subscription = new Subscription(upstream, listener);
+    try {
+      upstream.connect(wsUrl);
+    } catch (IOException e) {
+      subscription.close();
+      throw e;
+    } catch (RuntimeException e) {
+      subscription.close();
+      throw e;
+    }
+    upstream.join(subscription);
+    return subscription;
+  }
+
+  /** Returns the number of subscribers sharing the connection to {@code wsUrl}. */
+  public int getSubscriberCount(String wsUrl) throws URISyntaxException {
+    synchronized (upstreams) {
+      Upstream upstream = upstreams.get(WebSocketClient.toWebSocketUri(wsUrl));
+      return upstream == null ? 0 : upstream.references;
+    }
+  }
+
+  /**
+   * Closes every connection. Subscribers see each close as it completes;
+   * no more may subscribe.
+   */
+  @Override
+  public void close() {
+    List<Upstream> open;
+    synchronized (upstreams) {
+      closed = true;
+      open = new ArrayList<Upstream>(upstreams.values());
+      upstreams.clear();
+    }
+    for (Upstream upstream : open) {
+      upstream.close();
+    }
+  }
+
+  /** One subscriber's share of a connection. */
+  public final class Subscription implements Closeable {
+    private final Upstream upstream;
+    final WebSocketListener listener;
+    private boolean left;
+
+    Subscription(Upstream upstream, WebSocketListener listener) {
+      this.upstream = upstream;
+      this.listener = listener;
+    }
+
+    /**
+     * Sends a text message on the shared connection. Every subscriber sees
+     * the replies.
+     */
+    public void send(String message) throws IOException {
+      upstream.client().send(message);
+    }
+
+    /** Sends a binary message on the shared connection. The array must not be modified afterwards. */
+    public void send(byte[] message) throws IOException {
+      upstream.client().send(message);
+    }
+
+    /**
+     * Stops delivering to this subscriber, closing the connection if it was
+     * the last. Does nothing if called again.
+     */
+    @Override
+    public void close() {
+      boolean last;
+      synchronized (upstreams) {
+        if (left) {
+          return;
+        }
+        left = true;
+        last = --upstream.references == 0 && upstreams.get(upstream.uri) == upstream;
+        if (last) {
+          upstreams.remove(upstream.uri);
+        }
+      }
+      upstream.leave(this);
+      if (last) {
+        upstream.close();
+      }
+    }
+  }
+
+  /** The shared connection, and the listener which fans its events out. */
+  private class Upstream implements CharSequenceListener, BinaryBufferListener {
+    final URI uri;
+    /** Guarded by the hub's map. */
+    int references;
+    private final List<Subscription> subscribers = new CopyOnWriteArrayList<Subscription>();
+    // guarded by this
+    private WebSocketClient client;
+    private boolean open;
+    private boolean ended;
+    private Throwable error;
+
+    Upstream(URI uri) {
+      this.uri = uri;
+    }
+
+    /** Opens the connection, unless a subscriber before has. */
+    synchronized void connect(String wsUrl) throws IOException {
+      if (client != null) {
+        return;
+      }
+      try {
+        client = engine.connect(wsUrl, this, options);
+      } catch (URISyntaxException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    synchronized WebSocketClient client() throws IOException {
+      if (client == null)
+        throw new IOException("Not connected to " + uri);
+      return client;
+    }
+
+    /** Starts delivering to a subscriber, catching it up on the connection's state. */
+    void join(Subscription subscription) {
+      boolean late;
+      boolean over;
+      Throwable error;
+      synchronized (this) {
+        late = open;
+        over = ended;
+        error = this.error;
+        if (!late && !over) {
+          subscribers.add(subscription);
+        }
+      }
+      if (late && !over) {
+        subscription.listener.onOpen();
+        // the connection may have ended while the subscriber was told of the
+        // open, and the end delivered to everyone else already
+        synchronized (this) {
+          over = ended;
+          error = this.error;
+          if (!over) {
+            subscribers.add(subscription);
+          }
+        }
+      }
+      if (over) {
+        end(subscription.listener, error);
+      }
+    }
+
+    void leave(Subscription subscription) {
+      subscribers.remove(subscription);
+    }
+
+    void close() {
+      WebSocketClient client;
+      synchronized (this) {
+        client = this.client;
+      }
+      if (client != null) {
+        try {
+          client.close();
+        } catch (IOException e) {
+          logger.log(Level.FINE, "IOException thrown while closing WebSocketClient.", e);
+        }
+      }
+    }
+
+    @Override
+    public void onOpen() {
+      // taken with the flag set, so each subscriber is told of the open
+      // either here or by join(), never both
+      Subscription[] joined;
+      synchronized (this) {
+        open = true;
+        joined = subscribers.toArray(new Subscription[0]);
+      }
+      for (Subscription subscription : joined) {
+        try {
+          subscription.listener.onOpen();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Subscriber failed", e);
+        }
+      }
+    }
+
+    @Override
+    public void onMessage(CharSequence message) {
+      CharBuffer text = (CharBuffer) message;
+      int position = text.position();
+      String string = null;
+      for (Subscription subscription : subscribers) {
+        WebSocketListener listener = subscription.listener;
+        try {
+          if (listener instanceof CharSequenceListener) {
+            ((CharSequenceListener) listener).onMessage(text);
+            text.position(position);
+          } else {
+            if (string == null) {
+              string = text.toString();
+            }
+            listener.onMessage(string);
+          }
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Subscriber failed", e);
+        }
+      }
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+      int position = message.position();
+      byte[] array = null;
+      for (Subscription subscription : subscribers) {
+        WebSocketListener listener = subscription.listener;
+        try {
+          if (listener instanceof BinaryBufferListener) {
+            ((BinaryBufferListener) listener).onMessage(message);
+            message.position(position);
+          } else {
+            if (array == null) {
+              array = new byte[message.remaining()];
+              message.get(array);
+              message.position(position);
+            }
+            listener.onMessage(array);
+          }
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Subscriber failed", e);
+        }
+      }
+    }
+
+    @Override
+    public void onMessage(String message) {
+      // not called: text arrives as a CharSequence
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+      // not called: binary arrives as a ByteBuffer
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      ended(error);
+    }
+
+    @Override
+    public void onClose() {
+      ended(null);
+    }
+
+    /** Retires the connection and tells every subscriber still on it. */
+    private void ended(Throwable error) {
+      synchronized (this) {
+        if (ended) {
+          return;
+        }
+        ended = true;
+        this.error = error;
+      }
+      synchronized (upstreams) {
+        if (upstreams.get(uri) == this) {
+          upstreams.remove(uri);
+        }
+      }
+      for (Subscription subscription : subscribers) {
+        end(subscription.listener, error);
+      }
+      subscribers.clear();
+    }
+
+    private void end(WebSocketListener listener, Throwable error) {
+      try {
+        if (error != null) {
+          listener.onError(error);
+        } else {
+          listener.onClose();
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Subscriber failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+/**
+ * Traffic counters and latency distributions of one connection, or of every
+ * connection held by a {@link WebSocketConnectionManager}. Counters only
+ * grow. Times are in nanoseconds and sizes in bytes.
+ */
+public interface WebSocketMetricsMXBean {
+
+  long getBytesReceived();
+
+  long getBytesSent();
+
+  long getTextFramesReceived();
+
+  long getBinaryFramesReceived();
+
+  long getPingsReceived();
+
+  long getPongsReceived();
+
+  long getCloseFramesReceived();
+
+  long getTextFramesSent();
+
+  long getBinaryFramesSent();
+
+  long getPingsSent();
+
+  long getPongsSent();
+
+  long getCloseFramesSent();
+
+  /** Returns the number of errors reported to the listener. */
+  long getErrors();
+
+  /**
+   * Returns the sizes of messages received, after decompression. Empty
+   * unless {@link WebSocketOptions#setRecordHistograms histograms} are kept.
+   */
+  HistogramSnapshot getMessageSize();
+
+  /**
+   * Returns the time spent decoding each read, not counting the listener
+   * calls made along the way. Empty unless histograms are kept.
+   */
+  HistogramSnapshot getDecodeTime();
+
+  /** Returns the time from sending the opening handshake to its verified response. */
+  HistogramSnapshot getHandshakeTime();
+
+  /**
+   * Returns the time messages waited between the reading thread and the
+   * listener. Empty unless a dispatch stage is configured and histograms
+   * are kept.
+   */
+  HistogramSnapshot getDispatchLatency();
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+
+import com.bitgrind.websocket.WebSocketClient.KeyExtractor;
+import com.bitgrind.websocket.WebSocketClient.StreamingListener;
+
+/**
+ * Settings for a {@link WebSocketClient}. The values are read when the client
+ * is created; changing them afterwards has no effect on it.
+ */
+public class WebSocketOptions {
+
+  /** The version of the WebSocket protocol to speak. */
+  public enum Protocol {
+    /** draft-hixie-thewebsocketprotocol-76, also known as hybi-00. */
+    HYBI_00,
+    /** RFC 6455, the standard protocol. */
+    RFC_6455
+  }
+
+  /** What to do with a message larger than the maximum message size. */
+  public enum OversizePolicy {
+    /** Fail the connection. */
+    REJECT,
+    /**
+     * Deliver the first {@code maxMessageSize} bytes as the message and
+     * discard the rest. Text is cut at a character boundary.
+     */
+    TRUNCATE,
+    /**
+     * Deliver the message in chunks as it arrives, through a
+     * {@link StreamingListener}, without buffering it.
+     */
+    STREAM
+  }
+
+  /** How a thread waits on the dispatch ring. */
+  public enum WaitStrategy {
+    /** Spin without pausing; lowest latency, burns a core per waiting thread. */
+    BUSY_SPIN,
+    /** Spin, yielding the processor between checks. */
+    YIELD,
+    /** Park the thread until it is woken; costs a wake-up per batch. */
+    PARK
+  }
+
+  /** What the reader does when the dispatch ring is full. */
+  public enum OverflowPolicy {
+    /** Wait for a consumer to make room, which stops reading the socket. */
+    BLOCK,
+    /** Discard the oldest undelivered message to make room. */
+    DROP_OLDEST,
+    /** Discard the message which does not fit. */
+    DROP_NEWEST
+  }
+
+  private Protocol protocol = Protocol.HYBI_00;
+  private int maxMessageSize = Integer.MAX_VALUE;
+  private OversizePolicy oversizePolicy = OversizePolicy.REJECT;
+  private boolean perMessageDeflate;
+  private boolean contextTakeover = true;
+  private int connectTimeout;
+  private int handshakeTimeout;
+  private int dispatchCapacity;
+  private int dispatchThreads = 1;
+  private WaitStrategy waitStrategy = WaitStrategy.PARK;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private KeyExtractor conflation;
+  private MetricsExporter metricsExporter;
+  private boolean recordHistograms;
+  private SSLContext sslContext;
+  private long initialDemand = Long.MAX_VALUE;
+  private long lowWatermark;
+  private long highWatermark;
+  private int readIdleTimeout;
+  private int writeIdleTimeout;
+  private String keepAliveMessage;
+  private Executor executor;
+  private ThreadFactory threadFactory;
+
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /** Defaults to {@link Protocol#HYBI_00}. */
+  public WebSocketOptions setProtocol(Protocol protocol) {
+    if (protocol == null)
+      throw new NullPointerException("protocol");
+    this.protocol = protocol;
+    return this;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  /**
+   * Sets the largest message, in bytes, which is buffered and delivered
+   * whole. Defaults to {@code Integer.MAX_VALUE}.
+   */
+  public WebSocketOptions setMaxMessageSize(int maxMessageSize) {
+    if (maxMessageSize < 0)
+      throw new IllegalArgumentException("maxMessageSize must not be negative");
+    this.maxMessageSize = maxMessageSize;
+    return this;
+  }
+
+  public OversizePolicy getOversizePolicy() {
+    return oversizePolicy;
+  }
+
+  /** Defaults to {@link OversizePolicy#REJECT}. */
+  public WebSocketOptions setOversizePolicy(OversizePolicy oversizePolicy) {
+    if (oversizePolicy == null)
+      throw new NullPointerException("oversizePolicy");
+    this.oversizePolicy = oversizePolicy;
+    return this;
+  }
+
+  public boolean isPerMessageDeflate() {
+    return perMessageDeflate;
+  }
+
+  /**
+   * Offers the permessage-deflate extension during the handshake. If the
+   * server accepts it, messages are compressed in both directions; if not,
+   * the connection proceeds uncompressed. Only supported with
+   * {@link Protocol#RFC_6455}. Defaults to false.
+   */
+  public WebSocketOptions setPerMessageDeflate(boolean perMessageDeflate) {
+    this.perMessageDeflate = perMessageDeflate;
+    return this;
+  }
+
+  public boolean isContextTakeover() {
+    return contextTakeover;
+  }
+
+  /**
+   * Whether compression state carries over from one message to the next.
+   * When false, both client_no_context_takeover and
+   * server_no_context_takeover are requested: every message is compressed
+   * on its own, which costs compression but lets either side release its
+   * window between messages. Defaults to true.
+   */
+  public WebSocketOptions setContextTakeover(boolean contextTakeover) {
+    this.contextTakeover = contextTakeover;
+    return this;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets how long, in milliseconds, to wait for the TCP connection to be
+   * established. Zero waits indefinitely. Defaults to zero.
+   */
+  public WebSocketOptions setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0)
+      throw new IllegalArgumentException("connectTimeout must not be negative");
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  public int getHandshakeTimeout() {
+    return handshakeTimeout;
+  }
+
+  /**
+   * Sets how long, in milliseconds, to wait for the opening handshake once
+   * connected. Zero waits indefinitely. Defaults to zero.
+   */
+  public WebSocketOptions setHandshakeTimeout(int handshakeTimeout) {
+    if (handshakeTimeout < 0)
+      throw new IllegalArgumentException("handshakeTimeout must not be negative");
+    this.handshakeTimeout = handshakeTimeout;
+    return this;
+  }
+
+  public int getDispatchCapacity() {
+    return dispatchCapacity;
+  }
+
+  /**
+   * Enables a dispatch stage: messages are copied into a ring of this many
+   * slots, rounded up to a power of two, and delivered to the listener by
+   * separate dispatch threads, so a slow listener does not hold up reading.
+   * Zero, the default, delivers messages on the reading thread. Not
+   * supported with {@link OversizePolicy#STREAM}.
+   */
+  public WebSocketOptions setDispatchCapacity(int dispatchCapacity) {
+    if (dispatchCapacity < 0 || dispatchCapacity > 1 << 30)
+      throw new IllegalArgumentException("dispatchCapacity must be between 0 and 2^30");
+    this.dispatchCapacity = dispatchCapacity;
+    return this;
+  }
+
+  public int getDispatchThreads() {
+    return dispatchThreads;
+  }
+
+  /**
+   * Sets the number of threads draining the dispatch ring. With more than
+   * one, messages may be delivered concurrently and out of order. Defaults
+   * to 1.
+   */
+  public WebSocketOptions setDispatchThreads(int dispatchThreads) {
+    if (dispatchThreads < 1)
+      throw new IllegalArgumentException("dispatchThreads must be positive");
+    this.dispatchThreads = dispatchThreads;
+    return this;
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /** Defaults to {@link WaitStrategy#PARK}. */
+  public WebSocketOptions setWaitStrategy(WaitStrategy waitStrategy) {
+    if (waitStrategy == null)
+      throw new NullPointerException("waitStrategy");
+    this.waitStrategy = waitStrategy;
+    return this;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /** Defaults to {@link OverflowPolicy#BLOCK}. */
+  public WebSocketOptions setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    if (overflowPolicy == null)
+      throw new NullPointerException("overflowPolicy");
+    this.overflowPolicy = overflowPolicy;
+    return this;
+  }
+
+  public KeyExtractor getConflation() {
+    return conflation;
+  }
+
+  /**
+   * Delivers messages on a separate thread, and only the newest message for
+   * each key: while the listener is busy, a message replaces any undelivered
+   * one with the same key. Keys are delivered in the order they first became
+   * pending. Use for feeds where only the latest value matters, so that a
+   * stalled listener holds one message per key however fast they arrive.
+   * Null, the default, delivers every message. Not supported with a
+   * dispatch ring or {@link OversizePolicy#STREAM}.
+   */
+  public WebSocketOptions setConflation(KeyExtractor conflation) {
+    this.conflation = conflation;
+    return this;
+  }
+
+  public MetricsExporter getMetricsExporter() {
+    return metricsExporter;
+  }
+
+  /**
+   * Publishes each connection's metrics through {@code metricsExporter}
+   * from when it opens until it ends, named by its URI and a sequence
+   * number. Metrics are recorded either way and can be read from
+   * {@link WebSocketClient#getMetrics}. Defaults to null.
+   */
+  public WebSocketOptions setMetricsExporter(MetricsExporter metricsExporter) {
+    this.metricsExporter = metricsExporter;
+    return this;
+  }
+
+  public boolean isRecordHistograms() {
+    return recordHistograms;
+  }
+
+  /**
+   * Keeps a histogram of each connection's message sizes, decode times and
+   * dispatch latencies. They take a few kilobytes per connection, so with
+   * many connections leave them off and rely on the counters; they read as
+   * empty. The handshake time is recorded either way. Defaults to false.
+   */
+  public WebSocketOptions setRecordHistograms(boolean recordHistograms) {
+    this.recordHistograms = recordHistograms;
+    return this;
+  }
+
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  /**
+   * Sets the context {@code wss} connections are made with, which decides
+   * the certificates trusted. TLS sessions are cached by the context, so
+   * share one between connections to resume sessions across reconnects.
+   * Defaults to null, for {@link SSLContext#getDefault()}.
+   */
+  public WebSocketOptions setSslContext(SSLContext sslContext) {
+    this.sslContext = sslContext;
+    return this;
+  }
+
+  public long getInitialDemand() {
+    return initialDemand;
+  }
+
+  /**
+   * Sets how many messages may be delivered before the application asks for
+   * more with {@link WebSocketClient#request}. Once they have been, the
+   * connection stops reading from its socket until more are requested.
+   * Defaults to {@code Long.MAX_VALUE}, which is never used up.
+   */
+  public WebSocketOptions setInitialDemand(long initialDemand) {
+    if (initialDemand < 0)
+      throw new IllegalArgumentException("initialDemand must not be negative");
+    this.initialDemand = initialDemand;
+    return this;
+  }
+
+  public long getLowWatermark() {
+    return lowWatermark;
+  }
+
+  public long getHighWatermark() {
+    return highWatermark;
+  }
+
+  /**
+   * Bounds the bytes held by the dispatch stage: once messages waiting for
+   * the listener add up to more than {@code high} bytes, the connection
+   * stops reading from its socket until they fall to {@code low}. Only
+   * applies with a dispatch ring or conflation. Defaults to 0 and 0, for no
+   * limit.
+   */
+  public WebSocketOptions setBufferWatermarks(long low, long high) {
+    if (low < 0 || high < low)
+      throw new IllegalArgumentException("Need 0 <= low <= high");
+    this.lowWatermark = low;
+    this.highWatermark = high;
+    return this;
+  }
+
+  public int getReadIdleTimeout() {
+    return readIdleTimeout;
+  }
+
+  /**
+   * Fails the open connection with a {@code SocketTimeoutException} once
+   * nothing has been received on it for this many milliseconds, so that a
+   * connection the network has silently dropped is noticed. Time spent with
+   * reading suspended by flow control does not count. Pair with a write
+   * idle timeout if the server only sends in answer to the client. Zero
+   * waits indefinitely. Defaults to zero.
+   */
+  public WebSocketOptions setReadIdleTimeout(int readIdleTimeout) {
+    if (readIdleTimeout < 0)
+      throw new IllegalArgumentException("readIdleTimeout must not be negative");
+    this.readIdleTimeout = readIdleTimeout;
+    return this;
+  }
+
+  public int getWriteIdleTimeout() {
+    return writeIdleTimeout;
+  }
+
+  /**
+   * Sends a keep-alive once nothing has been sent on the open connection
+   * for this many milliseconds: the {@link #setKeepAliveMessage keep-alive
+   * message} if there is one, otherwise a ping frame. Zero sends none.
+   * Defaults to zero.
+   */
+  public WebSocketOptions setWriteIdleTimeout(int writeIdleTimeout) {
+    if (writeIdleTimeout < 0)
+      throw new IllegalArgumentException("writeIdleTimeout must not be negative");
+    this.writeIdleTimeout = writeIdleTimeout;
+    return this;
+  }
+
+  public String getKeepAliveMessage() {
+    return keepAliveMessage;
+  }
+
+  /**
+   * Sets a text message to send as the keep-alive instead of a ping frame,
+   * for servers which expect an application-level heartbeat. Required with
+   * {@link Protocol#HYBI_00}, which has no ping frame. Defaults to null.
+   */
+  public WebSocketOptions setKeepAliveMessage(String keepAliveMessage) {
+    this.keepAliveMessage = keepAliveMessage;
+    return this;
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Runs the reading task of each blocking connection on {@code executor}.
+   * The task occupies its thread for as long as the connection is open, so
+   * the executor must be able to run one per connection at once. Takes
+   * precedence over the thread factory. Connections made through a
+   * {@link SelectorEngine} have no reading task and ignore it. Defaults to
+   * null.
+   */
+  public WebSocketOptions setExecutor(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  /**
+   * Creates the reading thread of each blocking connection with
+   * {@code threadFactory}. Defaults to null, for a platform thread named
+   * {@code websocket-reader-N}.
+   */
+  public WebSocketOptions setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+    return this;
+  }
+
+  /**
+   * Reads each blocking connection on a virtual thread of its own, so that
+   * tens of thousands of connections cost no more than their buffers and
+   * sockets. Sets the thread factory.
+   *
+   * @throws UnsupportedOperationException before Java 21, which has no
+   *         virtual threads
+   */
+  public WebSocketOptions useVirtualThreads() {
+    this.threadFactory = VirtualThreads.factory("websocket-reader-");
+    return this;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket.util;
+
+/**
+ * Base64 encoding, as defined by RFC 4648, with padding. Only what the
+ * handshake needs.
+ */
+public class Base64 {
+  private static final char[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private Base64() {
+  }
+
+  public static String encode(byte[] bytes) {
+    StringBuilder s = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for (int i = 0; i < bytes.length; i += 3) {
+      int n = (bytes[i] & 0xff) << 16;
+      if (i + 1 < bytes.length)
+        n |= (bytes[i + 1] & 0xff) << 8;
+      if (i + 2 < bytes.length)
+        n |= bytes[i + 2] & 0xff;
+      s.append(ALPHABET[n >>> 18]);
+      s.append(ALPHABET[(n >>> 12) & 0x3f]);
+      s.append(i + 1 < bytes.length ? ALPHABET[(n >>> 6) & 0x3f] : '=');
+      s.append(i + 2 < bytes.length ? ALPHABET[n & 0x3f] : '=');
+    }
+    return s.toString();
+  }
+}
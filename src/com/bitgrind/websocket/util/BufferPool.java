@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 Mark Renouf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bitgrind.websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s in power-of-two size classes, from
+ * 512 bytes up to a configurable maximum. Buffers are kept in a bounded
+ * shared free list per class. A long-lived thread which does most of the
+ * acquiring, such as a selector loop, may also {@link #attachThreadCache
+ * attach} a small cache of the smaller classes, so that its common
+ * acquire/release pair touches no shared state; other threads use the shared
+ * lists only, and hold nothing once they are gone. Requests larger than the
+ * biggest class are simply allocated and are not retained when released.
+ * <p>
+ * Buffers are handed out cleared, with a capacity of at least the size
+ * requested. A buffer must not be used after it has been released.
+ */
+public class BufferPool {
+  private static final int MIN_SHIFT = 9;
+  private static final int THREAD_CACHE_MAX_SHIFT = 16;
+  private static final int THREAD_CACHE_SIZE = 8;
+
+  private static final BufferPool DEFAULT = new BufferPool(false, 1 << 22, 64);
+
+  /** Statistics for a pool. Counts are approximate while the pool is in use. */
+  public static class Stats {
+    private final long hits;
+    private final long misses;
+    private final long retainedBytes;
+
+    Stats(long hits, long misses, long retainedBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.retainedBytes = retainedBytes;
+    }
+
+    /** The number of acquisitions satisfied with a pooled buffer. */
+    public long getHits() {
+      return hits;
+    }
+
+    /** The number of acquisitions which had to allocate. */
+    public long getMisses() {
+      return misses;
+    }
+
+    /** The total capacity of the buffers currently held by the pool. */
+    public long getRetainedBytes() {
+      return retainedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("BufferPool.Stats [hits=%s, misses=%s, retainedBytes=%s]", hits, misses, retainedBytes);
+    }
+  }
+
+  /** Per-thread stacks of buffers for the smaller size classes. */
+  private class ThreadCache {
+    final ByteBuffer[][] stacks = new ByteBuffer[Math.min(classes, THREAD_CACHE_MAX_SHIFT - MIN_SHIFT + 1)][THREAD_CACHE_SIZE];
+    final int[] sizes = new int[stacks.length];
+    long hits;
+    long misses;
+    long retainedBytes;
+
+    ByteBuffer poll(int index) {
+      if (index >= stacks.length || sizes[index] == 0) {
+        return null;
+      }
+      ByteBuffer buffer = stacks[index][--sizes[index]];
+      stacks[index][sizes[index]] = null;
+      retainedBytes -= buffer.capacity();
+      return buffer;
+    }
+
+    boolean offer(int index, ByteBuffer buffer) {
+      if (index >= stacks.length || sizes[index] == THREAD_CACHE_SIZE) {
+        return false;
+      }
+      stacks[index][sizes[index]++] = buffer;
+      retainedBytes += buffer.capacity();
+      return true;
+    }
+  }
+
+  private final boolean direct;
+  private final int classes;
+  private final int maxRetainedPerClass;
+  private final Queue<ByteBuffer>[] shared;
+  private final AtomicInteger[] sharedCounts;
+  private final AtomicLong sharedRetainedBytes = new AtomicLong();
+  /** Counts acquisitions by threads without a cache, and by caches since released. */
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong sharedMisses = new AtomicLong();
+  private final Set<ThreadCache> caches = Collections.newSetFromMap(new ConcurrentHashMap<ThreadCache, Boolean>());
+  private final ThreadLocal<ThreadCache> cache = new ThreadLocal<ThreadCache>();
+
+  /** Returns the shared pool of heap buffers used by default. */
+  public static BufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param direct whether to pool direct rather than heap buffers
+   * @param maxBufferSize the largest buffer which will be pooled, rounded up
+   *          to a power of two
+   * @param maxRetainedPerClass the most buffers of each size class to keep
+   *          in the shared free list
+   */
+  public BufferPool(boolean direct, int maxBufferSize, int maxRetainedPerClass) {
+    if (maxBufferSize < (1 << MIN_SHIFT) || maxBufferSize > (1 << 30))
+      throw new IllegalArgumentException("maxBufferSize out of range: " + maxBufferSize);
+
+    this.direct = direct;
+    this.classes = sizeClass(maxBufferSize) + 1;
+    this.maxRetainedPerClass = maxRetainedPerClass;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Queue<ByteBuffer>[] shared = new Queue[classes];
+    this.shared = shared;
+    this.sharedCounts = new AtomicInteger[classes];
+    for (int i = 0; i < classes; i++) {
+      shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+      sharedCounts[i] = new AtomicInteger();
+    }
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /** Returns a cleared buffer with a capacity of at least {@code minCapacity}. */
+  public ByteBuffer acquire(int minCapacity) {
+    int index = sizeClass(minCapacity);
+    ThreadCache cache = this.cache.get();
+    if (index >= classes) {
+      missed(cache);
+      return allocate(minCapacity);
+    }
+    ByteBuffer buffer = cache != null ? cache.poll(index) : null;
+    if (buffer == null) {
+      buffer = shared[index].poll();
+      if (buffer != null) {
+        sharedCounts[index].decrementAndGet();
+        sharedRetainedBytes.addAndGet(-buffer.capacity());
+      }
+    }
+    if (buffer == null) {
+      missed(cache);
+      return allocate(1 << (index + MIN_SHIFT));
+    }
+    if (cache != null) {
+      cache.hits++;
+    } else {
+      sharedHits.incrementAndGet();
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  private void missed(ThreadCache cache) {
+    if (cache != null) {
+      cache.misses++;
+    } else {
+      sharedMisses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers which the pool would not have
+   * handed out (read-only, of the wrong kind or not a pooled size) and
+   * buffers beyond the pool's limits are dropped. Null is ignored.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.isReadOnly() || buffer.isDirect() != direct) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT)) {
+      return;
+    }
+    int index = sizeClass(capacity);
+    if (index >= classes) {
+      return;
+    }
+    buffer.clear();
+    ThreadCache cache = this.cache.get();
+    if (cache == null || !cache.offer(index, buffer)) {
+      releaseShared(index, buffer);
+    }
+  }
+
+  /**
+   * Gives the calling thread a cache of its own, if it has none. Only
+   * threads which acquire often and live long should; each must call
+   * {@link #releaseThreadCache} before it exits.
+   */
+  public void attachThreadCache() {
+    if (cache.get() == null) {
+      ThreadCache cache = new ThreadCache();
+      caches.add(cache);
+      this.cache.set(cache);
+    }
+  }
+
+  /**
+   * Moves the calling thread's cached buffers to the shared free lists and
+   * detaches its cache, so that they are not stranded when it exits. Does
+   * nothing if the thread has no cache.
+   */
+  public void releaseThreadCache() {
+    ThreadCache cache = this.cache.get();
+    if (cache == null) {
+      return;
+    }
+    for (int index = 0; index < cache.stacks.length; index++) {
+      ByteBuffer buffer;
+      while ((buffer = cache.poll(index)) != null) {
+        releaseShared(index, buffer);
+      }
+    }
+    sharedHits.addAndGet(cache.hits);
+    sharedMisses.addAndGet(cache.misses);
+    caches.remove(cache);
+    this.cache.remove();
+  }
+
+  public Stats getStats() {
+    long hits = sharedHits.get();
+    long misses = sharedMisses.get();
+    long retainedBytes = sharedRetainedBytes.get();
+    for (ThreadCache cache : caches) {
+      hits += cache.hits;
+      misses += cache.misses;
+      retainedBytes += cache.retainedBytes;
+    }
+    return new Stats(hits, misses, retainedBytes);
+  }
+
+  private void releaseShared(int index, ByteBuffer buffer) {
+    if (sharedCounts[index].incrementAndGet() <= maxRetainedPerClass) {
+      shared[index].add(buffer);
+      sharedRetainedBytes.addAndGet(buffer.capacity());
+    } else {
+      sharedCounts[index].decrementAndGet();
+    }
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /** Returns the index of the smallest size class holding {@code size} bytes. */
+  private static int sizeClass(int size) {
+    if (size <= (1 << MIN_SHIFT)) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+}
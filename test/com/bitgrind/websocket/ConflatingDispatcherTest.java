@@ -0,0 +1,85 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.RingDispatcherTest.RecordingSink;
+import com.bitgrind.websocket.WebSocketClient.KeyExtractor;
+import com.bitgrind.websocket.util.BufferPool;
+
+public class ConflatingDispatcherTest extends TestCase {
+  /** Keys "SYMBOL=price" messages by symbol; anything else is never conflated. */
+  private static final KeyExtractor SYMBOL = new KeyExtractor() {
+    @Override
+    public Object keyOf(ByteBuffer payload, boolean binary) {
+      assertTrue(payload.isReadOnly());
+      StringBuilder key = new StringBuilder();
+      while (payload.hasRemaining()) {
+        char c = (char) payload.get();
+        if (c == '=') {
+          return key.toString();
+        }
+        key.append(c);
+      }
+      return null;
+    }
+  };
+
+  private static ByteBuffer text(String s) throws Exception {
+    return ByteBuffer.wrap(s.getBytes("UTF-8"));
+  }
+
+  public void testLatestPerKey() throws Exception {
+    RecordingSink sink = new RecordingSink(true);
+    ConflatingDispatcher dispatcher = new ConflatingDispatcher(sink, new Histogram(), SYMBOL);
+    dispatcher.start();
+    dispatcher.publishText(text("held"));
+    assertTrue(sink.blocked.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++) {
+      ByteBuffer payload = text("AAPL=" + i);
+      dispatcher.publishText(payload);
+      assertEquals(0, payload.position());
+      dispatcher.publishText(text("MSFT=" + i));
+    }
+    dispatcher.publishText(text("news 1"));
+    dispatcher.publishText(text("news 2"));
+    dispatcher.publishClose();
+
+    DispatchStats stats = dispatcher.getStats();
+    assertEquals(203, stats.getPublished());
+    assertEquals(198, stats.getDropped());
+    assertEquals(5, stats.getOccupancy());
+
+    sink.release.countDown();
+    assertEquals("held", sink.next());
+    assertEquals("AAPL=99", sink.next());
+    assertEquals("MSFT=99", sink.next());
+    assertEquals("news 1", sink.next());
+    assertEquals("news 2", sink.next());
+    assertEquals("close", sink.next());
+  }
+
+  public void testNothingHeldWhileKeepingUp() throws Exception {
+    RecordingSink sink = new RecordingSink(false);
+    ConflatingDispatcher dispatcher = new ConflatingDispatcher(sink, new Histogram(), SYMBOL);
+    dispatcher.start();
+    dispatcher.publishText(text("AAPL=1"));
+    assertEquals("AAPL=1", sink.next());
+    dispatcher.publishText(text("AAPL=2"));
+    assertEquals("AAPL=2", sink.next());
+    dispatcher.publishError(new Exception("gone"));
+    assertEquals("error gone", sink.next());
+  }
+
+  public void testNotCombinedWithRing() throws Exception {
+    try {
+      new WebSocketClient(WebSocketClient.toWebSocketUri("ws://localhost/"), new RecordingListener(),
+          new WebSocketOptions().setConflation(SYMBOL).setDispatchCapacity(16),
+          BufferPool.getDefault());
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
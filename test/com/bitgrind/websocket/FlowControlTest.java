@@ -0,0 +1,62 @@
+package com.bitgrind.websocket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class FlowControlTest extends TestCase {
+  private final AtomicInteger wakeups = new AtomicInteger();
+
+  private FlowControl newFlowControl(long demand, long low, long high) {
+    FlowControl flow = new FlowControl(demand, low, high);
+    flow.setWakeup(new Runnable() {
+      @Override
+      public void run() {
+        wakeups.incrementAndGet();
+      }
+    });
+    return flow;
+  }
+
+  public void testDemand() {
+    FlowControl flow = newFlowControl(2, 0, 0);
+    flow.consumed();
+    assertFalse(flow.suspended());
+    flow.consumed();
+    assertTrue(flow.suspended());
+    flow.request(1);
+    assertEquals(1, wakeups.get());
+    assertFalse(flow.suspended());
+    flow.request(Long.MAX_VALUE);
+    for (int i = 0; i < 10; i++) {
+      flow.consumed();
+    }
+    assertFalse(flow.suspended());
+  }
+
+  public void testWatermarks() {
+    FlowControl flow = newFlowControl(FlowControl.UNBOUNDED, 100, 1000);
+    flow.buffered(600);
+    assertFalse(flow.suspended());
+    flow.buffered(600);
+    assertTrue(flow.suspended());
+    flow.released(600);
+    assertTrue(flow.suspended());
+    flow.released(550);
+    assertFalse(flow.suspended());
+    assertEquals(1, wakeups.get());
+    assertEquals(50, flow.getBufferedBytes());
+  }
+
+  public void testPauseAndDisable() {
+    FlowControl flow = newFlowControl(FlowControl.UNBOUNDED, 0, 0);
+    flow.pause();
+    assertTrue(flow.suspended());
+    flow.resume();
+    assertFalse(flow.suspended());
+    flow.pause();
+    flow.disable();
+    assertFalse(flow.suspended());
+    assertEquals(2, wakeups.get());
+  }
+}
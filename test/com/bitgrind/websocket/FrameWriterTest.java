@@ -0,0 +1,107 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+public class FrameWriterTest extends TestCase {
+
+  /**
+   * A channel which records what is written to it, and how many write calls
+   * were made, accepting at most {@code writeLimit} bytes per call.
+   */
+  static class RecordingChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int writes;
+    int writeLimit = Integer.MAX_VALUE;
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      writes++;
+      long total = 0;
+      for (int i = offset; i < offset + length && total < writeLimit; i++) {
+        while (srcs[i].hasRemaining() && total < writeLimit) {
+          bytes.write(srcs[i].get());
+          total++;
+        }
+      }
+      return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] { src });
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private final FrameEncoder encoder = new Hybi00FrameEncoder(BufferPool.getDefault());
+
+  public void testBatchesIntoOneWrite() throws IOException {
+    FrameWriter writer = new FrameWriter();
+    RecordingChannel channel = new RecordingChannel();
+    for (int i = 0; i < 10; i++) {
+      writer.enqueue(encoder.encodeText("m" + i));
+    }
+    assertTrue(writer.flush(channel));
+    assertEquals(1, channel.writes);
+    assertEquals(40, channel.bytes.size());
+  }
+
+  public void testLargeBurstIsSplitIntoBatches() throws IOException {
+    FrameWriter writer = new FrameWriter();
+    RecordingChannel channel = new RecordingChannel();
+    for (int i = 0; i < FrameWriter.MAX_BATCH * 2; i++) {
+      writer.enqueue(encoder.encodeBinary(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+    }
+    assertTrue(writer.flush(channel));
+    assertEquals(4, channel.writes);
+    assertEquals(FrameWriter.MAX_BATCH * 2 * 5, channel.bytes.size());
+  }
+
+  public void testPartialWrites() throws IOException {
+    FrameWriter writer = new FrameWriter();
+    RecordingChannel channel = new RecordingChannel();
+    channel.writeLimit = 3;
+    writer.enqueue(encoder.encodeText("hello"));
+    writer.enqueue(encoder.encodeText("world"));
+    assertTrue(writer.flush(channel));
+    byte[] expected = new byte[14];
+    expected[0] = 0x00;
+    System.arraycopy("hello".getBytes(), 0, expected, 1, 5);
+    expected[6] = (byte) 0xff;
+    expected[7] = 0x00;
+    System.arraycopy("world".getBytes(), 0, expected, 8, 5);
+    expected[13] = (byte) 0xff;
+    assertEquals(new String(expected, "ISO-8859-1"), channel.bytes.toString("ISO-8859-1"));
+  }
+
+  public void testStalledChannel() throws IOException {
+    FrameWriter writer = new FrameWriter();
+    RecordingChannel channel = new RecordingChannel();
+    channel.writeLimit = 0;
+    writer.enqueue(encoder.encodeText("hello"));
+    assertFalse(writer.flush(channel));
+    channel.writeLimit = Integer.MAX_VALUE;
+    assertTrue(writer.flush(channel));
+    assertEquals(7, channel.bytes.size());
+  }
+}
@@ -0,0 +1,76 @@
+package com.bitgrind.websocket;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class HashedWheelTimerTest extends TestCase {
+  private HashedWheelTimer timer;
+
+  @Override
+  protected void setUp() throws Exception {
+    // a short wheel, so that the longer timeouts go round it more than once
+    timer = new HashedWheelTimer("test-timer", 10, 8);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    timer.stop();
+  }
+
+  public void testFiresInOrderNoEarlier() throws Exception {
+    final BlockingQueue<Long> fired = new LinkedBlockingQueue<Long>();
+    final long start = System.nanoTime();
+    for (final long delay : new long[] { 250, 30, 120 }) {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+          fired.add(delay);
+        }
+      }, delay);
+    }
+    assertEquals(Long.valueOf(30), fired.poll(5, TimeUnit.SECONDS));
+    assertEquals(Long.valueOf(120), fired.poll(5, TimeUnit.SECONDS));
+    assertEquals(Long.valueOf(250), fired.poll(5, TimeUnit.SECONDS));
+  }
+
+  public void testCancel() throws Exception {
+    final BlockingQueue<String> fired = new LinkedBlockingQueue<String>();
+    HashedWheelTimer.Timeout cancelled = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fired.add("cancelled");
+      }
+    }, 50);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fired.add("kept");
+      }
+    }, 100);
+    cancelled.cancel();
+    assertTrue(cancelled.isCancelled());
+    assertEquals("kept", fired.poll(5, TimeUnit.SECONDS));
+    assertTrue(fired.isEmpty());
+  }
+
+  public void testFailingTaskDoesNotStopTimer() throws Exception {
+    final BlockingQueue<String> fired = new LinkedBlockingQueue<String>();
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("expected");
+      }
+    }, 10);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fired.add("after");
+      }
+    }, 50);
+    assertEquals("after", fired.poll(5, TimeUnit.SECONDS));
+  }
+}
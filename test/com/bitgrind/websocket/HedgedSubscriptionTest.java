@@ -0,0 +1,169 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.HedgedSubscription.IdExtractor;
+
+public class HedgedSubscriptionTest extends TestCase {
+  /** Text messages are their own id. */
+  private static final IdExtractor TEXT = new IdExtractor() {
+    @Override
+    public Object idOf(CharSequence text) {
+      return text.toString();
+    }
+
+    @Override
+    public Object idOf(ByteBuffer binary) {
+      return null;
+    }
+  };
+
+  private Hybi00TestServer mirror1;
+  private Hybi00TestServer mirror2;
+  private SelectorEngine engine;
+  private HedgedSubscription hedged;
+
+  @Override
+  protected void setUp() throws Exception {
+    mirror1 = new Hybi00TestServer("1", "2", "3");
+    mirror2 = new Hybi00TestServer("1", "2", "3");
+    engine = new SelectorEngine(2);
+    hedged = new HedgedSubscription(engine, TEXT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    hedged.close();
+    engine.close();
+    mirror1.close();
+    mirror2.close();
+  }
+
+  public void testDeliversFirstCopyOnly() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    hedged.connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    assertEquals("1", listener.nextMessage());
+    assertEquals("2", listener.nextMessage());
+    assertEquals("3", listener.nextMessage());
+    // echoed by both mirrors
+    hedged.send("4");
+    assertEquals("4", listener.nextMessage());
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+
+    List<EndpointStats> stats = hedged.getStats();
+    assertEquals(2, stats.size());
+    assertEquals(4, stats.get(0).getFirst() + stats.get(1).getFirst());
+    assertEquals(4, stats.get(0).getLate() + stats.get(1).getLate());
+    assertEquals(4, stats.get(0).getLag().getCount() + stats.get(1).getLag().getCount());
+
+    hedged.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testWindowForgetsOldIds() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    hedged.setWindow(1).connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    // with only the last id remembered, interleaved copies may be delivered twice
+    int delivered = 0;
+    while (listener.messages.poll(500, TimeUnit.MILLISECONDS) != null) {
+      delivered++;
+    }
+    assertTrue(delivered >= 3 && delivered <= 6);
+  }
+
+  public void testDropsSlowEndpoint() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    // any lag at all counts as slow
+    hedged.setDropSlowEndpoints(1, 0);
+    hedged.connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    assertEquals("1", listener.nextMessage());
+    assertEquals("2", listener.nextMessage());
+    assertEquals("3", listener.nextMessage());
+    for (int i = 0; i < 100; i++) {
+      List<EndpointStats> stats = hedged.getStats();
+      if (stats.get(0).isDropped() || stats.get(1).isDropped()) {
+        break;
+      }
+      Thread.sleep(10);
+    }
+    List<EndpointStats> stats = hedged.getStats();
+    assertTrue(stats.get(0).isDropped() != stats.get(1).isDropped());
+    // the survivor carries on alone
+    hedged.send("4");
+    assertEquals("4", listener.nextMessage());
+    assertTrue(listener.errors.isEmpty());
+    assertEquals(1, listener.closed.getCount());
+  }
+
+  public void testEndsWhenEveryEndpointHasEnded() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    hedged.connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    assertTrue(listener.awaitOpen());
+    assertEquals("1", listener.nextMessage());
+    mirror1.dropConnections();
+    assertNull(listener.errors.poll(200, TimeUnit.MILLISECONDS));
+    mirror2.dropConnections();
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+  }
+
+  public void testSendFromOnOpen() throws Exception {
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void onOpen() {
+        super.onOpen();
+        try {
+          hedged.send("subscribe");
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    hedged.connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    // held for whichever endpoint was not yet known, and echoed by both
+    for (int i = 0; i < 100 && late() < 4; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, late());
+    assertTrue(listener.messages.contains("subscribe"));
+  }
+
+  public void testSlowListenerDoesNotHoldLateCopies() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void onMessage(String message) {
+        super.onMessage(message);
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    hedged.connect(Arrays.asList(mirror1.getUrl(), mirror2.getUrl()), listener, new WebSocketOptions());
+    assertEquals("1", listener.nextMessage());
+    // the other copy of the first message is matched while the listener is stuck on it
+    for (int i = 0; i < 100 && late() < 1; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(late() >= 1);
+    release.countDown();
+    assertEquals("2", listener.nextMessage());
+    assertEquals("3", listener.nextMessage());
+  }
+
+  private long late() {
+    long late = 0;
+    for (EndpointStats stats : hedged.getStats()) {
+      late += stats.getLate();
+    }
+    return late;
+  }
+}
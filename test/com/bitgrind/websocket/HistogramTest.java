@@ -0,0 +1,67 @@
+package com.bitgrind.websocket;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+  public void testSmallValuesAreExact() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(10, snapshot.getCount());
+    assertEquals(5.5, snapshot.getMean(), 0.001);
+    assertEquals(5, snapshot.getP50());
+    assertEquals(9, snapshot.getP90());
+    assertEquals(10, snapshot.getMax());
+  }
+
+  public void testPercentilesWithinBucketWidth() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i * 1000L);
+    }
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertWithin(50000000, snapshot.getP50());
+    assertWithin(99000000, snapshot.getP99());
+    assertWithin(99900000, snapshot.getP999());
+    assertEquals(100000000, snapshot.getValueAtPercentile(100));
+  }
+
+  public void testBucketsCoverEveryValue() {
+    long previous = -1;
+    for (int bucket = 0; bucket < Histogram.BUCKETS; bucket++) {
+      long highest = Histogram.highestValue(bucket);
+      assertTrue(highest > previous);
+      assertEquals(bucket, Histogram.bucket(previous + 1));
+      assertEquals(bucket, Histogram.bucket(highest));
+      previous = highest;
+    }
+    assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+  }
+
+  public void testAdd() {
+    Histogram a = new Histogram();
+    Histogram b = new Histogram();
+    a.record(10);
+    b.record(20);
+    b.record(30);
+    a.add(b);
+    HistogramSnapshot snapshot = a.snapshot();
+    assertEquals(3, snapshot.getCount());
+    assertEquals(20.0, snapshot.getMean(), 0.001);
+    assertEquals(30, snapshot.getMax());
+  }
+
+  public void testEmpty() {
+    HistogramSnapshot snapshot = new Histogram().snapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0.0, snapshot.getMean());
+    assertEquals(0, snapshot.getP99());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(actual + " is not within 1/16 of " + expected, Math.abs(actual - expected) <= expected / 16);
+  }
+}
@@ -73,7 +73,71 @@ public class HttpResponseParserTest extends TestCase {
       HttpResponseParser parser = new HttpResponseParser();
       @SuppressWarnings("unused")
       HttpResponse response =
-          parser.parse(new PushbackInputStream(Channels.newInputStream(new StringByteChannel(GOOGLE_RESPONSE, i))));
+          parser.parse(new PushbackInputStream(Channels.newInputStream(new StringByteChannel(GOOGLE_RESPONSE, i)),
+              HttpResponseParser.MAX_LENGTH));
+      parser.release();
+    }
+  }
+
+  public void testHeadersAreCaseInsensitive() throws IOException {
+    HttpResponseParser parser = new HttpResponseParser();
+    HttpResponse response =
+        parser.parse(new PushbackInputStream(Channels.newInputStream(new StringByteChannel(GOOGLE_RESPONSE, 3)),
+            HttpResponseParser.MAX_LENGTH));
+    assertEquals(200, response.getStatusCode());
+    assertEquals("gws", response.getHeaderValue("server"));
+    assertEquals("-1", response.getHeaderValue("EXPIRES"));
+    assertTrue(response.hasHeader("x-xss-protection"));
+    assertFalse(response.hasHeader("Upgrade"));
+    parser.release();
+  }
+
+  public void testBodyIsPushedBack() throws IOException {
+    PushbackInputStream input =
+        new PushbackInputStream(Channels.newInputStream(new StringByteChannel(GOOGLE_RESPONSE, 1)),
+            HttpResponseParser.MAX_LENGTH);
+    HttpResponseParser parser = new HttpResponseParser();
+    parser.parse(input);
+    parser.release();
+    assertEquals('=', input.read());
+  }
+
+  public void testIncrementalBuffer() throws IOException {
+    String upgrade = "HTTP/1.1 101 Switching Protocols\n" +
+        "upgrade: WebSocket\n" +
+        "CONNECTION: Upgrade\n" +
+        "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\n" +
+        "\n" +
+        "body";
+    ByteBuffer bytes = ByteBuffer.wrap(upgrade.getBytes("UTF-8"));
+    HttpResponseParser parser = new HttpResponseParser();
+    HttpResponse response = null;
+    while (response == null) {
+      ByteBuffer chunk = bytes.duplicate();
+      chunk.limit(chunk.position() + 1);
+      response = parser.parse(chunk);
+      bytes.position(chunk.position());
+    }
+    assertEquals(101, response.getStatusCode());
+    assertTrue(response.headerEqualsIgnoreCase("Upgrade", "websocket"));
+    assertEquals("Upgrade", response.getHeaderValue("Connection"));
+    assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", response.getHeaderValue("sec-websocket-accept"));
+    assertEquals(4, bytes.remaining());
+    parser.release();
+  }
+
+  public void testTooLarge() throws IOException {
+    StringBuilder s = new StringBuilder("HTTP/1.1 200 OK\r\n");
+    while (s.length() <= HttpResponseParser.MAX_LENGTH) {
+      s.append("X-Padding: 0123456789\r\n");
+    }
+    HttpResponseParser parser = new HttpResponseParser();
+    try {
+      parser.parse(ByteBuffer.wrap(s.toString().getBytes("UTF-8")));
+      fail("Expected " + IOException.class);
+    } catch (IOException expected) {
+    } finally {
+      parser.release();
     }
   }
 }
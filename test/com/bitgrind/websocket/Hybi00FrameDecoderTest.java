@@ -0,0 +1,175 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.util.BufferPool;
+
+public class Hybi00FrameDecoderTest extends TestCase {
+
+  private static byte[] stream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0x00);
+    out.write("hello".getBytes());
+    out.write(0xff);
+    out.write(0x00);
+    out.write(0xff);
+    out.write(0x80);
+    out.write(0x03);
+    out.write("abc".getBytes());
+    out.write(0x00);
+    for (int i = 0; i < 300; i++) {
+      out.write('x');
+    }
+    out.write(0xff);
+    out.write(0xff);
+    out.write(0x00);
+    return out.toByteArray();
+  }
+
+  private static String longMessage() {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      s.append('x');
+    }
+    return s.toString();
+  }
+
+  /**
+   * Feed the same stream through the decoder in chunks of every size from
+   * one byte up to the whole stream, so frame boundaries fall everywhere.
+   */
+  public void testChunked() throws IOException {
+    byte[] bytes = stream();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      RecordingHandler handler = new RecordingHandler();
+      Hybi00FrameDecoder decoder = new Hybi00FrameDecoder(handler, BufferPool.getDefault());
+      for (int offset = 0; offset < bytes.length; offset += chunk) {
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, Math.min(chunk, bytes.length - offset));
+        decoder.decode(in);
+        assertFalse(in.hasRemaining());
+      }
+      assertEquals("chunk size " + chunk, 5, handler.frames.size());
+      assertEquals("text:hello", handler.frames.get(0));
+      assertEquals("text:", handler.frames.get(1));
+      assertEquals("binary:abc", handler.frames.get(2));
+      assertEquals("text:" + longMessage(), handler.frames.get(3));
+      assertEquals("close", handler.frames.get(4));
+    }
+  }
+
+  private static List<String> decodeChunked(byte[] bytes, int chunk, int maxMessageSize, OversizePolicy policy)
+      throws IOException {
+    RecordingHandler handler = new RecordingHandler();
+    Hybi00FrameDecoder decoder = new Hybi00FrameDecoder(handler, BufferPool.getDefault(), maxMessageSize, policy);
+    for (int offset = 0; offset < bytes.length; offset += chunk) {
+      decoder.decode(ByteBuffer.wrap(bytes, offset, Math.min(chunk, bytes.length - offset)));
+    }
+    return handler.frames;
+  }
+
+  public void testOversizeReject() throws IOException {
+    byte[] bytes = stream();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      try {
+        decodeChunked(bytes, chunk, 100, OversizePolicy.REJECT);
+        fail();
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage().contains("100"));
+      }
+    }
+  }
+
+  public void testOversizeTruncate() throws IOException {
+    byte[] bytes = stream();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      List<String> frames = decodeChunked(bytes, chunk, 4, OversizePolicy.TRUNCATE);
+      assertEquals("chunk size " + chunk, 5, frames.size());
+      assertEquals("text:hell", frames.get(0));
+      assertEquals("text:", frames.get(1));
+      assertEquals("binary:abc", frames.get(2));
+      assertEquals("text:xxxx", frames.get(3));
+      assertEquals("close", frames.get(4));
+    }
+
+    // frames longer than the limit are skipped past correctly
+    byte[] binary = { (byte) 0x80, 0x05, 1, 2, 3, 4, 5, 0x00, 'o', 'k', (byte) 0xff };
+    List<String> frames = decodeChunked(binary, 1, 2, OversizePolicy.TRUNCATE);
+    assertEquals(2, frames.size());
+    assertEquals("binary:\u0001\u0002", frames.get(0));
+    assertEquals("text:ok", frames.get(1));
+  }
+
+  public void testTruncateAtCharacterBoundary() throws IOException {
+    // "a\u20ac" is 61 e2 82 ac; cutting at 3 bytes would split the euro sign
+    byte[] bytes = { 0x00, 0x61, (byte) 0xe2, (byte) 0x82, (byte) 0xac, (byte) 0xff };
+    assertEquals("text:a", decodeChunked(bytes, bytes.length, 3, OversizePolicy.TRUNCATE).get(0));
+    assertEquals("text:" + new String(bytes, 1, 4),
+        decodeChunked(bytes, bytes.length, 4, OversizePolicy.TRUNCATE).get(0));
+  }
+
+  public void testOversizeStream() throws IOException {
+    byte[] bytes = stream();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      List<String> frames = decodeChunked(bytes, chunk, 4, OversizePolicy.STREAM);
+      assertEquals("chunk size " + chunk, 9, frames.size());
+      assertEquals("start:text", frames.get(0));
+      assertEquals("chunk:hello", frames.get(1));
+      assertEquals("end", frames.get(2));
+      assertEquals("text:", frames.get(3));
+      assertEquals("binary:abc", frames.get(4));
+      assertEquals("start:text", frames.get(5));
+      assertEquals("chunk:" + longMessage(), frames.get(6));
+      assertEquals("end", frames.get(7));
+      assertEquals("close", frames.get(8));
+    }
+
+    byte[] binary = { (byte) 0x80, 0x05, 1, 2, 3, 4, 5 };
+    for (int chunk = 1; chunk <= binary.length; chunk++) {
+      List<String> frames = decodeChunked(binary, chunk, 2, OversizePolicy.STREAM);
+      assertEquals(3, frames.size());
+      assertEquals("start:binary", frames.get(0));
+      assertEquals("chunk:\u0001\u0002\u0003\u0004\u0005", frames.get(1));
+      assertEquals("end", frames.get(2));
+    }
+  }
+
+  public void testDirectBuffer() throws IOException {
+    byte[] bytes = stream();
+    ByteBuffer in = ByteBuffer.allocateDirect(bytes.length);
+    in.put(bytes).flip();
+    RecordingHandler handler = new RecordingHandler();
+    new Hybi00FrameDecoder(handler, BufferPool.getDefault()).decode(in);
+    assertEquals(5, handler.frames.size());
+    assertEquals("text:" + longMessage(), handler.frames.get(3));
+  }
+
+  public void testMultiByteLength() throws IOException {
+    ByteBuffer in = ByteBuffer.allocate(3 + 200);
+    in.put((byte) 0x80).put((byte) 0x81).put((byte) 0x48);
+    for (int i = 0; i < 200; i++) {
+      in.put((byte) 'y');
+    }
+    in.flip();
+    RecordingHandler handler = new RecordingHandler();
+    new Hybi00FrameDecoder(handler, BufferPool.getDefault()).decode(in);
+    assertEquals(1, handler.frames.size());
+    assertEquals(200 + "binary:".length(), handler.frames.get(0).length());
+  }
+
+  public void testForgedLengthReservesLittle() throws IOException {
+    BufferPool pool = new BufferPool(false, 1 << 22, 4);
+    Hybi00FrameDecoder decoder = new Hybi00FrameDecoder(new RecordingHandler(), pool);
+    // declares a 1 GB frame, then sends a few bytes of it
+    ByteBuffer in = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x84, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+        0x00, 1, 2, 3 });
+    decoder.decode(in);
+    decoder.release();
+    assertEquals(65536, pool.getStats().getRetainedBytes());
+  }
+}
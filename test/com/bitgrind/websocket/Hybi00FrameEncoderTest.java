@@ -0,0 +1,64 @@
+package com.bitgrind.websocket;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+public class Hybi00FrameEncoderTest extends TestCase {
+  private final FrameEncoder encoder = new Hybi00FrameEncoder(BufferPool.getDefault());
+
+  private static byte[] toArray(OutboundFrame frame) {
+    int length = 0;
+    for (ByteBuffer buffer : frame.buffers) {
+      length += buffer.remaining();
+    }
+    ByteBuffer all = ByteBuffer.allocate(length);
+    for (ByteBuffer buffer : frame.buffers) {
+      all.put(buffer.duplicate());
+    }
+    return all.array();
+  }
+
+  public void testUtf8() throws UnsupportedEncodingException {
+    String[] samples = { "", "ascii", "caf\u00e9", "\u20ac100", "\ud83d\ude00 smile", "bad \ud83d surrogate", "\udc00" };
+    for (String sample : samples) {
+      byte[] expected = sample.getBytes("UTF-8");
+      assertEquals(sample, expected.length, FrameEncoder.utf8Length(sample));
+      byte[] actual = new byte[expected.length];
+      assertEquals(expected.length, FrameEncoder.encodeUtf8(sample, actual, 0));
+      assertTrue(sample, Arrays.equals(expected, actual));
+    }
+  }
+
+  public void testTextFrame() {
+    byte[] frame = toArray(encoder.encodeText("hi"));
+    assertTrue(Arrays.equals(new byte[] { 0x00, 'h', 'i', (byte) 0xff }, frame));
+  }
+
+  public void testBinaryFrameLength() {
+    assertTrue(Arrays.equals(new byte[] { (byte) 0x80, 0x00 }, toArray(encoder.encodeBinary(ByteBuffer.allocate(0)))));
+    byte[] frame = toArray(encoder.encodeBinary(ByteBuffer.allocate(200)));
+    assertEquals(203, frame.length);
+    assertEquals((byte) 0x81, frame[1]);
+    assertEquals((byte) 0x48, frame[2]);
+  }
+
+  public void testPreparedFrame() {
+    PreparedFrame text = PreparedFrame.text("caf\u00e9");
+    OutboundFrame first = encoder.encode(text);
+    OutboundFrame second = encoder.encode(text);
+    assertTrue(Arrays.equals(toArray(encoder.encodeText("caf\u00e9")), toArray(first)));
+    // each send writes its own view of the one shared frame
+    first.buffers[0].position(first.buffers[0].limit());
+    assertTrue(Arrays.equals(toArray(encoder.encodeText("caf\u00e9")), toArray(second)));
+    assertTrue(second.buffers[0].isDirect());
+
+    byte[] payload = new byte[200];
+    PreparedFrame binary = PreparedFrame.binary(payload);
+    assertTrue(Arrays.equals(toArray(encoder.encodeBinary(ByteBuffer.wrap(payload))), toArray(encoder.encode(binary))));
+  }
+}
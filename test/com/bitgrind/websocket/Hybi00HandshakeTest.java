@@ -0,0 +1,80 @@
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class Hybi00HandshakeTest extends TestCase {
+  private static final String RESPONSE = "HTTP/1.1 101 WebSocket Protocol Handshake\r\n" +
+      "Upgrade: WebSocket\r\n" +
+      "Connection: Upgrade\r\n" +
+      "\r\n";
+
+  private Hybi00Handshake handshake;
+  private String request;
+
+  @Override
+  protected void setUp() throws Exception {
+    handshake = new Hybi00Handshake(new URI("ws://example.com:8080/demo"));
+    ByteBuffer bytes = handshake.getRequest();
+    request = new String(bytes.array(), 0, bytes.remaining() - 8, "ISO-8859-1");
+  }
+
+  public void testRequest() {
+    assertTrue(request.startsWith("GET /demo HTTP/1.1\r\n"));
+    assertTrue(request.contains("\r\nHost: example.com\r\n"));
+    assertTrue(request.contains("\r\nOrigin: example.com:8080\r\n"));
+    assertTrue(request.endsWith("\r\n\r\n"));
+  }
+
+  public void testKeys() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      setUp();
+      checkKey(header("Sec-WebSocket-Key1"));
+      checkKey(header("Sec-WebSocket-Key2"));
+    }
+  }
+
+  public void testVerifyRejectsWrongChallenge() throws IOException {
+    try {
+      handshake.verify(response(RESPONSE), new byte[16]);
+      fail("Expected " + IOException.class);
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testVerifyRejectsStatus() throws IOException {
+    try {
+      handshake.verify(response("HTTP/1.1 403 Forbidden\r\n\r\n"), new byte[16]);
+      fail("Expected " + IOException.class);
+    } catch (IOException expected) {
+    }
+  }
+
+  private String header(String name) {
+    int start = request.indexOf(name + ": ") + name.length() + 2;
+    return request.substring(start, request.indexOf("\r\n", start));
+  }
+
+  private static void checkKey(String key) {
+    assertFalse(key.startsWith(" "));
+    assertFalse(key.endsWith(" "));
+    long digits = 0;
+    int spaces = 0;
+    for (char c : key.toCharArray()) {
+      if (c >= '0' && c <= '9')
+        digits = digits * 10 + (c - '0');
+      else if (c == ' ')
+        spaces++;
+    }
+    assertTrue(spaces > 0);
+    assertEquals(0, digits % spaces);
+    assertTrue(digits / spaces <= Integer.MAX_VALUE);
+  }
+
+  private static HttpResponse response(String s) throws IOException {
+    return new HttpResponseParser().parse(ByteBuffer.wrap(s.getBytes("UTF-8")));
+  }
+}
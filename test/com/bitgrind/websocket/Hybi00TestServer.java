@@ -0,0 +1,222 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A minimal in-process hybi-00 server for tests. Answers the handshake, sends
+ * each of its greeting messages as a text frame, then echoes every frame it
+ * receives until the client closes. Given an {@link SSLServerSocket} it
+ * serves wss, and records the TLS session of each connection.
+ */
+class Hybi00TestServer implements Closeable, Runnable {
+  private final ServerSocket serverSocket;
+  private final List<String> greetings;
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+  final BlockingQueue<SSLSession> sessions = new LinkedBlockingQueue<SSLSession>();
+  /** The number of connections accepted. */
+  final AtomicInteger accepted = new AtomicInteger();
+
+  Hybi00TestServer(String... greetings) throws IOException {
+    this(new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1")), greetings);
+  }
+
+  Hybi00TestServer(ServerSocket serverSocket, String... greetings) {
+    this.greetings = Arrays.asList(greetings);
+    this.serverSocket = serverSocket;
+    Thread thread = new Thread(this, "hybi00-test-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  String getUrl() {
+    String scheme = serverSocket instanceof SSLServerSocket ? "wss" : "ws";
+    return scheme + "://127.0.0.1:" + serverSocket.getLocalPort() + "/test";
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        sockets.add(socket);
+        accepted.incrementAndGet();
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              serve(socket);
+            } catch (IOException e) {
+              // connection dropped
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException e) {}
+            }
+          }
+        });
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  /** Closes every accepted connection but keeps accepting new ones. */
+  void dropConnections() throws IOException {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      sockets.clear();
+    }
+  }
+
+  /** Closes the listening socket and every accepted connection. */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    if (socket instanceof SSLSocket) {
+      sessions.add(((SSLSocket) socket).getSession());
+    }
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+
+    List<String> headers = new ArrayList<String>();
+    String line;
+    while (!(line = readLine(in)).equals("")) {
+      headers.add(line);
+    }
+    byte[] key3 = new byte[8];
+    in.readFully(key3);
+
+    ByteBuffer challenge = ByteBuffer.allocate(16);
+    challenge.putInt((int) keyNumber(header(headers, "Sec-WebSocket-Key1")));
+    challenge.putInt((int) keyNumber(header(headers, "Sec-WebSocket-Key2")));
+    challenge.put(key3);
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    response.write(("HTTP/1.1 101 WebSocket Protocol Handshake\r\n" +
+        "Upgrade: WebSocket\r\n" +
+        "Connection: Upgrade\r\n" +
+        "Sec-WebSocket-Origin: null\r\n" +
+        "Sec-WebSocket-Location: " + getUrl() + "\r\n" +
+        "\r\n").getBytes("UTF-8"));
+    response.write(md5(challenge.array()));
+    for (String greeting : greetings) {
+      response.write(0x00);
+      response.write(greeting.getBytes("UTF-8"));
+      response.write(0xff);
+    }
+    out.write(response.toByteArray());
+    out.flush();
+
+    echo(in, out);
+  }
+
+  private void echo(DataInputStream in, OutputStream out) throws IOException {
+    while (true) {
+      int frameType = in.read();
+      if (frameType == -1) {
+        return;
+      }
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      frame.write(frameType);
+      if ((frameType & 0x80) == 0x80) {
+        long length = 0;
+        int b;
+        do {
+          b = in.readUnsignedByte();
+          frame.write(b);
+          length = length * 128 + (b & 0x7f);
+        } while ((b & 0x80) == 0x80);
+        if (frameType == 0xff && length == 0) {
+          out.write(frame.toByteArray());
+          out.flush();
+          return;
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        frame.write(payload);
+      } else {
+        int b;
+        while ((b = in.readUnsignedByte()) != 0xff) {
+          frame.write(b);
+        }
+        frame.write(b);
+      }
+      out.write(frame.toByteArray());
+      out.flush();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1)
+        throw new IOException("Unexpected end of stream");
+      if (b != '\r')
+        line.append((char) b);
+    }
+    return line.toString();
+  }
+
+  private static String header(List<String> headers, String name) throws IOException {
+    for (String header : headers) {
+      if (header.startsWith(name + ": "))
+        return header.substring(name.length() + 2);
+    }
+    throw new IOException("Missing header " + name);
+  }
+
+  private static long keyNumber(String key) {
+    long digits = 0;
+    int spaces = 0;
+    for (char c : key.toCharArray()) {
+      if (c >= '0' && c <= '9')
+        digits = digits * 10 + (c - '0');
+      else if (c == ' ')
+        spaces++;
+    }
+    return digits / spaces;
+  }
+
+  private static byte[] md5(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import junit.framework.TestCase;
+
+public class MessageBatchTest extends TestCase {
+
+  public void testHoldsMessagesInOrder() {
+    MessageBatch batch = new MessageBatch();
+    batch.addText(CharBuffer.wrap("one"));
+    batch.addBinary(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+    batch.addText(CharBuffer.wrap("three"));
+    assertEquals(3, batch.size());
+    assertEquals("one", batch.getText(0).toString());
+    assertTrue(batch.isBinary(1));
+    ByteBuffer binary = batch.getBinary(1);
+    assertTrue(binary.isReadOnly());
+    assertEquals(3, binary.remaining());
+    assertEquals(3, binary.get(2 + binary.position()));
+    assertEquals("three", batch.getText(2).toString());
+  }
+
+  public void testGrowsAndKeepsEarlierMessages() {
+    MessageBatch batch = new MessageBatch();
+    byte[] large = new byte[5000];
+    large[4999] = 42;
+    for (int i = 0; i < 100; i++) {
+      batch.addText(CharBuffer.wrap("message " + i));
+      batch.addBinary(ByteBuffer.wrap(large));
+    }
+    assertEquals(200, batch.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("message " + i, batch.getText(2 * i).toString());
+      ByteBuffer binary = batch.getBinary(2 * i + 1);
+      assertEquals(5000, binary.remaining());
+      assertEquals(42, binary.get(binary.limit() - 1));
+    }
+    batch.clear();
+    assertEquals(0, batch.size());
+    batch.addText(CharBuffer.wrap("again"));
+    assertEquals("again", batch.getText(0).toString());
+  }
+
+  public void testWrongTypeOrIndex() {
+    MessageBatch batch = new MessageBatch();
+    batch.addText(CharBuffer.wrap("text"));
+    try {
+      batch.getBinary(0);
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      batch.getText(1);
+      fail("Expected " + IndexOutOfBoundsException.class);
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+/** Records every message a frame decoder produces, as a short description. */
+class RecordingHandler implements FrameDecoder.Handler {
+  final List<String> frames = new ArrayList<String>();
+
+  @Override
+  public void onTextMessage(ByteBuffer payload) {
+    frames.add("text:" + toString(payload));
+  }
+
+  @Override
+  public void onBinaryMessage(ByteBuffer payload) {
+    Assert.assertTrue(payload.isReadOnly());
+    frames.add("binary:" + toString(payload));
+  }
+
+  @Override
+  public void onMessageStart(boolean binary) {
+    frames.add(binary ? "start:binary" : "start:text");
+  }
+
+  @Override
+  public void onMessageChunk(ByteBuffer chunk) {
+    Assert.assertTrue(chunk.isReadOnly());
+    Assert.assertTrue(chunk.hasRemaining());
+    // merge consecutive chunks, since where they split depends on reads
+    String last = frames.get(frames.size() - 1);
+    if (last.startsWith("chunk:")) {
+      frames.set(frames.size() - 1, last + toString(chunk));
+    } else {
+      frames.add("chunk:" + toString(chunk));
+    }
+  }
+
+  @Override
+  public void onMessageEnd() {
+    frames.add("end");
+  }
+
+  @Override
+  public void onPing(ByteBuffer payload) {
+    frames.add("ping:" + toString(payload));
+  }
+
+  @Override
+  public void onPong(ByteBuffer payload) {
+    frames.add("pong:" + toString(payload));
+  }
+
+  @Override
+  public void onCloseFrame() {
+    frames.add("close");
+  }
+
+  private static String toString(ByteBuffer payload) {
+    byte[] bytes = new byte[payload.remaining()];
+    payload.get(bytes);
+    return new String(bytes);
+  }
+}
@@ -0,0 +1,56 @@
+package com.bitgrind.websocket;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+
+/**
+ * A listener for tests which records each event so it can be waited for.
+ */
+class RecordingListener implements WebSocketListener {
+  final CountDownLatch opened = new CountDownLatch(1);
+  final CountDownLatch closed = new CountDownLatch(1);
+  final BlockingQueue<Object> messages = new LinkedBlockingQueue<Object>();
+  final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+
+  @Override
+  public void onOpen() {
+    opened.countDown();
+  }
+
+  @Override
+  public void onMessage(String message) {
+    messages.add(message);
+  }
+
+  @Override
+  public void onMessage(byte[] message) {
+    messages.add(Arrays.toString(message));
+  }
+
+  @Override
+  public void onError(Throwable error) {
+    errors.add(error);
+  }
+
+  @Override
+  public void onClose() {
+    closed.countDown();
+  }
+
+  boolean awaitOpen() throws InterruptedException {
+    return opened.await(5, TimeUnit.SECONDS);
+  }
+
+  boolean awaitClose() throws InterruptedException {
+    return closed.await(5, TimeUnit.SECONDS);
+  }
+
+  Object nextMessage() throws InterruptedException {
+    return messages.poll(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,147 @@
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketOptions.Protocol;
+
+public class Rfc6455ClientTest extends TestCase {
+  private final WebSocketOptions options = new WebSocketOptions().setProtocol(Protocol.RFC_6455);
+  private Rfc6455TestServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Rfc6455TestServer("hello", "w\u00f6rld");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  private void exercise(WebSocketClient client, RecordingListener listener) throws Exception {
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("w\u00f6rld", listener.nextMessage());
+    assertEquals("ping", server.pongs.poll(5, TimeUnit.SECONDS));
+
+    byte[] large = new byte[70000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    client.send("text \u20ac");
+    client.send(new byte[] { 1, 2, 3 });
+    client.send(large);
+    assertEquals("text \u20ac", listener.nextMessage());
+    assertEquals("[1, 2, 3]", listener.nextMessage());
+    assertEquals(Arrays.toString(large), listener.nextMessage());
+
+    client.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testBlocking() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    exercise(new WebSocketClient(server.getUrl(), listener, options), listener);
+  }
+
+  public void testSelectorEngine() throws Exception {
+    SelectorEngine engine = new SelectorEngine(1);
+    try {
+      RecordingListener listener = new RecordingListener();
+      exercise(engine.connect(server.getUrl(), listener, options), listener);
+    } finally {
+      engine.close();
+    }
+  }
+
+  public void testPerMessageDeflate() throws Exception {
+    for (boolean contextTakeover : new boolean[] { true, false }) {
+      options.setPerMessageDeflate(true).setContextTakeover(contextTakeover);
+      RecordingListener listener = new RecordingListener();
+      WebSocketClient client = new WebSocketClient(server.getUrl(), listener, options);
+      exercise(client, listener);
+      assertEquals(3, server.compressedMessages.getAndSet(0));
+
+      CompressionStats stats = client.getCompressionStats();
+      assertEquals(70000 + 3 + "text \u20ac".getBytes("UTF-8").length, stats.getUncompressedBytesSent());
+      assertEquals(stats.getUncompressedBytesSent() + "hello".length() + "w\u00f6rld".getBytes("UTF-8").length,
+          stats.getUncompressedBytesReceived());
+      // the large message is a short repeating pattern
+      assertTrue(stats.toString(), stats.getSendRatio() < 0.1);
+      assertTrue(stats.toString(), stats.getReceiveRatio() < 0.1);
+      assertTrue(stats.getDeflateNanos() > 0);
+      assertTrue(stats.getInflateNanos() > 0);
+    }
+  }
+
+  public void testNotCompressedUnlessOffered() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener, options);
+    exercise(client, listener);
+    assertEquals(0, server.compressedMessages.get());
+    assertNull(client.getCompressionStats());
+  }
+
+  public void testHandshakeRejected() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          // an upgrade without Sec-WebSocket-Accept
+          socket.getOutputStream().write(
+              "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n".getBytes());
+        } catch (IOException e) {
+        }
+      }
+    };
+    thread.start();
+    try {
+      new WebSocketClient("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/", new RecordingListener(), options);
+      fail();
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().contains("Sec-WebSocket-Accept"));
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  public void testKeepAlivePing() throws Exception {
+    options.setWriteIdleTimeout(100);
+    SelectorEngine engine = new SelectorEngine(1);
+    try {
+      RecordingListener blocking = new RecordingListener();
+      WebSocketClient client = new WebSocketClient(server.getUrl(), blocking, options);
+      RecordingListener multiplexed = new RecordingListener();
+      WebSocketClient other = engine.connect(server.getUrl(), multiplexed, options);
+      // the server echoes the keep-alive pings, and the clients answer them
+      // with empty pongs, among those to the server's own "ping"
+      int keepAlives = 0;
+      for (int i = 0; i < 6; i++) {
+        if ("".equals(server.pongs.poll(5, TimeUnit.SECONDS))) {
+          keepAlives++;
+        }
+      }
+      assertTrue(keepAlives >= 4);
+      assertTrue(client.getMetrics().getPingsSent() > 0);
+      assertTrue(other.getMetrics().getPingsSent() > 0);
+      client.close();
+      other.close();
+      assertTrue(blocking.awaitClose());
+      assertTrue(multiplexed.awaitClose());
+      assertTrue(blocking.errors.isEmpty());
+      assertTrue(multiplexed.errors.isEmpty());
+    } finally {
+      engine.close();
+    }
+  }
+}
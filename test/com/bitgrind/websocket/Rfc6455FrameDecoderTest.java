@@ -0,0 +1,247 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+import com.bitgrind.websocket.util.BufferPool;
+
+public class Rfc6455FrameDecoderTest extends TestCase {
+
+  private static void frame(ByteArrayOutputStream out, int b0, byte[] payload) {
+    out.write(b0);
+    if (payload.length < 126) {
+      out.write(payload.length);
+    } else if (payload.length < 65536) {
+      out.write(126);
+      out.write(payload.length >> 8);
+      out.write(payload.length);
+    } else {
+      out.write(127);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) ((long) payload.length >> shift));
+      }
+    }
+    out.write(payload, 0, payload.length);
+  }
+
+  private static byte[] repeat(char c, int count) {
+    byte[] bytes = new byte[count];
+    for (int i = 0; i < count; i++) {
+      bytes[i] = (byte) c;
+    }
+    return bytes;
+  }
+
+  private static byte[] stream() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frame(out, 0x81, "hello".getBytes());
+    // fragmented, with control frames in between
+    frame(out, 0x01, "he".getBytes());
+    frame(out, 0x89, "p1".getBytes());
+    frame(out, 0x00, new byte[0]);
+    frame(out, 0x8a, new byte[0]);
+    frame(out, 0x80, "llo".getBytes());
+    frame(out, 0x82, "abc".getBytes());
+    frame(out, 0x82, repeat('y', 300));
+    frame(out, 0x81, new byte[0]);
+    frame(out, 0x88, new byte[] { 0x03, (byte) 0xe8 });
+    return out.toByteArray();
+  }
+
+  private static List<String> decodeChunked(byte[] bytes, int chunk, int maxMessageSize, OversizePolicy policy)
+      throws IOException {
+    return decodeChunked(bytes, chunk, maxMessageSize, policy, null);
+  }
+
+  private static List<String> decodeChunked(byte[] bytes, int chunk, int maxMessageSize, OversizePolicy policy,
+      PerMessageDeflate deflate) throws IOException {
+    RecordingHandler handler = new RecordingHandler();
+    Rfc6455FrameDecoder decoder = new Rfc6455FrameDecoder(handler, BufferPool.getDefault(), maxMessageSize, policy);
+    if (deflate != null) {
+      decoder.setDeflate(deflate);
+    }
+    for (int offset = 0; offset < bytes.length; offset += chunk) {
+      ByteBuffer in = ByteBuffer.wrap(bytes, offset, Math.min(chunk, bytes.length - offset));
+      decoder.decode(in);
+      assertFalse(in.hasRemaining());
+    }
+    return handler.frames;
+  }
+
+  public void testChunked() throws IOException {
+    byte[] bytes = stream();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      List<String> frames = decodeChunked(bytes, chunk, Integer.MAX_VALUE, OversizePolicy.REJECT);
+      assertEquals("chunk size " + chunk, 8, frames.size());
+      assertEquals("text:hello", frames.get(0));
+      assertEquals("ping:p1", frames.get(1));
+      assertEquals("pong:", frames.get(2));
+      assertEquals("text:hello", frames.get(3));
+      assertEquals("binary:abc", frames.get(4));
+      assertEquals("binary:" + new String(repeat('y', 300)), frames.get(5));
+      assertEquals("text:", frames.get(6));
+      assertEquals("close", frames.get(7));
+    }
+  }
+
+  public void testLongLength() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frame(out, 0x82, repeat('z', 70000));
+    byte[] bytes = out.toByteArray();
+    assertEquals(10, bytes.length - 70000);
+    for (int chunk : new int[] { 1, 7, 4096, bytes.length }) {
+      List<String> frames = decodeChunked(bytes, chunk, Integer.MAX_VALUE, OversizePolicy.REJECT);
+      assertEquals(1, frames.size());
+      assertEquals(70000 + "binary:".length(), frames.get(0).length());
+    }
+  }
+
+  public void testForgedLengthReservesLittle() throws IOException {
+    BufferPool pool = new BufferPool(false, 1 << 22, 4);
+    Rfc6455FrameDecoder decoder = new Rfc6455FrameDecoder(new RecordingHandler(), pool, Integer.MAX_VALUE,
+        OversizePolicy.REJECT);
+    // the first fragment of a message declared to be 1 GB, with a few bytes of it
+    ByteBuffer in = ByteBuffer.allocate(13);
+    in.put((byte) 0x02).put((byte) 127).putLong(1L << 30).put(new byte[] { 1, 2, 3 }).flip();
+    decoder.decode(in);
+    decoder.release();
+    assertEquals(65536, pool.getStats().getRetainedBytes());
+  }
+
+  public void testOversizeAcrossFragments() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frame(out, 0x01, "abc".getBytes());
+    frame(out, 0x89, "p".getBytes());
+    frame(out, 0x00, "def".getBytes());
+    frame(out, 0x80, "gh".getBytes());
+    frame(out, 0x81, "ok".getBytes());
+    byte[] bytes = out.toByteArray();
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      try {
+        decodeChunked(bytes, chunk, 5, OversizePolicy.REJECT);
+        fail();
+      } catch (IOException expected) {
+      }
+
+      List<String> frames = decodeChunked(bytes, chunk, 5, OversizePolicy.TRUNCATE);
+      assertEquals(3, frames.size());
+      assertEquals("ping:p", frames.get(0));
+      assertEquals("text:abcde", frames.get(1));
+      assertEquals("text:ok", frames.get(2));
+
+      frames = decodeChunked(bytes, chunk, 5, OversizePolicy.STREAM);
+      assertEquals(5, frames.size());
+      assertEquals("ping:p", frames.get(0));
+      assertEquals("start:text", frames.get(1));
+      assertEquals("chunk:abcdefgh", frames.get(2));
+      assertEquals("end", frames.get(3));
+      assertEquals("text:ok", frames.get(4));
+    }
+  }
+
+  /**
+   * Two compressed messages sent with context takeover, the first split in
+   * two frames around a ping, then an uncompressed one.
+   */
+  private static byte[] compressedStream(String first, String second) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] compressed = Rfc6455TestServer.deflate(deflater, first.getBytes("UTF-8"));
+    int half = compressed.length / 2;
+    frame(out, 0x41, Arrays.copyOfRange(compressed, 0, half));
+    frame(out, 0x89, "p".getBytes());
+    frame(out, 0x80, Arrays.copyOfRange(compressed, half, compressed.length));
+    frame(out, 0xc2, Rfc6455TestServer.deflate(deflater, second.getBytes("UTF-8")));
+    frame(out, 0x81, "plain".getBytes());
+    return out.toByteArray();
+  }
+
+  public void testCompressed() throws IOException {
+    String first = new String(repeat('a', 5000)) + "xyz";
+    String second = new String(repeat('a', 3000));
+    byte[] bytes = compressedStream(first, second);
+    assertTrue(bytes.length < 100);
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      PerMessageDeflate deflate = new PerMessageDeflate(BufferPool.getDefault(), false, false);
+      List<String> frames = decodeChunked(bytes, chunk, Integer.MAX_VALUE, OversizePolicy.REJECT, deflate);
+      assertEquals(4, frames.size());
+      assertEquals("ping:p", frames.get(0));
+      assertEquals("text:" + first, frames.get(1));
+      assertEquals("binary:" + second, frames.get(2));
+      assertEquals("text:plain", frames.get(3));
+
+      CompressionStats stats = deflate.getStats();
+      assertEquals(first.length() + second.length(), stats.getUncompressedBytesReceived());
+      assertTrue(stats.getReceiveRatio() < 0.1);
+      deflate.end();
+    }
+  }
+
+  public void testCompressedOversize() throws IOException {
+    // the limit applies to the inflated size
+    String first = new String(repeat('a', 5000));
+    byte[] bytes = compressedStream(first, "bb");
+    for (int chunk : new int[] { 1, 5, bytes.length }) {
+      try {
+        decodeChunked(bytes, chunk, 1000, OversizePolicy.REJECT, new PerMessageDeflate(BufferPool.getDefault(),
+            false, false));
+        fail();
+      } catch (IOException expected) {
+      }
+
+      List<String> frames = decodeChunked(bytes, chunk, 1000, OversizePolicy.TRUNCATE, new PerMessageDeflate(
+          BufferPool.getDefault(), false, false));
+      assertEquals(4, frames.size());
+      assertEquals("text:" + first.substring(0, 1000), frames.get(1));
+      assertEquals("binary:bb", frames.get(2));
+
+      frames = decodeChunked(bytes, chunk, 1000, OversizePolicy.STREAM, new PerMessageDeflate(
+          BufferPool.getDefault(), false, false));
+      StringBuilder streamed = new StringBuilder();
+      for (String frame : frames) {
+        if (frame.startsWith("chunk:")) {
+          streamed.append(frame.substring("chunk:".length()));
+        }
+      }
+      assertEquals(first, streamed.toString());
+      assertEquals("binary:bb", frames.get(frames.size() - 2));
+    }
+  }
+
+  private static void assertProtocolError(int... bytes) {
+    byte[] in = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      in[i] = (byte) bytes[i];
+    }
+    try {
+      decodeChunked(in, in.length, Integer.MAX_VALUE, OversizePolicy.REJECT);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testProtocolErrors() {
+    // masked
+    assertProtocolError(0x81, 0x81, 1, 2, 3, 4, 'a');
+    // reserved bits, including RSV1 without permessage-deflate
+    assertProtocolError(0xc1, 0x01, 'a');
+    assertProtocolError(0xa1, 0x01, 'a');
+    // unknown opcode
+    assertProtocolError(0x83, 0x00);
+    // continuation with nothing to continue
+    assertProtocolError(0x80, 0x01, 'a');
+    // new message before the last was finished
+    assertProtocolError(0x01, 0x01, 'a', 0x81, 0x01, 'b');
+    // fragmented control frame
+    assertProtocolError(0x09, 0x00);
+    // control frame too long
+    assertProtocolError(0x89, 126, 0, 126);
+  }
+}
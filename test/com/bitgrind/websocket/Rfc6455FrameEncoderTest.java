@@ -0,0 +1,149 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.util.BufferPool;
+
+public class Rfc6455FrameEncoderTest extends TestCase {
+  private final Rfc6455FrameEncoder encoder = new Rfc6455FrameEncoder(BufferPool.getDefault());
+
+  /** Checks the frame header and returns the unmasked payload. */
+  private static byte[] unmask(OutboundFrame frame, int opcode) {
+    assertEquals(1, frame.buffers.length);
+    ByteBuffer in = frame.buffers[0].duplicate();
+    assertEquals(0x80 | opcode, in.get() & 0xff);
+    int b1 = in.get() & 0xff;
+    assertEquals(0x80, b1 & 0x80);
+    long length = b1 & 0x7f;
+    if (length == 126) {
+      length = in.getShort() & 0xffff;
+    } else if (length == 127) {
+      length = in.getLong();
+    }
+    byte[] mask = new byte[4];
+    in.get(mask);
+    assertEquals(length, in.remaining());
+    byte[] payload = new byte[in.remaining()];
+    in.get(payload);
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] ^= mask[i % 4];
+    }
+    return payload;
+  }
+
+  public void testBinaryLengths() {
+    for (int length : new int[] { 0, 1, 3, 7, 8, 9, 125, 126, 127, 65535, 65536, 100003 }) {
+      byte[] payload = new byte[length];
+      for (int i = 0; i < length; i++) {
+        payload[i] = (byte) (i * 31);
+      }
+      ByteBuffer source = ByteBuffer.wrap(payload);
+      OutboundFrame frame = encoder.encodeBinary(source);
+      assertTrue("length " + length, Arrays.equals(payload, unmask(frame, 0x2)));
+      // the caller's buffer is neither consumed nor modified
+      assertEquals(0, source.position());
+      assertEquals((byte) 31, length > 1 ? payload[1] : 31);
+    }
+  }
+
+  public void testText() throws Exception {
+    String message = "price \u20ac1.5 and then some more text";
+    assertEquals(message, new String(unmask(encoder.encodeText(message), 0x1), "UTF-8"));
+  }
+
+  public void testControlFrames() {
+    assertTrue(Arrays.equals(new byte[] { 0x03, (byte) 0xe8 }, unmask(encoder.encodeClose(), 0x8)));
+    ByteBuffer ping = ByteBuffer.wrap("ping".getBytes()).asReadOnlyBuffer();
+    assertTrue(Arrays.equals("ping".getBytes(), unmask(encoder.encodePong(ping), 0xa)));
+  }
+
+  public void testKeysVary() {
+    ByteBuffer a = encoder.encodeBinary(ByteBuffer.allocate(4)).buffers[0];
+    ByteBuffer b = encoder.encodeBinary(ByteBuffer.allocate(4)).buffers[0];
+    assertFalse(a.getInt(2) == b.getInt(2));
+    // across several blocks of keys
+    Set<Integer> keys = new HashSet<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(encoder.encodeBinary(ByteBuffer.allocate(4)).buffers[0].getInt(2));
+    }
+    assertTrue(keys.size() > 990);
+  }
+
+  public void testPreparedFrame() throws Exception {
+    String message = "price \u20ac1.5";
+    PreparedFrame text = PreparedFrame.text(message);
+    OutboundFrame first = encoder.encode(text);
+    OutboundFrame second = encoder.encode(text);
+    assertEquals(message, new String(unmask(first, 0x1), "UTF-8"));
+    assertEquals(message, new String(unmask(second, 0x1), "UTF-8"));
+    // every frame is masked with its own key
+    assertFalse(first.buffers[0].getInt(2) == second.buffers[0].getInt(2));
+
+    byte[] payload = { 1, 2, 3, 4, 5 };
+    ByteBuffer source = ByteBuffer.wrap(payload);
+    PreparedFrame binary = PreparedFrame.binary(source);
+    payload[0] = 9;
+    assertEquals(0, source.position());
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5 }, unmask(encoder.encode(binary), 0x2)));
+  }
+
+  private static byte[] repeated(String s, int count) throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      text.append(s);
+    }
+    return text.toString().getBytes("UTF-8");
+  }
+
+  public void testCompressed() throws Exception {
+    for (boolean contextTakeover : new boolean[] { true, false }) {
+      PerMessageDeflate deflate = new PerMessageDeflate(BufferPool.getDefault(), !contextTakeover, false);
+      Inflater inflater = new Inflater(true);
+      byte[] message = repeated("compress me \u20ac ", 1000);
+      int[] sizes = new int[2];
+      for (int i = 0; i < 2; i++) {
+        OutboundFrame frame = encoder.encodeBinary(ByteBuffer.wrap(message), deflate);
+        byte[] payload = unmask(frame, 0x40 | 0x2);
+        sizes[i] = payload.length;
+        assertTrue(Arrays.equals(message, Rfc6455TestServer.inflate(inflater, payload)));
+        if (!contextTakeover) {
+          inflater.reset();
+        }
+      }
+      // the second copy refers back to the first only with context takeover
+      assertEquals(contextTakeover, sizes[1] < sizes[0]);
+
+      String text = "price \u20ac1.5";
+      byte[] payload = unmask(encoder.encodeText(text, deflate), 0x40 | 0x1);
+      assertEquals(text, new String(Rfc6455TestServer.inflate(inflater, payload), "UTF-8"));
+
+      // direct and read-only payloads are copied before compressing
+      ByteBuffer direct = ByteBuffer.allocateDirect(message.length);
+      direct.put(message).flip();
+      for (ByteBuffer source : new ByteBuffer[] { direct, ByteBuffer.wrap(message).asReadOnlyBuffer() }) {
+        payload = unmask(encoder.encodeBinary(source, deflate), 0x40 | 0x2);
+        assertTrue(Arrays.equals(message, Rfc6455TestServer.inflate(inflater, payload)));
+        assertEquals(0, source.position());
+        if (!contextTakeover) {
+          inflater.reset();
+        }
+      }
+
+      CompressionStats stats = deflate.getStats();
+      assertEquals(4 * message.length + text.getBytes("UTF-8").length, stats.getUncompressedBytesSent());
+      assertTrue(stats.getSendRatio() < 0.1);
+      deflate.end();
+      try {
+        encoder.encodeText("after end", deflate);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.bitgrind.websocket.util.Base64;
+
+/**
+ * A minimal in-process RFC 6455 server for tests. Answers the handshake,
+ * pings the client, sends each of its greeting messages as a text message
+ * split into two fragments, then echoes every message it receives until the
+ * client closes. Frames from the client must be masked.
+ * <p>
+ * If the client offers permessage-deflate the server accepts it, agreeing to
+ * whatever context takeover the client asked for, and compresses everything
+ * it sends; compressed messages from the client are echoed compressed.
+ */
+class Rfc6455TestServer implements Closeable, Runnable {
+  private final ServerSocket serverSocket;
+  private final List<String> greetings;
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+  /** The payload of every pong received, as a string. */
+  final BlockingQueue<String> pongs = new LinkedBlockingQueue<String>();
+
+  /** The number of compressed messages received. */
+  final AtomicInteger compressedMessages = new AtomicInteger();
+
+  Rfc6455TestServer(String... greetings) throws IOException {
+    this.greetings = Arrays.asList(greetings);
+    serverSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+    Thread thread = new Thread(this, "rfc6455-test-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  String getUrl() {
+    return "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/test";
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        sockets.add(socket);
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              serve(socket);
+            } catch (IOException e) {
+              // connection dropped
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException e) {}
+            }
+          }
+        });
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  /** Closes the listening socket and every accepted connection. */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+
+    List<String> headers = new ArrayList<String>();
+    String line;
+    while (!(line = readLine(in)).equals("")) {
+      headers.add(line);
+    }
+    String key = header(headers, "Sec-WebSocket-Key");
+    String extensions = optionalHeader(headers, "Sec-WebSocket-Extensions");
+    Compression compression = null;
+    String accepted = "";
+    if (extensions != null && extensions.startsWith("permessage-deflate")) {
+      boolean clientNoContextTakeover = extensions.contains("client_no_context_takeover");
+      boolean serverNoContextTakeover = extensions.contains("server_no_context_takeover");
+      compression = new Compression(serverNoContextTakeover, clientNoContextTakeover);
+      accepted = "sec-websocket-extensions: permessage-deflate" +
+          (clientNoContextTakeover ? "; client_no_context_takeover" : "") +
+          (serverNoContextTakeover ? "; server_no_context_takeover" : "") + "\r\n";
+    }
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    response.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+        "upgrade: WebSocket\r\n" +
+        "connection: Upgrade\r\n" +
+        "sec-websocket-accept: " + accept(key) + "\r\n" +
+        accepted +
+        "\r\n").getBytes("UTF-8"));
+    writeFrame(response, 0x89, "ping".getBytes("UTF-8"));
+    for (String greeting : greetings) {
+      byte[] bytes = greeting.getBytes("UTF-8");
+      int first = 0x01;
+      if (compression != null) {
+        bytes = compression.deflate(bytes);
+        first |= 0x40;
+      }
+      int half = bytes.length / 2;
+      writeFrame(response, first, Arrays.copyOfRange(bytes, 0, half));
+      writeFrame(response, 0x80, Arrays.copyOfRange(bytes, half, bytes.length));
+    }
+    out.write(response.toByteArray());
+    out.flush();
+
+    echo(in, out, compression);
+  }
+
+  /** One side of permessage-deflate, as the server sees it. */
+  private static class Compression {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final boolean resetDeflater;
+    private final boolean resetInflater;
+
+    Compression(boolean resetDeflater, boolean resetInflater) {
+      this.resetDeflater = resetDeflater;
+      this.resetInflater = resetInflater;
+    }
+
+    byte[] deflate(byte[] message) {
+      byte[] compressed = Rfc6455TestServer.deflate(deflater, message);
+      if (resetDeflater) {
+        deflater.reset();
+      }
+      return compressed;
+    }
+
+    byte[] inflate(byte[] message) throws IOException {
+      byte[] inflated = Rfc6455TestServer.inflate(inflater, message);
+      if (resetInflater) {
+        inflater.reset();
+      }
+      return inflated;
+    }
+  }
+
+  /** Compresses a message as permessage-deflate does, without the trailing empty block. */
+  static byte[] deflate(Deflater deflater, byte[] message) {
+    deflater.setInput(message);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    do {
+      n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+      out.write(buffer, 0, n);
+    } while (n == buffer.length);
+    byte[] compressed = out.toByteArray();
+    return Arrays.copyOf(compressed, compressed.length - 4);
+  }
+
+  /** Inflates a message compressed by {@link #deflate}. */
+  static byte[] inflate(Inflater inflater, byte[] message) throws IOException {
+    byte[] input = Arrays.copyOf(message, message.length + 4);
+    input[input.length - 1] = (byte) 0xff;
+    input[input.length - 2] = (byte) 0xff;
+    inflater.setInput(input);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    try {
+      int n;
+      while ((n = inflater.inflate(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e.toString());
+    }
+    return out.toByteArray();
+  }
+
+  private void echo(DataInputStream in, OutputStream out, Compression compression) throws IOException {
+    while (true) {
+      int b0 = in.read();
+      if (b0 == -1) {
+        return;
+      }
+      int b1 = in.readUnsignedByte();
+      if ((b1 & 0x80) == 0) {
+        throw new IOException("Unmasked frame from client");
+      }
+      long length = b1 & 0x7f;
+      if (length == 126) {
+        length = in.readUnsignedShort();
+      } else if (length == 127) {
+        length = in.readLong();
+      }
+      byte[] mask = new byte[4];
+      in.readFully(mask);
+      byte[] payload = new byte[(int) length];
+      in.readFully(payload);
+      for (int i = 0; i < payload.length; i++) {
+        payload[i] ^= mask[i % 4];
+      }
+
+      int opcode = b0 & 0x0f;
+      if (opcode == 0xa) {
+        pongs.add(new String(payload, "UTF-8"));
+        continue;
+      }
+      if ((b0 & 0x40) != 0) {
+        compressedMessages.incrementAndGet();
+        payload = compression.deflate(compression.inflate(payload));
+      }
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      writeFrame(frame, b0, payload);
+      out.write(frame.toByteArray());
+      out.flush();
+      if (opcode == 0x8) {
+        return;
+      }
+    }
+  }
+
+  private static void writeFrame(ByteArrayOutputStream out, int b0, byte[] payload) {
+    out.write(b0);
+    if (payload.length < 126) {
+      out.write(payload.length);
+    } else if (payload.length < 65536) {
+      out.write(126);
+      out.write(payload.length >> 8);
+      out.write(payload.length);
+    } else {
+      out.write(127);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) ((long) payload.length >> shift));
+      }
+    }
+    out.write(payload, 0, payload.length);
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1)
+        throw new IOException("Unexpected end of stream");
+      if (b != '\r')
+        line.append((char) b);
+    }
+    return line.toString();
+  }
+
+  private static String header(List<String> headers, String name) throws IOException {
+    String value = optionalHeader(headers, name);
+    if (value == null)
+      throw new IOException("Missing header " + name);
+    return value;
+  }
+
+  private static String optionalHeader(List<String> headers, String name) {
+    for (String header : headers) {
+      if (header.startsWith(name + ": "))
+        return header.substring(name.length() + 2);
+    }
+    return null;
+  }
+
+  private static String accept(String key) throws IOException {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return Base64.encode(sha1.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8")));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketOptions.OverflowPolicy;
+import com.bitgrind.websocket.WebSocketOptions.WaitStrategy;
+
+public class RingDispatcherTest extends TestCase {
+
+  /** Records deliveries, optionally holding up the first until released. */
+  static class RecordingSink implements Dispatcher.Sink {
+    final BlockingQueue<String> delivered = new LinkedBlockingQueue<String>();
+    final CountDownLatch release;
+    final CountDownLatch blocked = new CountDownLatch(1);
+
+    RecordingSink(boolean blockFirst) {
+      release = new CountDownLatch(blockFirst ? 1 : 0);
+    }
+
+    @Override
+    public void deliverText(ByteBuffer payload, Utf8Decoder utf8) throws Exception {
+      blocked.countDown();
+      release.await();
+      delivered.add(utf8.decode(payload).toString());
+    }
+
+    @Override
+    public void deliverBinary(ByteBuffer payload) {
+      assertTrue(payload.isReadOnly());
+      delivered.add("binary " + payload.remaining());
+    }
+
+    @Override
+    public void deliverClose() {
+      delivered.add("close");
+    }
+
+    @Override
+    public void deliverError(Throwable error) {
+      delivered.add("error " + error.getMessage());
+    }
+
+    @Override
+    public void released(int bytes) {
+    }
+
+    String next() throws InterruptedException {
+      return delivered.poll(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private static ByteBuffer text(String s) throws Exception {
+    return ByteBuffer.wrap(s.getBytes("UTF-8"));
+  }
+
+  public void testInOrder() throws Exception {
+    for (WaitStrategy strategy : WaitStrategy.values()) {
+      RecordingSink sink = new RecordingSink(false);
+      RingDispatcher dispatcher = new RingDispatcher(sink, new Histogram(), 8, 1, strategy, OverflowPolicy.BLOCK);
+      dispatcher.start();
+      for (int i = 0; i < 1000; i++) {
+        dispatcher.publishText(text("message " + i));
+      }
+      dispatcher.publishBinary(ByteBuffer.allocate(3));
+      dispatcher.publishClose();
+      for (int i = 0; i < 1000; i++) {
+        assertEquals("message " + i, sink.next());
+      }
+      assertEquals("binary 3", sink.next());
+      assertEquals("close", sink.next());
+    }
+  }
+
+  public void testDropNewest() throws Exception {
+    RecordingSink sink = new RecordingSink(true);
+    RingDispatcher dispatcher = new RingDispatcher(sink, new Histogram(), 4, 1, WaitStrategy.PARK,
+        OverflowPolicy.DROP_NEWEST);
+    dispatcher.start();
+    dispatcher.publishText(text("held"));
+    assertTrue(sink.blocked.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      dispatcher.publishText(text("message " + i));
+    }
+    assertEquals(4, dispatcher.getStats().getOccupancy());
+    assertEquals(6, dispatcher.getStats().getDropped());
+    sink.release.countDown();
+    assertEquals("held", sink.next());
+    for (int i = 0; i < 4; i++) {
+      assertEquals("message " + i, sink.next());
+    }
+  }
+
+  public void testDropOldest() throws Exception {
+    RecordingSink sink = new RecordingSink(true);
+    RingDispatcher dispatcher = new RingDispatcher(sink, new Histogram(), 4, 1, WaitStrategy.PARK,
+        OverflowPolicy.DROP_OLDEST);
+    dispatcher.start();
+    dispatcher.publishText(text("held"));
+    assertTrue(sink.blocked.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      dispatcher.publishText(text("message " + i));
+    }
+    dispatcher.publishError(new Exception("gone"));
+    assertEquals(7, dispatcher.getStats().getDropped());
+    sink.release.countDown();
+    assertEquals("held", sink.next());
+    for (int i = 7; i < 10; i++) {
+      assertEquals("message " + i, sink.next());
+    }
+    assertEquals("error gone", sink.next());
+  }
+
+  public void testEndWaitsForOtherConsumers() throws Exception {
+    RecordingSink sink = new RecordingSink(true);
+    RingDispatcher dispatcher = new RingDispatcher(sink, new Histogram(), 8, 4, WaitStrategy.PARK,
+        OverflowPolicy.BLOCK);
+    dispatcher.start();
+    dispatcher.publishText(text("held"));
+    assertTrue(sink.blocked.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 2; i++) {
+      dispatcher.publishText(text("message " + i));
+    }
+    dispatcher.publishClose();
+    // three consumers are stuck in the listener, leaving one free for the close
+    assertNull(sink.delivered.poll(200, TimeUnit.MILLISECONDS));
+    sink.release.countDown();
+    for (int i = 0; i < 3; i++) {
+      String message = sink.next();
+      assertNotNull(message);
+      assertFalse("close".equals(message));
+    }
+    assertEquals("close", sink.next());
+  }
+
+  public void testCapacityIsPowerOfTwo() {
+    assertEquals(8, capacity(5));
+    assertEquals(8, capacity(8));
+    assertEquals(2, capacity(1));
+  }
+
+  private static int capacity(int requested) {
+    RecordingSink sink = new RecordingSink(false);
+    RingDispatcher dispatcher = new RingDispatcher(sink, new Histogram(), requested, 1, WaitStrategy.PARK,
+        OverflowPolicy.BLOCK);
+    return dispatcher.getCapacity();
+  }
+}
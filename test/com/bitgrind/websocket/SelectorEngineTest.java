@@ -0,0 +1,299 @@
+package com.bitgrind.websocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.bitgrind.websocket.WebSocketClient.BatchListener;
+import com.bitgrind.websocket.WebSocketClient.WebSocketListener;
+
+import junit.framework.TestCase;
+
+public class SelectorEngineTest extends TestCase {
+  private Hybi00TestServer server;
+  private SelectorEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Hybi00TestServer("hello", "world");
+    engine = new SelectorEngine(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    engine.close();
+    server.close();
+  }
+
+  public void testManyConnections() throws IOException, URISyntaxException, InterruptedException {
+    RecordingListener[] listeners = new RecordingListener[100];
+    for (int i = 0; i < listeners.length; i++) {
+      listeners[i] = new RecordingListener();
+      engine.connect(server.getUrl(), listeners[i]);
+    }
+    for (RecordingListener listener : listeners) {
+      assertTrue(listener.awaitOpen());
+      assertEquals("hello", listener.nextMessage());
+      assertEquals("world", listener.nextMessage());
+      assertTrue(listener.errors.isEmpty());
+    }
+  }
+
+  public void testBroadcastPreparedFrame() throws Exception {
+    RecordingListener[] listeners = new RecordingListener[10];
+    List<WebSocketClient> clients = new ArrayList<WebSocketClient>();
+    for (int i = 0; i < listeners.length; i++) {
+      listeners[i] = new RecordingListener();
+      clients.add(engine.connect(server.getUrl(), listeners[i]));
+    }
+    clients.get(0).close();
+    assertEquals(9, PreparedFrame.text("to all \u20ac").sendTo(clients));
+    assertEquals(9, PreparedFrame.binary(new byte[] { 1, 2, 3 }).sendTo(clients));
+    for (int i = 1; i < listeners.length; i++) {
+      assertEquals("hello", listeners[i].nextMessage());
+      assertEquals("world", listeners[i].nextMessage());
+      assertEquals("to all \u20ac", listeners[i].nextMessage());
+      assertEquals("[1, 2, 3]", listeners[i].nextMessage());
+    }
+  }
+
+  public void testSendAndClose() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = engine.connect(server.getUrl(), listener);
+    // queued until the handshake completes
+    client.send("early");
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    assertEquals("early", listener.nextMessage());
+
+    for (int i = 0; i < 1000; i++) {
+      client.send("message " + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("message " + i, listener.nextMessage());
+    }
+    client.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testServerClose() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    engine.connect(server.getUrl(), listener);
+    assertTrue(listener.awaitOpen());
+    server.close();
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+  }
+
+  public void testServerDropWithDispatch() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client =
+        engine.connect(server.getUrl(), listener, new WebSocketOptions().setDispatchCapacity(16));
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    server.dropConnections();
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+    assertEquals(1, client.getMetrics().getErrors());
+  }
+
+  public void testConnectionRefused() throws Exception {
+    ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    unused.close();
+    RecordingListener listener = new RecordingListener();
+    engine.connect("ws://127.0.0.1:" + unused.getLocalPort() + "/", listener);
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+    assertEquals(1, listener.opened.getCount());
+  }
+
+  public void testConnectAsync() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    CompletableFuture<WebSocketClient> future =
+        engine.connectAsync(server.getUrl(), listener, new WebSocketOptions());
+    WebSocketClient client = future.get(5, TimeUnit.SECONDS);
+    assertEquals(0, listener.opened.getCount());
+    assertEquals("hello", listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testConnectAll() throws Exception {
+    Map<String, WebSocketListener> endpoints = new LinkedHashMap<String, WebSocketListener>();
+    for (int i = 0; i < 50; i++) {
+      endpoints.put(server.getUrl() + "?feed=" + i, new RecordingListener());
+    }
+    Map<String, CompletableFuture<WebSocketClient>> results =
+        engine.connectAll(endpoints, new WebSocketOptions(), 4);
+    assertEquals(endpoints.keySet(), results.keySet());
+    for (Map.Entry<String, CompletableFuture<WebSocketClient>> result : results.entrySet()) {
+      assertNotNull(result.getValue().get(5, TimeUnit.SECONDS));
+      assertEquals("hello", ((RecordingListener) endpoints.get(result.getKey())).nextMessage());
+    }
+  }
+
+  public void testConnectAllFailingAtOnce() throws Exception {
+    // each fails inside connectAsync, which must not start the next one recursively
+    Map<String, WebSocketListener> endpoints = new LinkedHashMap<String, WebSocketListener>();
+    for (int i = 0; i < 50000; i++) {
+      endpoints.put("http://localhost/" + i, new RecordingListener());
+    }
+    endpoints.put(server.getUrl(), new RecordingListener());
+    Map<String, CompletableFuture<WebSocketClient>> results =
+        engine.connectAll(endpoints, new WebSocketOptions(), 1);
+    assertNotNull(results.get(server.getUrl()).get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 50000; i++) {
+      assertTrue(results.get("http://localhost/" + i).isCompletedExceptionally());
+    }
+  }
+
+  public void testConnectAfterClose() throws Exception {
+    engine.close();
+    RecordingListener listener = new RecordingListener();
+    CompletableFuture<WebSocketClient> future =
+        engine.connectAsync(server.getUrl(), listener, new WebSocketOptions());
+    assertTrue(future.isCompletedExceptionally());
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+  }
+
+  public void testHandshakeTimeout() throws Exception {
+    // accepted by the kernel but never answered
+    ServerSocket silent = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      RecordingListener listener = new RecordingListener();
+      CompletableFuture<WebSocketClient> future = engine.connectAsync("ws://127.0.0.1:" + silent.getLocalPort() + "/",
+          listener, new WebSocketOptions().setHandshakeTimeout(100));
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("Expected " + ExecutionException.class);
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+      }
+      assertTrue(listener.errors.poll() instanceof SocketTimeoutException);
+      assertEquals(1, listener.opened.getCount());
+    } finally {
+      silent.close();
+    }
+  }
+
+  public void testRequest() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = engine.connect(server.getUrl(), listener, new WebSocketOptions().setInitialDemand(1));
+    assertEquals("hello", listener.nextMessage());
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+    client.request(2);
+    assertEquals("world", listener.nextMessage());
+    client.send("message");
+    assertEquals("message", listener.nextMessage());
+    client.send("held");
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+    client.request(Long.MAX_VALUE);
+    assertEquals("held", listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testRequestDuringDecode() throws Exception {
+    final CompletableFuture<WebSocketClient> connected = new CompletableFuture<WebSocketClient>();
+    final RecordingListener listener = new BatchRequester(connected);
+    WebSocketClient client = engine.connect(server.getUrl(), listener, new WebSocketOptions().setInitialDemand(1));
+    connected.complete(client);
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    client.send("after");
+    assertEquals("after", listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testPauseAndResume() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = engine.connect(server.getUrl(), listener);
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    client.pause();
+    for (int i = 0; i < 100; i++) {
+      client.send("message " + i);
+    }
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+    client.resume();
+    for (int i = 0; i < 100; i++) {
+      assertEquals("message " + i, listener.nextMessage());
+    }
+    // closing reads the server's answer even while paused
+    client.pause();
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testReadIdleTimeout() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = engine.connect(server.getUrl(), listener, new WebSocketOptions().setReadIdleTimeout(200));
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    // the server sends nothing more
+    assertTrue(listener.errors.poll(5, TimeUnit.SECONDS) instanceof SocketTimeoutException);
+    client.terminated().get(5, TimeUnit.SECONDS);
+  }
+
+  public void testKeepAliveMessage() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    engine.connect(server.getUrl(), listener, new WebSocketOptions()
+        .setReadIdleTimeout(300).setWriteIdleTimeout(100).setKeepAliveMessage("keepalive"));
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("world", listener.nextMessage());
+    // echoed by the server, which keeps the connection from going read idle
+    for (int i = 0; i < 5; i++) {
+      assertEquals("keepalive", listener.nextMessage());
+    }
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testKeepAliveNeedsMessageWithHybi00() throws Exception {
+    try {
+      engine.connect(server.getUrl(), new RecordingListener(), new WebSocketOptions().setWriteIdleTimeout(100));
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Requests each next message from another thread once the decoder has
+   * stopped but before the read which stopped it returns.
+   */
+  private static class BatchRequester extends RecordingListener implements BatchListener {
+    private final CompletableFuture<WebSocketClient> client;
+
+    BatchRequester(CompletableFuture<WebSocketClient> client) {
+      this.client = client;
+    }
+
+    @Override
+    public void onMessages(MessageBatch batch) {
+      for (int i = 0; i < batch.size(); i++) {
+        messages.add(batch.getText(i).toString());
+      }
+      Thread requester = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          client.join().request(1);
+        }
+      });
+      requester.start();
+      try {
+        requester.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.bitgrind.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+
+import junit.framework.TestCase;
+
+public class Utf8DecoderTest extends TestCase {
+  private final Utf8Decoder decoder = new Utf8Decoder();
+
+  private String decode(String s) throws Exception {
+    return decoder.decode(ByteBuffer.wrap(s.getBytes("UTF-8"))).toString();
+  }
+
+  public void testAscii() throws Exception {
+    assertEquals("", decode(""));
+    assertEquals("{\"price\":1.5}", decode("{\"price\":1.5}"));
+  }
+
+  public void testMultiByte() throws Exception {
+    assertEquals("\u00e9", decode("\u00e9"));
+    assertEquals("price \u20ac1.5", decode("price \u20ac1.5"));
+    assertEquals("\ud83d\ude00 ok", decode("\ud83d\ude00 ok"));
+  }
+
+  public void testBufferReused() throws Exception {
+    CharBuffer first = decoder.decode(ByteBuffer.wrap("first".getBytes("UTF-8")));
+    CharBuffer second = decoder.decode(ByteBuffer.wrap("second \u20ac".getBytes("UTF-8")));
+    assertSame(first, second);
+    assertEquals("second \u20ac", second.toString());
+  }
+
+  public void testDirectAndOffset() throws Exception {
+    byte[] bytes = "xx na\u00efve".getBytes("UTF-8");
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    assertEquals("xx na\u00efve", decoder.decode(direct).toString());
+    assertFalse(direct.hasRemaining());
+
+    ByteBuffer slice = ByteBuffer.wrap(bytes, 3, bytes.length - 3).slice();
+    assertEquals("na\u00efve", decoder.decode(slice).toString());
+  }
+
+  public void testMalformed() throws Exception {
+    try {
+      decoder.decode(ByteBuffer.wrap(new byte[] { 'a', (byte) 0xc3 }));
+      fail();
+    } catch (CharacterCodingException expected) {
+    }
+    // the decoder recovers for the next message
+    assertEquals("ok", decode("ok"));
+  }
+}
@@ -0,0 +1,446 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketClient.BatchListener;
+import com.bitgrind.websocket.WebSocketClient.BinaryBufferListener;
+import com.bitgrind.websocket.WebSocketClient.CharSequenceListener;
+import com.bitgrind.websocket.WebSocketClient.StreamingListener;
+import com.bitgrind.websocket.WebSocketOptions.OversizePolicy;
+
+public class WebSocketClientTest extends TestCase {
+  private Hybi00TestServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Hybi00TestServer("hello");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  public void testSendAndClose() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener);
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+
+    client.send("text \u20ac");
+    client.send(new byte[] { 1, 2, 3 });
+    client.send(ByteBuffer.wrap(new byte[200]));
+    assertEquals("text \u20ac", listener.nextMessage());
+    assertEquals("[1, 2, 3]", listener.nextMessage());
+    assertEquals(Arrays.toString(new byte[200]), listener.nextMessage());
+
+    client.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testBinaryBufferListener() throws Exception {
+    final BlockingQueue<ByteBuffer> buffers = new LinkedBlockingQueue<ByteBuffer>();
+    class BufferListener extends RecordingListener implements BinaryBufferListener {
+      @Override
+      public void onMessage(ByteBuffer message) {
+        assertTrue(message.isReadOnly());
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message).flip();
+        buffers.add(copy);
+      }
+    }
+    BufferListener listener = new BufferListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener);
+    byte[] large = new byte[100000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    client.send(new byte[] { 4, 5, 6 });
+    client.send(large);
+    assertEquals(ByteBuffer.wrap(new byte[] { 4, 5, 6 }), buffers.poll(5, TimeUnit.SECONDS));
+    assertEquals(ByteBuffer.wrap(large), buffers.poll(5, TimeUnit.SECONDS));
+    // only the greeting went through onMessage
+    assertEquals("hello", listener.nextMessage());
+    assertTrue(listener.messages.isEmpty());
+    client.close();
+  }
+
+  public void testCharSequenceListener() throws Exception {
+    final BlockingQueue<String> texts = new LinkedBlockingQueue<String>();
+    class TextListener extends RecordingListener implements CharSequenceListener {
+      @Override
+      public void onMessage(CharSequence message) {
+        texts.add(message.toString());
+      }
+    }
+    TextListener listener = new TextListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener);
+    client.send("caf\u00e9 \ud83d\ude00");
+    assertEquals("hello", texts.poll(5, TimeUnit.SECONDS));
+    assertEquals("caf\u00e9 \ud83d\ude00", texts.poll(5, TimeUnit.SECONDS));
+    assertTrue(listener.messages.isEmpty());
+    client.close();
+  }
+
+  public void testStreamingListener() throws Exception {
+    final BlockingQueue<ByteBuffer> streamed = new LinkedBlockingQueue<ByteBuffer>();
+    class StreamListener extends RecordingListener implements StreamingListener {
+      ByteArrayOutputStream current;
+
+      @Override
+      public void onMessageStart(boolean binary) {
+        assertTrue(binary);
+        current = new ByteArrayOutputStream();
+      }
+
+      @Override
+      public void onMessageChunk(ByteBuffer chunk) {
+        assertTrue(chunk.remaining() <= 8192);
+        while (chunk.hasRemaining()) {
+          current.write(chunk.get());
+        }
+      }
+
+      @Override
+      public void onMessageEnd() {
+        streamed.add(ByteBuffer.wrap(current.toByteArray()));
+      }
+    }
+    StreamListener listener = new StreamListener();
+    WebSocketOptions options = new WebSocketOptions().setMaxMessageSize(1000).setOversizePolicy(OversizePolicy.STREAM);
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener, options);
+    byte[] large = new byte[100000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    client.send(new byte[] { 7 });
+    client.send(large);
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("[7]", listener.nextMessage());
+    assertEquals(ByteBuffer.wrap(large), streamed.poll(5, TimeUnit.SECONDS));
+    client.close();
+  }
+
+  public void testStreamRequiresStreamingListener() throws Exception {
+    WebSocketOptions options = new WebSocketOptions().setOversizePolicy(OversizePolicy.STREAM);
+    try {
+      new WebSocketClient(server.getUrl(), new RecordingListener(), options);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testConcurrentSenders() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    final WebSocketClient client = new WebSocketClient(server.getUrl(), listener);
+    assertEquals("hello", listener.nextMessage());
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              client.send(id + ":" + i);
+            }
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    int[] next = new int[threads.length];
+    for (int i = 0; i < threads.length * 100; i++) {
+      String message = (String) listener.nextMessage();
+      assertNotNull(message);
+      int id = Integer.parseInt(message.substring(0, message.indexOf(':')));
+      assertEquals(id + ":" + next[id]++, message);
+    }
+    client.close();
+  }
+
+  public void testHandshakeTimeout() throws Exception {
+    ServerSocket silent = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      new WebSocketClient("ws://127.0.0.1:" + silent.getLocalPort() + "/", new RecordingListener(),
+          new WebSocketOptions().setHandshakeTimeout(100));
+      fail("Expected " + SocketTimeoutException.class);
+    } catch (SocketTimeoutException expected) {
+    } finally {
+      silent.close();
+    }
+  }
+
+  public void testDispatch() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+        new WebSocketOptions().setDispatchCapacity(16));
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    for (int i = 0; i < 100; i++) {
+      client.send("message " + i);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals("message " + i, listener.nextMessage());
+    }
+    assertEquals(16, client.getDispatchStats().getCapacity());
+    client.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testMetrics() throws Exception {
+    MBeanServer mbeans = MBeanServerFactory.newMBeanServer();
+    ObjectName pattern = new ObjectName("com.bitgrind.websocket:type=WebSocketMetrics,*");
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+        new WebSocketOptions().setMetricsExporter(new JmxMetricsExporter(mbeans)).setRecordHistograms(true));
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    for (int i = 0; i < 3; i++) {
+      client.send("message " + i);
+      assertEquals("message " + i, listener.nextMessage());
+    }
+
+    WebSocketMetricsMXBean metrics = client.getMetrics();
+    assertEquals(3, metrics.getTextFramesSent());
+    assertEquals(4, metrics.getTextFramesReceived());
+    assertEquals(4, metrics.getMessageSize().getCount());
+    assertEquals(9, metrics.getMessageSize().getMax());
+    assertEquals(1, metrics.getHandshakeTime().getCount());
+    assertTrue(metrics.getBytesSent() > 0);
+    assertTrue(metrics.getBytesReceived() > 0);
+
+    ObjectName name = mbeans.queryNames(pattern, null).iterator().next();
+    assertEquals(3L, mbeans.getAttribute(name, "TextFramesSent"));
+    assertEquals(4L, ((CompositeData) mbeans.getAttribute(name, "MessageSize")).get("count"));
+
+    client.close();
+    assertTrue(listener.awaitClose());
+    for (int i = 0; i < 100 && !mbeans.queryNames(pattern, null).isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(mbeans.queryNames(pattern, null).isEmpty());
+  }
+
+  public void testHistogramsOffByDefault() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener);
+    assertEquals("hello", listener.nextMessage());
+    WebSocketMetricsMXBean metrics = client.getMetrics();
+    assertEquals(1, metrics.getTextFramesReceived());
+    assertEquals(0, metrics.getMessageSize().getCount());
+    assertEquals(0, metrics.getDecodeTime().getCount());
+    // kept as a single value rather than a histogram
+    assertEquals(1, metrics.getHandshakeTime().getCount());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testDecodeTimeLeavesOutListener() throws Exception {
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void onMessage(String message) {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.onMessage(message);
+      }
+    };
+    WebSocketClient client =
+        new WebSocketClient(server.getUrl(), listener, new WebSocketOptions().setRecordHistograms(true));
+    assertEquals("hello", listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+    HistogramSnapshot decodeTime = client.getMetrics().getDecodeTime();
+    assertTrue(decodeTime.getCount() > 0);
+    assertTrue(decodeTime.getMax() < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  public void testRequest() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener, new WebSocketOptions().setInitialDemand(1));
+    assertEquals("hello", listener.nextMessage());
+    for (int i = 0; i < 3; i++) {
+      client.send("message " + i);
+    }
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+    client.request(2);
+    assertEquals("message 0", listener.nextMessage());
+    assertEquals("message 1", listener.nextMessage());
+    assertNull(listener.messages.poll(200, TimeUnit.MILLISECONDS));
+    client.request(1);
+    assertEquals("message 2", listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testReadIdleTimeout() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+        new WebSocketOptions().setReadIdleTimeout(200));
+    assertEquals("hello", listener.nextMessage());
+    assertTrue(listener.errors.poll(5, TimeUnit.SECONDS) instanceof SocketTimeoutException);
+    client.terminated().get(5, TimeUnit.SECONDS);
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testKeepAliveMessage() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener, new WebSocketOptions()
+        .setReadIdleTimeout(300).setWriteIdleTimeout(100).setKeepAliveMessage("keepalive"));
+    assertEquals("hello", listener.nextMessage());
+    // sent from a writer thread and echoed by the server
+    for (int i = 0; i < 5; i++) {
+      assertEquals("keepalive", listener.nextMessage());
+    }
+    assertTrue(listener.errors.isEmpty());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testThreadFactory() throws Exception {
+    final BlockingQueue<String> threads = new LinkedBlockingQueue<String>();
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void onMessage(String message) {
+        threads.add(Thread.currentThread().getName());
+        super.onMessage(message);
+      }
+    };
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+        new WebSocketOptions().setThreadFactory(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "custom-reader");
+          }
+        }));
+    assertEquals("hello", listener.nextMessage());
+    assertEquals("custom-reader", threads.poll());
+    client.close();
+    assertTrue(listener.awaitClose());
+  }
+
+  public void testExecutor() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      RecordingListener listener = new RecordingListener();
+      WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+          new WebSocketOptions().setExecutor(executor));
+      assertEquals("hello", listener.nextMessage());
+      client.send("message");
+      assertEquals("message", listener.nextMessage());
+      client.close();
+      assertTrue(listener.awaitClose());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testRejectedExecution() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    executor.shutdown();
+    RecordingListener listener = new RecordingListener();
+    WebSocketClient client = new WebSocketClient(server.getUrl(), listener,
+        new WebSocketOptions().setExecutor(executor));
+    assertTrue(listener.errors.poll() instanceof RejectedExecutionException);
+    assertTrue(client.terminated().isDone());
+  }
+
+  public void testVirtualThreads() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      try {
+        new WebSocketOptions().useVirtualThreads();
+        fail("Expected " + UnsupportedOperationException.class);
+      } catch (UnsupportedOperationException expected) {
+      }
+      return;
+    }
+    RecordingListener[] listeners = new RecordingListener[50];
+    WebSocketClient[] clients = new WebSocketClient[listeners.length];
+    WebSocketOptions options = new WebSocketOptions().useVirtualThreads();
+    for (int i = 0; i < listeners.length; i++) {
+      listeners[i] = new RecordingListener();
+      clients[i] = new WebSocketClient(server.getUrl(), listeners[i], options);
+    }
+    for (int i = 0; i < listeners.length; i++) {
+      assertEquals("hello", listeners[i].nextMessage());
+      clients[i].send("message " + i);
+      assertEquals("message " + i, listeners[i].nextMessage());
+      clients[i].close();
+      assertTrue(listeners[i].awaitClose());
+    }
+  }
+
+  public void testBatchListener() throws Exception {
+    Hybi00TestServer burst = new Hybi00TestServer("one", "two", "three");
+    try {
+      final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<List<String>>();
+      BatchListener listener = new BatchRecorder(batches);
+      WebSocketClient client = new WebSocketClient(burst.getUrl(), listener);
+      // the greetings arrive with the handshake, in one read
+      assertEquals(Arrays.asList("one", "two", "three"), batches.poll(5, TimeUnit.SECONDS));
+      client.send("four");
+      assertEquals(Arrays.asList("four"), batches.poll(5, TimeUnit.SECONDS));
+      client.close();
+    } finally {
+      burst.close();
+    }
+  }
+
+  public void testBatchListenerRejectsDispatch() throws Exception {
+    try {
+      new WebSocketClient(server.getUrl(), new BatchRecorder(null), new WebSocketOptions().setDispatchCapacity(16));
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static class BatchRecorder extends RecordingListener implements BatchListener {
+    private final BlockingQueue<List<String>> batches;
+
+    BatchRecorder(BlockingQueue<List<String>> batches) {
+      this.batches = batches;
+    }
+
+    @Override
+    public void onMessages(MessageBatch batch) {
+      List<String> messages = new ArrayList<String>();
+      for (int i = 0; i < batch.size(); i++) {
+        messages.add(batch.getText(i).toString());
+      }
+      batches.add(messages);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.bitgrind.websocket;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class WebSocketConnectionManagerTest extends TestCase {
+  private Hybi00TestServer server;
+  private SelectorEngine engine;
+  private WebSocketConnectionManager manager;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Hybi00TestServer("hello");
+    engine = new SelectorEngine(1);
+    manager = new WebSocketConnectionManager(engine, null).setBackoff(10, 50);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    manager.close();
+    engine.close();
+    server.close();
+  }
+
+  public void testReconnectAndResubscribe() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    manager.connect(server.getUrl(), listener, new WebSocketOptions());
+    assertEquals("hello", listener.nextMessage());
+    // echoed back by the server
+    manager.subscribe(server.getUrl(), "subscribe ticker");
+    assertEquals("subscribe ticker", listener.nextMessage());
+
+    for (int i = 0; i < 3; i++) {
+      server.dropConnections();
+      assertEquals("hello", listener.nextMessage());
+      assertEquals("subscribe ticker", listener.nextMessage());
+    }
+    assertNotNull(manager.getClient(server.getUrl()));
+    // the dropped connections are still counted
+    assertTrue(manager.getMetrics().getHandshakeTime().getCount() >= 4);
+    assertTrue(manager.getMetrics().getTextFramesReceived() >= 8);
+  }
+
+  public void testReconnectsWhenReadIdle() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    manager.connect(server.getUrl(), listener, new WebSocketOptions().setReadIdleTimeout(200));
+    assertEquals("hello", listener.nextMessage());
+    assertTrue(listener.errors.poll(5, TimeUnit.SECONDS) instanceof SocketTimeoutException);
+    assertEquals("hello", listener.nextMessage());
+  }
+
+  public void testRetriesUntilServerAppears() throws Exception {
+    ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    unused.close();
+    RecordingListener listener = new RecordingListener();
+    manager.connect("ws://127.0.0.1:" + unused.getLocalPort() + "/", listener, new WebSocketOptions());
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+    assertNull(manager.getClient("ws://127.0.0.1:" + unused.getLocalPort() + "/"));
+  }
+
+  public void testDisconnect() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    manager.connect(server.getUrl(), listener, new WebSocketOptions());
+    assertEquals("hello", listener.nextMessage());
+    manager.disconnect(server.getUrl());
+    assertTrue(listener.awaitClose());
+    assertNull(manager.getClient(server.getUrl()));
+    try {
+      manager.subscribe(server.getUrl(), "x");
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testBackoffGrowsWhileConnectionsDrop() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    manager.setResetAfter(60000);
+    manager.connect(server.getUrl(), listener, new WebSocketOptions());
+    assertEquals("hello", listener.nextMessage());
+    for (int i = 1; i <= 3; i++) {
+      server.dropConnections();
+      assertEquals("hello", listener.nextMessage());
+      assertEquals(i, manager.getAttempts(server.getUrl()));
+    }
+
+    manager.setResetAfter(0);
+    server.dropConnections();
+    assertEquals("hello", listener.nextMessage());
+    assertEquals(1, manager.getAttempts(server.getUrl()));
+  }
+
+  public void testInvalidOptions() throws Exception {
+    WebSocketOptions options = new WebSocketOptions().setWriteIdleTimeout(100);
+    try {
+      manager.connect(server.getUrl(), new RecordingListener(), options);
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+    // not left managed
+    options.setWriteIdleTimeout(0);
+    RecordingListener listener = new RecordingListener();
+    manager.connect(server.getUrl(), listener, options);
+    assertEquals("hello", listener.nextMessage());
+
+    // invalid by the time it reconnects
+    options.setWriteIdleTimeout(100);
+    server.dropConnections();
+    assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+    assertTrue(listener.errors.poll(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+    try {
+      manager.subscribe(server.getUrl(), "x");
+      fail("Expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testBackoff() {
+    for (int attempt = 0; attempt < 40; attempt++) {
+      long delay = manager.backoff(attempt);
+      assertTrue(delay >= 0);
+      assertTrue(delay <= Math.min(50, 10L << Math.min(attempt, 30)));
+    }
+  }
+}
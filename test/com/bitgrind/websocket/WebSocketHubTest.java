@@ -0,0 +1,187 @@
+package com.bitgrind.websocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.bitgrind.websocket.WebSocketClient.CharSequenceListener;
+import com.bitgrind.websocket.WebSocketHub.Subscription;
+
+public class WebSocketHubTest extends TestCase {
+  private Hybi00TestServer server;
+  private SelectorEngine engine;
+  private WebSocketHub hub;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Hybi00TestServer("hello");
+    engine = new SelectorEngine(1);
+    hub = new WebSocketHub(engine, new WebSocketOptions());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    hub.close();
+    engine.close();
+    server.close();
+  }
+
+  public void testSharesOneConnection() throws Exception {
+    RecordingListener[] listeners = { new RecordingListener(), new RecordingListener(), new Viewer() };
+    Subscription[] subscriptions = new Subscription[listeners.length];
+    for (int i = 0; i < listeners.length; i++) {
+      subscriptions[i] = hub.subscribe(server.getUrl(), listeners[i]);
+    }
+    assertEquals(3, hub.getSubscriberCount(server.getUrl()));
+    for (RecordingListener listener : listeners) {
+      assertTrue(listener.awaitOpen());
+    }
+    subscriptions[0].send("shared");
+    for (RecordingListener listener : listeners) {
+      Object message = listener.nextMessage();
+      // only subscribers which joined before the open see the greeting
+      if ("hello".equals(message)) {
+        message = listener.nextMessage();
+      }
+      assertEquals("shared", message);
+    }
+    assertEquals(1, server.accepted.get());
+  }
+
+  public void testClosesWhenLastSubscriberLeaves() throws Exception {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    Subscription one = hub.subscribe(server.getUrl(), first);
+    assertTrue(first.awaitOpen());
+    // joining once the greeting has been delivered, so as not to see it
+    assertEquals("hello", first.nextMessage());
+    Subscription two = hub.subscribe(server.getUrl(), second);
+    // joined an open connection
+    assertEquals(0, second.opened.getCount());
+
+    one.close();
+    one.close();
+    assertEquals(1, hub.getSubscriberCount(server.getUrl()));
+    two.send("still open");
+    assertEquals("still open", second.nextMessage());
+    assertNull(first.messages.poll(100, TimeUnit.MILLISECONDS));
+
+    two.close();
+    assertEquals(0, hub.getSubscriberCount(server.getUrl()));
+    // left before the close completed, so not told of it
+    assertFalse(second.closed.await(200, TimeUnit.MILLISECONDS));
+
+    RecordingListener third = new RecordingListener();
+    hub.subscribe(server.getUrl(), third);
+    assertEquals("hello", third.nextMessage());
+    assertEquals(2, server.accepted.get());
+  }
+
+  public void testJoinRacingOpenOpensOnce() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      // each thread keeps joining while the connection opens
+      final OpenCounter[][] listeners = new OpenCounter[4][25];
+      final Subscription[][] subscriptions = new Subscription[4][25];
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] threads = new Thread[listeners.length];
+      for (int i = 0; i < threads.length; i++) {
+        final int thread = i;
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int j = 0; j < listeners[thread].length; j++) {
+                listeners[thread][j] = new OpenCounter();
+                subscriptions[thread][j] = hub.subscribe(server.getUrl(), listeners[thread][j]);
+              }
+            } catch (Exception e) {
+              throw new AssertionError(e);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      for (int i = 0; i < listeners.length; i++) {
+        for (OpenCounter listener : listeners[i]) {
+          assertTrue(listener.awaitOpen());
+        }
+      }
+      Thread.sleep(20);
+      for (int i = 0; i < listeners.length; i++) {
+        for (int j = 0; j < listeners[i].length; j++) {
+          assertEquals(1, listeners[i][j].opens.get());
+          subscriptions[i][j].close();
+        }
+      }
+    }
+  }
+
+  public void testConnectionEndReachesEverySubscriber() throws Exception {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    hub.subscribe(server.getUrl(), first);
+    hub.subscribe(server.getUrl(), second);
+    assertTrue(first.awaitOpen());
+    assertTrue(second.awaitOpen());
+    server.dropConnections();
+    assertNotNull(first.errors.poll(5, TimeUnit.SECONDS));
+    assertNotNull(second.errors.poll(5, TimeUnit.SECONDS));
+    assertEquals(0, hub.getSubscriberCount(server.getUrl()));
+  }
+
+  public void testLateJoinerSeesEndDuringOpen() throws Exception {
+    final RecordingListener first = new RecordingListener();
+    hub.subscribe(server.getUrl(), first);
+    assertTrue(first.awaitOpen());
+    RecordingListener late = new RecordingListener() {
+      @Override
+      public void onOpen() {
+        super.onOpen();
+        // the connection ends before the subscriber is added
+        try {
+          server.dropConnections();
+          assertNotNull(first.errors.poll(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    hub.subscribe(server.getUrl(), late);
+    assertNotNull(late.errors.poll(5, TimeUnit.SECONDS));
+  }
+
+  public void testFailedConnectReleasesSubscription() throws Exception {
+    WebSocketHub invalid = new WebSocketHub(engine, new WebSocketOptions().setWriteIdleTimeout(100));
+    try {
+      invalid.subscribe(server.getUrl(), new RecordingListener());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(0, invalid.getSubscriberCount(server.getUrl()));
+    invalid.close();
+  }
+
+  private static class Viewer extends RecordingListener implements CharSequenceListener {
+    @Override
+    public void onMessage(CharSequence message) {
+      onMessage(message.toString());
+    }
+  }
+
+  private static class OpenCounter extends RecordingListener {
+    final AtomicInteger opens = new AtomicInteger();
+
+    @Override
+    public void onOpen() {
+      opens.incrementAndGet();
+      super.onOpen();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.bitgrind.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+public class WssClientTest extends TestCase {
+  /** A PKCS#12 key store holding a self-signed EC certificate for 127.0.0.1 and localhost, valid until 2124. */
+  private static final String KEY_STORE =
+      "MIIEDAIBAzCCA7YGCSqGSIb3DQEHAaCCA6cEggOjMIIDnzCCASYGCSqGSIb3DQEHAaCCARcEggET"
+      + "MIIBDzCCAQsGCyqGSIb3DQEMCgECoIG9MIG6MGYGCSqGSIb3DQEFDTBZMDgGCSqGSIb3DQEFDDAr"
+      + "BBRBiw72fqx6ICKKM2NOeZGh+8BG/QICJxACASAwDAYIKoZIhvcNAgkFADAdBglghkgBZQMEASoE"
+      + "EE10WW+ok6jfK6fZtmun3VgEUA++L5PB4Ls1TFpQv5c6HYsw3HrPvUi3MGcxexwa4vKq6Yw10Xot"
+      + "1GhzAd0sbipQNwuOJoxN8HeYgTTPGu11oePcwEMBXZePlULediG1XVyJMTwwFwYJKoZIhvcNAQkU"
+      + "MQoeCAB0AGUAcwB0MCEGCSqGSIb3DQEJFTEUBBJUaW1lIDE3OTIyNTgxNzY0MDUwggJxBgkqhkiG"
+      + "9w0BBwagggJiMIICXgIBADCCAlcGCSqGSIb3DQEHATBmBgkqhkiG9w0BBQ0wWTA4BgkqhkiG9w0B"
+      + "BQwwKwQUY5ajt/oh7JjvQH6usOOjYw2AK/YCAicQAgEgMAwGCCqGSIb3DQIJBQAwHQYJYIZIAWUD"
+      + "BAEqBBBa5Z3IQtrEOUU8y+VSSjGxgIIB4ADS6mfSUdV7zV6BQ73N1hAVq5mUrGvYEm5sDG2dT3LN"
+      + "NwA4gc9azxnJIai/330mkdmYQXmDxcQ+rXrQ0Hzxbj8RGg0GmjUAtHrJU/ji49u3EifH+PRpMhi9"
+      + "NUZLGQ0eoE4X55zfpIMlmZ+5K1Vh4IRcwX50xKBQluHwmo6Ns7N81TFZvUne1R/haWhGGRUmkWsF"
+      + "jnTj/7SKwotw93pJQ7tJ4nhT3OmcvHwLTYJ8UKgCKbJ3++gFbABEBU4ZDMrb9jRJOFNwTsByYo34"
+      + "yuJB6wyjEO3gjiZu8xHqrH7yATsN5pF5acYwzhBLTYlb86IzbFyCdCn0RR/T4Dvh2EqiZ3Ow9Xs8"
+      + "PFmPNY7rA/l4WfPGVN3K6fdBf6NPkcKJqxQF+4n2tBTJ1EhGPZGsso1lmw2k56wyZzVgIdZrRdYj"
+      + "+3S4TL/UuE3oK7poylg2WJ4wlZj0aKCFjGh09sXwyQmZ1fAqE7fJv+ld12PDmVxWm/qCH1T8AcWv"
+      + "s7kbYABD4BaCIlnIg22Ceb/CeJacCmmOi+i9DCffso2qzd8tDCQuplbKxuVAVlJqyQeUJah+NkzE"
+      + "gE4lwrvEn9nJmD80swtkHQHWIYI6ARL6cLdbXg+ysgbJcyKvE4PmRv8fSs1RfrEzozBNMDEwDQYJ"
+      + "YIZIAWUDBAIBBQAEIN9q1w309fIKjUZvndd16uL9HynsJXf+VZlJKI8rHYYzBBQMFs4zAw4V00nx"
+      + "XcCsbGzzCdHmyQICJxA=";
+  private static final char[] PASSWORD = "password".toCharArray();
+
+  private SSLContext context;
+  private WebSocketOptions options;
+  private Hybi00TestServer server;
+  private SelectorEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(new ByteArrayInputStream(Base64.getMimeDecoder().decode(KEY_STORE)), PASSWORD);
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(keyStore, PASSWORD);
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore);
+    context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+    options = new WebSocketOptions().setSslContext(context);
+
+    SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 1000,
+        InetAddress.getByName("127.0.0.1"));
+    server = new Hybi00TestServer(serverSocket, "hello");
+    engine = new SelectorEngine(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    engine.close();
+    server.close();
+  }
+
+  private void exercise(WebSocketClient client, RecordingListener listener) throws Exception {
+    assertTrue(listener.awaitOpen());
+    assertEquals("hello", listener.nextMessage());
+    // larger than a TLS record
+    byte[] large = new byte[50000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    for (int i = 0; i < 20; i++) {
+      client.send("message " + i);
+    }
+    client.send(large);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("message " + i, listener.nextMessage());
+    }
+    assertEquals(Arrays.toString(large), listener.nextMessage());
+    client.close();
+    assertTrue(listener.awaitClose());
+    assertTrue(listener.errors.isEmpty());
+  }
+
+  public void testBlocking() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    exercise(new WebSocketClient(server.getUrl(), listener, options), listener);
+  }
+
+  public void testSelectorEngine() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    exercise(engine.connect(server.getUrl(), listener, options), listener);
+  }
+
+  public void testSessionResumedOnReconnect() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      RecordingListener listener = new RecordingListener();
+      WebSocketClient client = engine.connect(server.getUrl(), listener, options);
+      assertEquals("hello", listener.nextMessage());
+      client.close();
+      assertTrue(listener.awaitClose());
+    }
+    SSLSession first = server.sessions.poll(5, TimeUnit.SECONDS);
+    SSLSession second = server.sessions.poll(5, TimeUnit.SECONDS);
+    assertEquals(first.getCreationTime(), second.getCreationTime());
+  }
+
+  public void testUntrustedCertificate() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    engine.connect(server.getUrl(), listener, new WebSocketOptions());
+    assertTrue(listener.errors.poll(5, TimeUnit.SECONDS) instanceof SSLHandshakeException);
+  }
+
+  public void testUri() throws Exception {
+    assertEquals(443, WebSocketClient.toWebSocketUri("wss://example.com/").getPort());
+    assertEquals(80, WebSocketClient.toWebSocketUri("ws://example.com/").getPort());
+    try {
+      WebSocketClient.toWebSocketUri("http://example.com/");
+      fail("Expected " + URISyntaxException.class);
+    } catch (URISyntaxException expected) {
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.bitgrind.websocket.util;
+
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+public class Base64Test extends TestCase {
+
+  public void testRfc4648Vectors() throws Exception {
+    String[] input = { "", "f", "fo", "foo", "foob", "fooba", "foobar" };
+    String[] output = { "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy" };
+    for (int i = 0; i < input.length; i++) {
+      assertEquals(output[i], Base64.encode(input[i].getBytes("US-ASCII")));
+    }
+  }
+
+  /** The worked example of the Sec-WebSocket-Accept calculation in RFC 6455. */
+  public void testWebSocketAccept() throws Exception {
+    byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+        "dGhlIHNhbXBsZSBub25jZQ==258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes("US-ASCII"));
+    assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", Base64.encode(digest));
+  }
+}
@@ -0,0 +1,107 @@
+package com.bitgrind.websocket.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(false, 65536, 4);
+    assertEquals(512, pool.acquire(0).capacity());
+    assertEquals(512, pool.acquire(512).capacity());
+    assertEquals(1024, pool.acquire(513).capacity());
+    assertEquals(65536, pool.acquire(40000).capacity());
+    // beyond the largest class: allocated exactly, never pooled
+    assertEquals(70000, pool.acquire(70000).capacity());
+  }
+
+  public void testReuse() {
+    BufferPool pool = new BufferPool(false, 65536, 4);
+    ByteBuffer buffer = pool.acquire(1000);
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    assertEquals(1024, pool.getStats().getRetainedBytes());
+
+    ByteBuffer again = pool.acquire(600);
+    assertSame(buffer, again);
+    assertEquals(0, again.position());
+    assertEquals(again.capacity(), again.limit());
+    assertEquals(0, pool.getStats().getRetainedBytes());
+    assertEquals(1, pool.getStats().getHits());
+    assertEquals(1, pool.getStats().getMisses());
+  }
+
+  public void testDirect() {
+    BufferPool pool = new BufferPool(true, 65536, 4);
+    ByteBuffer buffer = pool.acquire(100);
+    assertTrue(buffer.isDirect());
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire(100));
+
+    // heap buffers do not belong in a direct pool
+    pool.release(ByteBuffer.allocate(512));
+    assertEquals(0, pool.getStats().getRetainedBytes());
+  }
+
+  public void testForeignBuffersDropped() {
+    BufferPool pool = new BufferPool(false, 65536, 4);
+    pool.release(null);
+    pool.release(ByteBuffer.allocate(1000));
+    pool.release(ByteBuffer.allocate(1024).asReadOnlyBuffer());
+    pool.release(pool.acquire(70000));
+    assertEquals(0, pool.getStats().getRetainedBytes());
+  }
+
+  public void testSharedLimit() {
+    BufferPool pool = new BufferPool(false, 65536, 2);
+    pool.attachThreadCache();
+    ByteBuffer[] buffers = new ByteBuffer[20];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.acquire(512);
+    }
+    for (ByteBuffer buffer : buffers) {
+      pool.release(buffer);
+    }
+    pool.releaseThreadCache();
+    // everything above the shared limit is left to the garbage collector
+    assertEquals(2 * 512, pool.getStats().getRetainedBytes());
+  }
+
+  public void testReleaseThreadCache() throws InterruptedException {
+    final BufferPool pool = new BufferPool(false, 65536, 4);
+    final ByteBuffer[] released = new ByteBuffer[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        pool.attachThreadCache();
+        released[0] = pool.acquire(2048);
+        pool.release(released[0]);
+        pool.releaseThreadCache();
+      }
+    };
+    thread.start();
+    thread.join();
+    assertSame(released[0], pool.acquire(2048));
+    assertEquals(1, pool.getStats().getHits());
+    assertEquals(1, pool.getStats().getMisses());
+  }
+
+  public void testThreadsWithoutCacheUseSharedLists() throws InterruptedException {
+    final BufferPool pool = new BufferPool(false, 65536, 4);
+    final ByteBuffer[] released = new ByteBuffer[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        released[0] = pool.acquire(2048);
+        pool.release(released[0]);
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(2048, pool.getStats().getRetainedBytes());
+    assertSame(released[0], pool.acquire(2048));
+    assertEquals(1, pool.getStats().getHits());
+    assertEquals(1, pool.getStats().getMisses());
+  }
+}